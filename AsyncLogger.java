@@ -0,0 +1,326 @@
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * AsyncLogger keeps logging off the request path of the servers. Threads only capture the
+ * parts of a log line into a bounded lock-free ring buffer; a background writer thread
+ * formats the entries and writes them to the console and the log file in batches.
+ * When the ring buffer is full, entries are dropped and counted instead of blocking.
+ */
+public class AsyncLogger {
+
+    /**
+     * Log levels in increasing verbosity. Request logging uses INFO.
+     */
+    public enum Level { OFF, SEVERE, WARNING, INFO }
+
+    private static final DateTimeFormatter formatter = DateTimeFormatter.ofPattern
+    ("yyyy-MM-dd HH:mm:ss.SSS");
+
+    /**
+     * Largest number of entries the writer formats before writing them out.
+     */
+    private static final int BATCH_SIZE = 1024;
+
+    private final RingBuffer ringBuffer;
+    private final Level level;
+    private final int sampleRate;
+    private final boolean console;
+    private final Writer fileWriter;
+    private final LongAdder dropped = new LongAdder();
+
+    /**
+     * Number of dropped entries already reported in the log.
+     */
+    private long reportedDropped;
+
+    /**
+     * A new AsyncLogger is constructed from the logging flags of the server options:
+     * --log-level=OFF|SEVERE|WARNING|INFO, --log-sample=N to log one in N requests,
+     * --log-buffer=N for the ring buffer capacity and --log-console=false to stop printing.
+     * @param fileName Name of the log file, opened in append mode.
+     * @param options Command-line options of the server.
+     */
+    public AsyncLogger(String fileName, ServerOptions options) {
+        this(fileName,
+             Level.valueOf(options.get("log-level", "INFO").toUpperCase()),
+             Math.max(1, options.getInt("log-sample", 1)),
+             options.getInt("log-buffer", 64 * 1024),
+             Boolean.parseBoolean(options.get("log-console", "true")));
+    }
+
+    /**
+     * A new AsyncLogger is constructed and its writer thread is started.
+     * @param fileName Name of the log file, opened in append mode.
+     * @param level Most verbose level that is logged.
+     * @param sampleRate One in sampleRate requests is logged.
+     * @param capacity Capacity of the ring buffer, rounded up to a power of two.
+     * @param console Whether log lines are also printed on the console.
+     */
+    public AsyncLogger(String fileName, Level level, int sampleRate, int capacity, boolean console) {
+        this.ringBuffer = new RingBuffer(capacity);
+        this.level = level;
+        this.sampleRate = sampleRate;
+        this.console = console;
+
+        Writer writer = null;
+        if (level != Level.OFF) {
+            try {
+                writer = new OutputStreamWriter(new FileOutputStream(fileName, true), StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                System.err.println("Failed to set up logger: " + e.getMessage());
+            }
+        }
+        this.fileWriter = writer;
+
+        Thread writerThread = new Thread(this::runWriter, "async-logger");
+        writerThread.setDaemon(true);
+        writerThread.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            // Write out whatever is still buffered when the server stops
+            while (drain() > 0) {
+                Thread.onSpinWait();
+            }
+        }));
+    }
+
+    /**
+     * Decides whether the current request is logged. Called once per request so that
+     * its request and response lines are either both logged or both skipped.
+     * @return True if the request should be logged.
+     */
+    public boolean sample() {
+        if (level.compareTo(Level.INFO) < 0) return false;
+        return sampleRate == 1 || ThreadLocalRandom.current().nextInt(sampleRate) == 0;
+    }
+
+    /**
+     * Logs a request or response line of a sampled request. The line is only built by
+     * the writer thread, as "prefix + client + - + message".
+     * @param prefix Text in front of the client, such as "Received from ".
+     * @param client Address and port of the client.
+     * @param message The request or response.
+     */
+    public void request(String prefix, String client, String message) {
+        enqueue(new Entry(Level.INFO, prefix, client, message));
+    }
+
+    /**
+     * Logs an informational message.
+     * @param message The message to be logged.
+     */
+    public void info(String message) {
+        log(Level.INFO, message);
+    }
+
+    /**
+     * Logs a warning.
+     * @param message The message to be logged.
+     */
+    public void warning(String message) {
+        log(Level.WARNING, message);
+    }
+
+    /**
+     * Logs an error.
+     * @param message The message to be logged.
+     */
+    public void severe(String message) {
+        log(Level.SEVERE, message);
+    }
+
+    /**
+     * @return Number of entries dropped because the ring buffer was full.
+     */
+    public long dropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Logs a message if its level is enabled.
+     */
+    private void log(Level messageLevel, String message) {
+        if (messageLevel.compareTo(level) <= 0 && level != Level.OFF) {
+            enqueue(new Entry(messageLevel, null, null, message));
+        }
+    }
+
+    /**
+     * Hands an entry to the writer thread, dropping it if the ring buffer is full.
+     */
+    private void enqueue(Entry entry) {
+        if (!ringBuffer.offer(entry)) {
+            dropped.increment();
+        }
+    }
+
+    /**
+     * Body of the writer thread: drains the ring buffer in batches and parks briefly when it is empty.
+     */
+    private void runWriter() {
+        while (true) {
+            if (drain() == 0) {
+                LockSupport.parkNanos(1_000_000L);
+            }
+        }
+    }
+
+    /**
+     * Formats and writes out one batch of entries.
+     * @return Number of entries written.
+     */
+    private synchronized int drain() {
+        StringBuilder consoleBatch = new StringBuilder();
+        StringBuilder fileBatch = new StringBuilder();
+        long lastMillis = -1;
+        String timestamp = null;
+        int count = 0;
+
+        Entry entry;
+        while (count < BATCH_SIZE && (entry = ringBuffer.poll()) != null) {
+            // Consecutive entries often share the same millisecond, so the timestamp is reused
+            if (entry.millis != lastMillis) {
+                lastMillis = entry.millis;
+                timestamp = LocalDateTime.ofInstant(Instant.ofEpochMilli(lastMillis),
+                        ZoneId.systemDefault()).format(formatter);
+            }
+            appendLine(consoleBatch, fileBatch, timestamp, entry.level, entry);
+            count++;
+        }
+
+        long droppedNow = dropped.sum();
+        if (droppedNow != reportedDropped) {
+            String message = (droppedNow - reportedDropped) + " log entries dropped, "
+                    + droppedNow + " in total";
+            reportedDropped = droppedNow;
+            timestamp = LocalDateTime.now().format(formatter);
+            appendLine(consoleBatch, fileBatch, timestamp, Level.WARNING,
+                    new Entry(Level.WARNING, null, null, message));
+        }
+        if (consoleBatch.length() == 0) return count;
+
+        if (console) {
+            PrintStream out = System.out;
+            out.print(consoleBatch);
+            out.flush();
+        }
+        if (fileWriter != null) {
+            try {
+                fileWriter.write(fileBatch.toString());
+                fileWriter.flush();
+            } catch (IOException e) {
+                System.err.println("Failed to write log file: " + e.getMessage());
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Appends the console and file forms of a log line to the batches.
+     */
+    private static void appendLine(StringBuilder consoleBatch, StringBuilder fileBatch,
+                                   String timestamp, Level level, Entry entry) {
+        int start = consoleBatch.length();
+        consoleBatch.append('[').append(timestamp).append("] ");
+        if (entry.prefix != null) {
+            consoleBatch.append(entry.prefix).append(entry.client).append(" - ");
+        }
+        consoleBatch.append(entry.message).append(System.lineSeparator());
+
+        fileBatch.append('[').append(timestamp).append("] ").append(level).append(": ")
+                 .append(consoleBatch, start + timestamp.length() + 3, consoleBatch.length());
+    }
+
+    /**
+     * Entry holds the unformatted parts of a log line.
+     */
+    private static class Entry {
+        private final long millis = System.currentTimeMillis();
+        private final Level level;
+        private final String prefix;
+        private final String client;
+        private final String message;
+
+        Entry(Level level, String prefix, String client, String message) {
+            this.level = level;
+            this.prefix = prefix;
+            this.client = client;
+            this.message = message;
+        }
+    }
+
+    /**
+     * RingBuffer is a bounded lock-free queue for many producers and a single consumer.
+     * Each slot carries a sequence number that tells producers whether it is free and
+     * the consumer whether it has been filled.
+     */
+    private static class RingBuffer {
+        private final AtomicReferenceArray<Entry> entries;
+        private final AtomicLongArray sequences;
+        private final AtomicLong tail = new AtomicLong();
+        private final int mask;
+        private long head; // Only touched by the consumer
+
+        RingBuffer(int capacity) {
+            int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+            this.entries = new AtomicReferenceArray<>(size);
+            this.sequences = new AtomicLongArray(size);
+            this.mask = size - 1;
+            for (int i = 0; i < size; i++) {
+                sequences.set(i, i);
+            }
+        }
+
+        /**
+         * Adds an entry without blocking.
+         * @return False if the buffer is full.
+         */
+        boolean offer(Entry entry) {
+            long position = tail.get();
+            while (true) {
+                int index = (int) position & mask;
+                long difference = sequences.get(index) - position;
+                if (difference == 0) {
+                    if (tail.compareAndSet(position, position + 1)) {
+                        entries.set(index, entry);
+                        sequences.set(index, position + 1);
+                        return true;
+                    }
+                    position = tail.get();
+                } else if (difference < 0) {
+                    return false;
+                } else {
+                    position = tail.get();
+                }
+            }
+        }
+
+        /**
+         * Removes the oldest entry.
+         * @return The entry, or null if the buffer is empty.
+         */
+        Entry poll() {
+            int index = (int) head & mask;
+            if (sequences.get(index) != head + 1) return null;
+            Entry entry = entries.get(index);
+            entries.set(index, null);
+            sequences.set(index, head + mask + 1);
+            head++;
+            return entry;
+        }
+    }
+}
@@ -0,0 +1,345 @@
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * BinaryProtocol implements the compact, length-prefixed wire format that clients can use
+ * instead of the text protocol. A TCP connection or a UDP datagram switches to it by starting
+ * with the MAGIC byte, which can never begin a text command.
+ *
+ * Request frame:  opcode (1) | flags (1) | key length (2) | value length (4) | key | value
+ * Response frame: status (1) | value length (4) | value
+ *
+ * Keys and values are raw bytes, mapped one-to-one onto chars with CommandHandler.CHARSET,
+ * so values may contain spaces, newlines or arbitrary binary data.
+ */
+public class BinaryProtocol {
+
+    /**
+     * First byte of a binary TCP connection or UDP datagram.
+     */
+    public static final byte MAGIC = (byte) 0xB7;
+
+    /**
+     * Operation codes of the request frames.
+     */
+    public static final byte OP_GET = 1;
+    public static final byte OP_PUT = 2;
+    public static final byte OP_DELETE = 3;
+    public static final byte OP_COMMAND = 4; // Runs a text command carried in the value
+    public static final byte OP_REPLICATE = 5; // Applies a change sent by the primary of the key
+    public static final byte OP_MIGRATE = 6; // Stores a key moved from another node, unless present
+
+    /**
+     * Flag of a GET, PUT, DELETE or COMMAND forwarded by another node of a cluster: it is
+     * executed where it arrives, without being routed again. The flags of an OP_REPLICATE
+     * frame hold the write-ahead log operation instead, and its value the log record value;
+     * the value of an OP_MIGRATE frame is the expiry deadline (0 for none), a space and the value.
+     */
+    public static final byte FLAG_FORWARDED = 1;
+
+    /**
+     * Status codes of the response frames.
+     */
+    public static final byte STATUS_OK = 0;
+    public static final byte STATUS_NOT_FOUND = 1;
+    public static final byte STATUS_ERROR = 2;
+
+    /**
+     * Sizes of the fixed request and response headers.
+     */
+    public static final int REQUEST_HEADER_SIZE = 8;
+    public static final int RESPONSE_HEADER_SIZE = 5;
+
+    /**
+     * Largest value accepted in a single frame.
+     */
+    public static final int MAX_VALUE_LENGTH = 16 * 1024 * 1024;
+
+    /**
+     * Decodes one request frame from the buffer, starting at its position. If the frame is
+     * complete the position is advanced past it, otherwise the buffer is left untouched.
+     * @param buffer Buffer holding the received bytes, in read mode.
+     * @param request Reusable holder that receives the decoded request.
+     * @return True if a complete frame was decoded, false if more bytes are needed.
+     * @throws IllegalArgumentException If the frame is malformed.
+     */
+    public static boolean decode(ByteBuffer buffer, Request request) {
+        int start = buffer.position();
+        if (buffer.limit() - start < REQUEST_HEADER_SIZE) return false;
+
+        byte opcode = buffer.get(start);
+        byte flags = buffer.get(start + 1);
+        int keyLength = buffer.getShort(start + 2) & 0xFFFF;
+        int valueLength = buffer.getInt(start + 4);
+        if (opcode < OP_GET || opcode > OP_MIGRATE) {
+            throw new IllegalArgumentException("Unknown opcode " + opcode);
+        }
+        if (valueLength < 0 || valueLength > MAX_VALUE_LENGTH) {
+            throw new IllegalArgumentException("Invalid value length " + valueLength);
+        }
+        if (buffer.limit() - start < REQUEST_HEADER_SIZE + keyLength + valueLength) return false;
+
+        request.opcode = opcode;
+        request.flags = flags;
+        request.key = request.readString(buffer, start + REQUEST_HEADER_SIZE, keyLength);
+        request.value = request.readString(buffer, start + REQUEST_HEADER_SIZE + keyLength, valueLength);
+        buffer.position(start + REQUEST_HEADER_SIZE + keyLength + valueLength);
+        return true;
+    }
+
+    /**
+     * Executes a decoded request against the CommandHandler, from a client that is not a
+     * node of a cluster.
+     * @param request The decoded request.
+     * @param commandHandler CommandHandler object holding the key-value pairs.
+     * @param response Reusable holder that receives the status and value of the response.
+     */
+    public static void execute(Request request, CommandHandler commandHandler, Response response) {
+        execute(request, commandHandler, response, null);
+    }
+
+    /**
+     * Executes a decoded request against the CommandHandler. OP_REPLICATE and OP_MIGRATE are
+     * only executed in cluster mode, for a request sent by another node of the cluster.
+     * @param request The decoded request.
+     * @param commandHandler CommandHandler object holding the key-value pairs.
+     * @param response Reusable holder that receives the status and value of the response.
+     * @param source Address of the client that sent the request, or null if unknown.
+     */
+    public static void execute(Request request, CommandHandler commandHandler, Response response,
+                               InetAddress source) {
+        long start = System.nanoTime();
+        try {
+            executeOperation(request, commandHandler, response, source);
+        } catch (UncheckedIOException e) {
+            // The write-ahead log could not be written
+            response.set(STATUS_ERROR, "Operation failed: " + e.getCause().getMessage());
+        } catch (IllegalArgumentException e) {
+            // A malformed replicated change or moved key
+            response.set(STATUS_ERROR, e.getMessage());
+        }
+        // Text commands carried by OP_COMMAND are recorded by the CommandHandler itself
+        if (request.opcode != OP_COMMAND) {
+            commandHandler.metrics().record(operationName(request.opcode), System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * @return The name under which an operation is counted in the metrics.
+     */
+    private static String operationName(byte opcode) {
+        switch (opcode) {
+            case OP_GET:
+                return "GET";
+            case OP_PUT:
+                return "PUT";
+            case OP_DELETE:
+                return "DELETE";
+            case OP_REPLICATE:
+                return "REPLICATE";
+            case OP_MIGRATE:
+                return "MIGRATE";
+            default:
+                return "INVALID";
+        }
+    }
+
+    /**
+     * Runs the operation of a request.
+     */
+    private static void executeOperation(Request request, CommandHandler commandHandler, Response response,
+                                         InetAddress source) {
+        boolean forwarded = (request.flags & FLAG_FORWARDED) != 0;
+        Cluster cluster = commandHandler.cluster();
+        // In cluster mode, a key owned by another node is forwarded to it
+        if (cluster != null && !forwarded && request.opcode <= OP_DELETE && cluster.forward(request, response)) {
+            return;
+        }
+        // Changes of the primary and moved keys bypass routing, so only the nodes may send them
+        if ((request.opcode == OP_REPLICATE || request.opcode == OP_MIGRATE)
+                && (cluster == null || source == null || !cluster.isPeer(source))) {
+            response.set(STATUS_ERROR, "Only accepted from the nodes of the cluster.");
+            return;
+        }
+        switch (request.opcode) {
+            case OP_GET:
+                String value = commandHandler.lookup(request.key);
+                response.set(value != null ? STATUS_OK : STATUS_NOT_FOUND, value);
+                break;
+            case OP_PUT:
+                commandHandler.store(request.key, request.value);
+                response.set(STATUS_OK, null);
+                break;
+            case OP_DELETE:
+                boolean removed = commandHandler.remove(request.key);
+                response.set(removed ? STATUS_OK : STATUS_NOT_FOUND, null);
+                break;
+            case OP_COMMAND:
+                response.set(STATUS_OK, forwarded ? commandHandler.handleLocalRequest(request.value)
+                        : commandHandler.handleRequest(request.value));
+                break;
+            case OP_REPLICATE:
+                commandHandler.applyReplicated(request.flags, request.key, request.value);
+                response.set(STATUS_OK, null);
+                break;
+            case OP_MIGRATE:
+                long deadline = CommandHandler.parseDeadline(request.value);
+                boolean stored = commandHandler.migrate(request.key,
+                        CommandHandler.valueAfterDeadline(request.value), deadline);
+                response.set(stored ? STATUS_OK : STATUS_NOT_FOUND, null);
+                break;
+            default:
+                response.set(STATUS_ERROR, "Invalid Command.");
+        }
+    }
+
+    /**
+     * @param response The response to be encoded.
+     * @return Number of bytes the encoded response frame takes.
+     */
+    public static int encodedSize(Response response) {
+        return RESPONSE_HEADER_SIZE + (response.value == null ? 0 : response.value.length());
+    }
+
+    /**
+     * Encodes a response frame into the buffer, which must have encodedSize bytes remaining.
+     * @param buffer Buffer the frame is written to, in write mode.
+     * @param response The response to be encoded.
+     */
+    public static void encode(ByteBuffer buffer, Response response) {
+        String value = response.value;
+        int length = value == null ? 0 : value.length();
+        buffer.put(response.status);
+        buffer.putInt(length);
+        for (int i = 0; i < length; i++) {
+            buffer.put((byte) value.charAt(i));
+        }
+    }
+
+    /**
+     * Decodes one response frame from the buffer, starting at its position. Used by clients
+     * of the binary protocol. If the frame is complete the position is advanced past it,
+     * otherwise the buffer is left untouched.
+     * @param buffer Buffer holding the received bytes, in read mode.
+     * @param response Holder that receives the status and value; the value is null if empty.
+     * @return True if a complete frame was decoded, false if more bytes are needed.
+     * @throws IllegalArgumentException If the frame is malformed.
+     */
+    public static boolean decodeResponse(ByteBuffer buffer, Response response) {
+        int start = buffer.position();
+        if (buffer.limit() - start < RESPONSE_HEADER_SIZE) return false;
+
+        int length = buffer.getInt(start + 1);
+        if (length < 0 || length > MAX_VALUE_LENGTH) {
+            throw new IllegalArgumentException("Invalid value length " + length);
+        }
+        if (buffer.limit() - start < RESPONSE_HEADER_SIZE + length) return false;
+
+        byte[] bytes = new byte[length];
+        buffer.get(start + RESPONSE_HEADER_SIZE, bytes);
+        response.set(buffer.get(start), length == 0 ? null : new String(bytes, CommandHandler.CHARSET));
+        buffer.position(start + RESPONSE_HEADER_SIZE + length);
+        return true;
+    }
+
+    /**
+     * Encodes a request frame into the buffer. Used by clients of the binary protocol.
+     * @param buffer Buffer the frame is written to, in write mode.
+     * @param opcode Operation code of the request.
+     * @param flags Flags of the request, zero unless stated otherwise.
+     * @param key The key of the request.
+     * @param value The value of the request, or null if the operation takes none.
+     * @throws IllegalArgumentException If the key is longer than 65535 bytes.
+     */
+    public static void encodeRequest(ByteBuffer buffer, byte opcode, byte flags, String key, String value) {
+        if (key.length() > 0xFFFF) throw new IllegalArgumentException("Key too long");
+        int valueLength = value == null ? 0 : value.length();
+        buffer.put(opcode);
+        buffer.put(flags);
+        buffer.putShort((short) key.length());
+        buffer.putInt(valueLength);
+        for (int i = 0; i < key.length(); i++) {
+            buffer.put((byte) key.charAt(i));
+        }
+        for (int i = 0; i < valueLength; i++) {
+            buffer.put((byte) value.charAt(i));
+        }
+    }
+
+    /**
+     * Request is a reusable holder for a decoded request frame.
+     */
+    public static class Request {
+        public byte opcode;
+        public byte flags;
+        public String key;
+        public String value;
+
+        /**
+         * Scratch array used to copy bytes out of direct buffers.
+         */
+        private byte[] scratch = new byte[256];
+
+        /**
+         * Turns a range of the buffer into a String without moving its position.
+         */
+        private String readString(ByteBuffer buffer, int offset, int length) {
+            if (length == 0) return "";
+            if (buffer.hasArray()) {
+                return new String(buffer.array(), buffer.arrayOffset() + offset, length, CommandHandler.CHARSET);
+            }
+            if (scratch.length < length) {
+                scratch = new byte[Math.max(length, scratch.length * 2)];
+            }
+            buffer.get(offset, scratch, 0, length);
+            return new String(scratch, 0, length, CommandHandler.CHARSET);
+        }
+
+        /**
+         * @return A short description of the request used for logging.
+         */
+        @Override
+        public String toString() {
+            switch (opcode) {
+                case OP_GET:
+                    return "GET " + key;
+                case OP_PUT:
+                    return "PUT " + key + " (" + value.length() + " bytes)";
+                case OP_DELETE:
+                    return "DELETE " + key;
+                case OP_REPLICATE:
+                    return "REPLICATE " + key;
+                case OP_MIGRATE:
+                    return "MIGRATE " + key;
+                default:
+                    return value;
+            }
+        }
+    }
+
+    /**
+     * Response is a reusable holder for the status and value of a response frame.
+     */
+    public static class Response {
+        public byte status;
+        public String value;
+
+        /**
+         * Sets the status and value of the response.
+         */
+        public void set(byte status, String value) {
+            this.status = status;
+            this.value = value;
+        }
+
+        /**
+         * @return A short description of the response used for logging.
+         */
+        @Override
+        public String toString() {
+            String name = status == STATUS_OK ? "OK" : status == STATUS_NOT_FOUND ? "NOT_FOUND" : "ERROR";
+            return value == null ? name : name + " (" + value.length() + " bytes)";
+        }
+    }
+}
@@ -0,0 +1,246 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * BoundedKeyValueStore turns another storage engine into a cache with a memory budget. The
+ * budget counts the bytes of the keys and values, the number of entries, or both; once a
+ * write takes the store over its budget, keys chosen by the EvictionPolicy are removed until
+ * it fits again.
+ *
+ * Reads never take the policy lock: a hit only records its key in a striped, lossy read
+ * buffer, which is replayed into the policy by whichever thread next acquires the lock
+ * (a write, or a read that finds a buffer half full and the lock free). Under contention
+ * some accesses are dropped, which only makes the policy slightly less precise.
+ */
+public class BoundedKeyValueStore implements KeyValueStore {
+
+    private final KeyValueStore store;
+    private final EvictionPolicy policy;
+    private final long maxBytes;
+    private final long maxEntries;
+
+    /**
+     * Guards the policy and the size accounting.
+     */
+    private final ReentrantLock policyLock = new ReentrantLock();
+    private final ReadBuffer readBuffer = new ReadBuffer();
+    private volatile long bytes;
+    private long entries;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Told about every evicted key, or null.
+     */
+    private volatile Consumer<String> evictionListener;
+
+    /**
+     * A new BoundedKeyValueStore is constructed around an empty store.
+     * @param store The storage engine holding the key-value pairs.
+     * @param policy The policy choosing the keys to evict.
+     * @param maxBytes Budget for the key and value bytes, or 0 for no limit.
+     * @param maxEntries Budget for the number of keys, or 0 for no limit.
+     */
+    public BoundedKeyValueStore(KeyValueStore store, EvictionPolicy policy, long maxBytes, long maxEntries) {
+        this.store = store;
+        this.policy = policy;
+        this.maxBytes = maxBytes;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Sets the listener told about every evicted key. It is called by the writer that caused
+     * the eviction, with the policy lock held, so it must not block or use the store.
+     * @param listener Receives the evicted keys, or null for none.
+     */
+    public void setEvictionListener(Consumer<String> listener) {
+        this.evictionListener = listener;
+    }
+
+    @Override
+    public String get(String key) {
+        String value = store.get(key);
+        if (value == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        if (readBuffer.offer(key) && policyLock.tryLock()) {
+            try {
+                readBuffer.drainTo(policy);
+            } finally {
+                policyLock.unlock();
+            }
+        }
+        return value;
+    }
+
+    @Override
+    public String put(String key, String value) {
+        policyLock.lock();
+        try {
+            readBuffer.drainTo(policy);
+            String previous = store.put(key, value);
+            if (previous == null) {
+                entries++;
+                bytes += key.length() + value.length();
+                policy.onInsert(key);
+            } else {
+                bytes += value.length() - previous.length();
+                policy.onAccess(key);
+            }
+            evictIfNeeded();
+            return previous;
+        } finally {
+            policyLock.unlock();
+        }
+    }
+
+    @Override
+    public String remove(String key) {
+        policyLock.lock();
+        try {
+            String previous = store.remove(key);
+            if (previous != null) {
+                entries--;
+                bytes -= key.length() + previous.length();
+                policy.onRemove(key);
+            }
+            return previous;
+        } finally {
+            policyLock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        return store.size();
+    }
+
+    @Override
+    public void forEach(BiConsumer<String, String> action) {
+        store.forEach(action);
+    }
+
+    /**
+     * Evicts keys until the store fits its budget. Called with the policy lock held.
+     */
+    private void evictIfNeeded() {
+        while ((maxBytes > 0 && bytes > maxBytes) || (maxEntries > 0 && entries > maxEntries)) {
+            String key = policy.evict();
+            if (key == null) return;
+            String value = store.remove(key);
+            if (value != null) {
+                entries--;
+                bytes -= key.length() + value.length();
+                evictions.increment();
+                Consumer<String> listener = evictionListener;
+                if (listener != null) listener.accept(key);
+            }
+        }
+    }
+
+    /**
+     * @return The storage engine holding the key-value pairs.
+     */
+    public KeyValueStore delegate() {
+        return store;
+    }
+
+    /**
+     * @return Number of reads that found their key.
+     */
+    public long hits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return Number of reads that did not find their key.
+     */
+    public long misses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return Number of keys evicted to stay within the budget.
+     */
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return Number of key and value bytes currently stored.
+     */
+    public long bytes() {
+        return bytes;
+    }
+
+    /**
+     * ReadBuffer records the keys of reads in one of several ring buffers, picked by the
+     * reading thread, so that concurrent readers rarely touch the same buffer. A read is
+     * dropped when its buffer is full or when another reader wins the race for a slot.
+     */
+    private static class ReadBuffer {
+        private static final int STRIPES = 16;
+        private static final int SIZE = 128;
+
+        private final Stripe[] stripes = new Stripe[STRIPES];
+
+        ReadBuffer() {
+            for (int i = 0; i < STRIPES; i++) {
+                stripes[i] = new Stripe();
+            }
+        }
+
+        /**
+         * Records a read.
+         * @param key The key that was read.
+         * @return True if the buffer of the thread is half full and should be drained.
+         */
+        boolean offer(String key) {
+            int hash = (int) Thread.currentThread().getId() * 0x9E3779B9;
+            Stripe stripe = stripes[(hash >>> 16) & (STRIPES - 1)];
+            long tail = stripe.tail.get();
+            long size = tail - stripe.head;
+            if (size >= SIZE) return true;
+            if (stripe.tail.compareAndSet(tail, tail + 1)) {
+                stripe.slots.lazySet((int) (tail & (SIZE - 1)), key);
+            }
+            return size + 1 >= SIZE / 2;
+        }
+
+        /**
+         * Replays the recorded reads into the policy. Called with the policy lock held.
+         */
+        void drainTo(EvictionPolicy policy) {
+            for (Stripe stripe : stripes) {
+                long head = stripe.head;
+                long tail = stripe.tail.get();
+                for (; head < tail; head++) {
+                    int index = (int) (head & (SIZE - 1));
+                    String key = stripe.slots.get(index);
+                    // The reader that claimed this slot has not stored its key yet
+                    if (key == null) break;
+                    stripe.slots.lazySet(index, null);
+                    policy.onAccess(key);
+                }
+                stripe.head = head;
+            }
+        }
+
+        /**
+         * Stripe is a ring buffer with many writers and a single reader, the lock holder.
+         */
+        private static class Stripe {
+            final AtomicReferenceArray<String> slots = new AtomicReferenceArray<>(SIZE);
+            final AtomicLong tail = new AtomicLong();
+            volatile long head;
+        }
+    }
+}
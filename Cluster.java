@@ -0,0 +1,674 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cluster runs a TCP server as one node of a sharded cluster. The keys are spread over the
+ * nodes by a consistent-hash ring with virtual nodes, and every key is held by --replicas
+ * nodes: its primary and the followers that come next on the ring.
+ *
+ * Any node accepts any request. A request for a key owned by another node is forwarded to
+ * the key's primary with the FORWARDED flag of the binary protocol, and the primary executes
+ * it without routing it again. Every change executed by a node is then sent to the other
+ * owners of the key as an OP_REPLICATE frame carrying the write-ahead log record. The
+ * records are queued under the key's stripe lock on a single connection per follower, and
+ * written by a thread of that connection, so a follower applies the changes of a key in the
+ * order of the primary while a slow follower never holds up the lock. With
+ * --replication=sync (the default) a write is only answered once its followers have
+ * acknowledged it or failed to; with async it is answered at once.
+ *
+ * Membership changes move data incrementally: only the keys whose owners change are pushed,
+ * by one of their previous owners, as OP_MIGRATE frames that do not overwrite newer values.
+ * A joining node is announced to every member, and each member keeps routing by its old ring,
+ * while replicating changes to the new owners too, until it has pushed its keys. A removed
+ * node is taken off the ring at once, and the surviving owners copy its keys to their new
+ * owners. Failures are not detected automatically: a dead node is removed with CLUSTER REMOVE.
+ */
+public class Cluster {
+
+    /**
+     * Connections of the pool used to forward requests to each node.
+     */
+    private static final int FORWARD_CONNECTIONS = 4;
+
+    /**
+     * Keys being moved to other nodes whose acknowledgment is awaited at a time.
+     */
+    private static final int MAX_MIGRATIONS_IN_FLIGHT = 1024;
+
+    /**
+     * Time a new node gets to accept connections before keys are moved to it.
+     */
+    private static final long CONNECT_WAIT_MILLIS = 10_000;
+
+    private static final String USAGE = "Sample Usage: CLUSTER NODES | OWNERS <key> | REMOVE <host:port> | LEAVE";
+
+    private final String self;
+    private final int replicas;
+    private final int virtualNodes;
+    private final boolean syncReplication;
+    private final long timeoutMillis;
+    private final CommandHandler commandHandler;
+    private final AsyncLogger log;
+
+    /**
+     * Ring routing the requests, replaced on every membership change.
+     */
+    private volatile HashRing ring;
+
+    /**
+     * Ring being moved to while keys are pushed to a joining node, or null. Changes are
+     * replicated to the owners of both rings meanwhile.
+     */
+    private volatile HashRing pending;
+
+    /**
+     * Connections to the other nodes, opened on first use.
+     */
+    private final ConcurrentHashMap<String, Peer> peers = new ConcurrentHashMap<>();
+
+    /**
+     * Acknowledgments of the changes replicated by this thread, awaited before the client is
+     * answered. Only used with synchronous replication.
+     */
+    private final ThreadLocal<List<CompletableFuture<?>>> unacknowledged = ThreadLocal.withInitial(ArrayList::new);
+
+    /**
+     * Applies the membership changes one after the other, moving the keys of each.
+     */
+    private final ExecutorService rebalancer = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "cluster-rebalance");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * A new Cluster is constructed.
+     * @param self Name of this node, as host:port, by which the other nodes reach it.
+     * @param members Initial nodes of the ring; this node is added if missing.
+     * @param replicas Number of copies of every key, the primary included.
+     * @param virtualNodes Number of points of every node on the ring.
+     * @param syncReplication True to answer writes only once the followers acknowledged them.
+     * @param timeoutMillis Time a request to another node may take.
+     * @param commandHandler The store of this node.
+     * @param log Logger for membership changes and replication failures.
+     */
+    public Cluster(String self, List<String> members, int replicas, int virtualNodes, boolean syncReplication,
+                   long timeoutMillis, CommandHandler commandHandler, AsyncLogger log) {
+        this.self = self;
+        this.replicas = replicas;
+        this.virtualNodes = virtualNodes;
+        this.syncReplication = syncReplication;
+        this.timeoutMillis = timeoutMillis;
+        this.commandHandler = commandHandler;
+        this.log = log;
+        this.ring = new HashRing(members, virtualNodes).with(self);
+        connectPeers();
+    }
+
+    /**
+     * Builds the Cluster described by the server options, or returns null if the server runs
+     * alone. --cluster=HOST:PORT,... lists the initial nodes, or --join=HOST:PORT joins a
+     * running cluster through one of its nodes. --node=HOST:PORT names this node (default
+     * 127.0.0.1 and the server port), --replicas=N sets the copies of every key (default 2),
+     * --vnodes=N the points of every node on the ring (default 128), --replication=sync|async
+     * whether writes wait for the followers (default sync), and --peer-timeout-ms=N the time
+     * a request to another node may take (default 2000).
+     * @param options Command-line options of the server.
+     * @param commandHandler The store of this node.
+     * @param log Logger for membership changes and replication failures.
+     * @return The Cluster, already joining if --join was given, or null.
+     * @throws IllegalArgumentException If an option has an invalid value.
+     */
+    public static Cluster fromOptions(ServerOptions options, CommandHandler commandHandler, AsyncLogger log) {
+        String members = options.get("cluster", null);
+        String seed = options.get("join", null);
+        if (members == null && seed == null) return null;
+        if (options.has("nio")) {
+            // A forwarding event loop would stall every connection it serves, and two nodes
+            // forwarding to each other could wait on each other's loops
+            throw new IllegalArgumentException("Cluster mode requires the thread-per-connection server, not --nio");
+        }
+        String self = options.get("node", "127.0.0.1:" + options.positional().get(0));
+        List<String> nodes = new ArrayList<>();
+        if (members != null) {
+            for (String node : members.split(",")) {
+                nodes.add(checkNode(node.trim()));
+            }
+        }
+        checkNode(self);
+        int replicas = options.getInt("replicas", 2);
+        int virtualNodes = options.getInt("vnodes", 128);
+        String replication = options.get("replication", "sync");
+        int timeoutMillis = options.getInt("peer-timeout-ms", 2000);
+        if (replicas < 1) throw new IllegalArgumentException("--replicas must be at least 1");
+        if (virtualNodes < 1) throw new IllegalArgumentException("--vnodes must be at least 1");
+        if (timeoutMillis < 1) throw new IllegalArgumentException("--peer-timeout-ms must be at least 1");
+        if (!replication.equals("sync") && !replication.equals("async")) {
+            throw new IllegalArgumentException("Unknown replication mode: " + replication);
+        }
+
+        Cluster cluster = new Cluster(self, nodes, replicas, virtualNodes, replication.equals("sync"),
+                timeoutMillis, commandHandler, log);
+        if (seed != null) {
+            String seedNode = checkNode(seed);
+            Thread thread = new Thread(() -> cluster.join(seedNode), "cluster-join");
+            thread.setDaemon(true);
+            thread.start();
+        } else {
+            log.info("Cluster node " + self + " with members " + cluster.ring.nodes());
+        }
+        return cluster;
+    }
+
+    /**
+     * Checks that a node name has the form host:port.
+     * @return The node name.
+     * @throws IllegalArgumentException If it does not.
+     */
+    private static String checkNode(String node) {
+        int colon = node.lastIndexOf(':');
+        try {
+            if (colon > 0) {
+                int port = Integer.parseInt(node.substring(colon + 1));
+                if (port > 0 && port < 65536) return node;
+            }
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        throw new IllegalArgumentException("Invalid node " + node + ", expected host:port");
+    }
+
+    /**
+     * Routes a request line to the node owning its keys.
+     * @param text The request line received from a client.
+     * @return The response of the owning node, or null if the request is executed by this node.
+     */
+    public String route(String text) {
+        String[] parts = text.split(" ", 2);
+        if (parts.length < 2) return null;
+        String node;
+        switch (parts[0]) {
+            case "PUT":
+            case "GET":
+            case "DELETE":
+            case "TTL":
+            case "PERSIST":
+            case "INCR":
+            case "DECR":
+            case "PUTIFABSENT":
+            case "APPEND":
+            case "CAS":
+                int space = parts[1].indexOf(' ');
+                node = ring.primary(space < 0 ? parts[1] : parts[1].substring(0, space));
+                break;
+            case "MPUT":
+            case "MGET":
+            case "MDELETE":
+                node = batchOwner(parts[0], parts[1].split(" "));
+                if (node == null) return "Keys of a batch command must belong to the same node.";
+                break;
+            default:
+                return null;
+        }
+        if (node.equals(self)) return null;
+        try {
+            BinaryProtocol.Response response = peer(node).forwarder()
+                    .request(BinaryProtocol.OP_COMMAND, BinaryProtocol.FLAG_FORWARDED, "", text).join();
+            return response.value == null ? "" : response.value;
+        } catch (CompletionException e) {
+            return failure(node, e);
+        }
+    }
+
+    /**
+     * @return The primary shared by all keys of a batch command, or null if they have several.
+     */
+    private String batchOwner(String command, String[] args) {
+        HashRing current = ring;
+        int step = command.equals("MPUT") ? 2 : 1;
+        String owner = current.primary(args[0]);
+        for (int i = step; i < args.length; i += step) {
+            if (!current.primary(args[i]).equals(owner)) return null;
+        }
+        return owner;
+    }
+
+    /**
+     * @return True if this node is the primary of the key.
+     */
+    public boolean isPrimary(String key) {
+        return self.equals(ring.primary(key));
+    }
+
+    /**
+     * Forwards a GET, PUT or DELETE frame to the primary of its key.
+     * @param request The decoded request.
+     * @param response Receives the response of the primary.
+     * @return True if the request was forwarded, false if it is executed by this node.
+     */
+    public boolean forward(BinaryProtocol.Request request, BinaryProtocol.Response response) {
+        String node = ring.primary(request.key);
+        if (node.equals(self)) return false;
+        try {
+            BinaryProtocol.Response forwarded = peer(node).forwarder()
+                    .request(request.opcode, BinaryProtocol.FLAG_FORWARDED, request.key, request.value).join();
+            response.set(forwarded.status, forwarded.value);
+        } catch (CompletionException e) {
+            response.set(BinaryProtocol.STATUS_ERROR, failure(node, e));
+        }
+        return true;
+    }
+
+    /**
+     * Checks whether a client is another node of the cluster, which may send replicated
+     * changes and moved keys.
+     * @param address Address of the client.
+     * @return True if one of the nodes this node knows resolves to the address.
+     */
+    public boolean isPeer(InetAddress address) {
+        for (Peer peer : peers.values()) {
+            for (InetAddress known : peer.addresses()) {
+                if (known.equals(address)) return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return The response to a request another node could not execute.
+     */
+    private static String failure(String node, CompletionException e) {
+        return "Node " + node + " failed: " + e.getCause().getMessage();
+    }
+
+    /**
+     * Sends a change of a key to its other owners. Called under the key's stripe lock, right
+     * after the change was logged, so the followers receive the changes of a key in order.
+     * The change is only queued here, without waiting for the network.
+     * @param op Write-ahead log operation of the change.
+     * @param key The changed key.
+     * @param value The value of the log record, or null.
+     */
+    public void replicate(byte op, String key, String value) {
+        // Read before the ring: a joining node is only dropped from pending once it is on the ring
+        HashRing next = pending;
+        List<String> owners = ring.owners(key, replicas);
+        if (next != null) {
+            for (String node : next.owners(key, replicas)) {
+                if (!owners.contains(node)) owners.add(node);
+            }
+        }
+        for (String node : owners) {
+            if (node.equals(self)) continue;
+            Peer peer = peer(node);
+            CompletableFuture<?> ack = peer.replicator.request(BinaryProtocol.OP_REPLICATE, op, key, value)
+                    .handle((response, e) -> {
+                        if (e != null) peer.warn("Replication to " + node + " failed: " + e.getMessage());
+                        return null;
+                    });
+            if (syncReplication) unacknowledged.get().add(ack);
+        }
+    }
+
+    /**
+     * Waits until the followers acknowledged the changes this thread replicated, or failed to.
+     * Every request to another node fails after the peer timeout, so this never blocks longer.
+     */
+    public void awaitReplication() {
+        List<CompletableFuture<?>> acks = unacknowledged.get();
+        if (acks.isEmpty()) return;
+        for (CompletableFuture<?> ack : acks) {
+            ack.join();
+        }
+        acks.clear();
+    }
+
+    /**
+     * Executes a CLUSTER command.
+     * @param args The subcommand and its argument.
+     * @return A message depicting the result of the operation.
+     */
+    public String command(String[] args) {
+        if (args.length < 1) return USAGE;
+        switch (args[0]) {
+            case "NODES":
+                return String.join(" ", ring.nodes());
+            case "OWNERS":
+                return args.length < 2 ? USAGE : String.join(" ", ring.owners(args[1], replicas));
+            case "MEET":
+                return args.length < 2 ? USAGE : meet(args[1]);
+            case "FORGET":
+                return args.length < 2 ? USAGE : forget(args[1]);
+            case "REMOVE":
+                return args.length < 2 ? USAGE : remove(args[1]);
+            case "LEAVE":
+                return remove(self);
+            default:
+                return USAGE;
+        }
+    }
+
+    /**
+     * Joins a running cluster: fetches its members from the seed node, then announces this
+     * node to each of them, so they push the keys it now owns. Retries until the seed answers.
+     * @param seed A node of the cluster.
+     */
+    private void join(String seed) {
+        long delay = 100;
+        String members;
+        while (true) {
+            try (KeyValueClient client = new KeyValueClient(host(seed), port(seed), 1, timeoutMillis)) {
+                members = client.command("CLUSTER NODES").join();
+                for (String node : members.split(" ")) {
+                    checkNode(node);
+                }
+                break;
+            } catch (IOException | CompletionException | IllegalArgumentException e) {
+                log.warning("Could not join the cluster through " + seed + ": " + e.getMessage());
+            }
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                return;
+            }
+            delay = Math.min(delay * 2, 5000);
+        }
+
+        List<String> nodes = Arrays.asList(members.split(" "));
+        ring = new HashRing(nodes, virtualNodes).with(self);
+        connectPeers();
+        for (String node : nodes) {
+            if (node.equals(self)) continue;
+            String response = control(node, "CLUSTER MEET " + self);
+            if (!response.equals("Operation successful.")) {
+                log.warning("Node " + node + " did not accept this node: " + response);
+            }
+        }
+        log.info("Cluster node " + self + " joined members " + ring.nodes());
+    }
+
+    /**
+     * Adds a node announced by itself. The keys it now owns are pushed to it in the background,
+     * and requests are routed to it once they are.
+     * @param node The joining node.
+     * @return A message depicting the result of the operation.
+     */
+    private String meet(String node) {
+        checkNode(node);
+        // Known at once, so that the changes the new node replicates here are accepted
+        peer(node);
+        rebalancer.execute(() -> {
+            HashRing before = ring;
+            if (before.contains(node)) return;
+            HashRing after = before.with(node);
+            pending = after;
+            Peer peer = peer(node);
+            peer.awaitOpen(peer.replicator, CONNECT_WAIT_MILLIS);
+            move(before, after);
+            ring = after;
+            pending = null;
+            dropUnowned();
+            log.info("Node " + node + " joined, members " + after.nodes());
+        });
+        return "Operation successful.";
+    }
+
+    /**
+     * Removes a node from the ring of this node only. Its keys are copied to their new owners
+     * in the background.
+     * @param node The removed node.
+     * @return A message depicting the result of the operation.
+     */
+    private String forget(String node) {
+        rebalancer.execute(() -> {
+            HashRing before = ring;
+            if (!before.contains(node)) return;
+            HashRing after = before.without(node);
+            ring = after;
+            move(before, after);
+            dropUnowned();
+            Peer peer = peers.remove(node);
+            if (peer != null) peer.close();
+            log.info("Node " + node + " left, members " + after.nodes());
+        });
+        return "Operation successful.";
+    }
+
+    /**
+     * Removes a node from the cluster: every other member forgets it, then this node does. A
+     * node removing itself keeps running as a router without keys.
+     * @param node The removed node.
+     * @return A message depicting the result of the operation.
+     */
+    private String remove(String node) {
+        HashRing current = ring;
+        if (!current.contains(node)) return "Unknown node " + node + ".";
+        if (current.nodes().size() == 1) return "The last node cannot leave the cluster.";
+        for (String member : current.nodes()) {
+            if (member.equals(self) || member.equals(node)) continue;
+            String response = control(member, "CLUSTER FORGET " + node);
+            if (!response.equals("Operation successful.")) {
+                log.warning("Node " + member + " did not forget " + node + ": " + response);
+            }
+        }
+        forget(node);
+        return "Operation successful.";
+    }
+
+    /**
+     * Sends a text command to another node and waits for its response.
+     * @return The response, or a message if the node could not be reached.
+     */
+    private String control(String node, String command) {
+        try {
+            return peer(node).forwarder().command(command).join();
+        } catch (CompletionException e) {
+            return failure(node, e);
+        }
+    }
+
+    /**
+     * Pushes the keys of this node to the owners they gain in the new ring. A key is pushed by
+     * its previous primary, or by its first previous owner still on the ring if the primary
+     * left, so that keys of a removed node are copied by a surviving follower. The value is
+     * read and queued under the key's stripe lock, so it is ordered with the replicated changes
+     * of the key on the follower's connection.
+     * @param before The ring the keys were placed by.
+     * @param after The ring the keys move to.
+     */
+    private void move(HashRing before, HashRing after) {
+        List<String> keys = new ArrayList<>();
+        commandHandler.forEachEntry((key, value, deadline) -> {
+            if (pusher(before.owners(key, replicas), after).equals(self)) keys.add(key);
+        });
+
+        long start = System.nanoTime();
+        Semaphore window = new Semaphore(MAX_MIGRATIONS_IN_FLIGHT);
+        AtomicLong moved = new AtomicLong();
+        AtomicLong failed = new AtomicLong();
+        for (String key : keys) {
+            List<String> previous = before.owners(key, replicas);
+            for (String node : after.owners(key, replicas)) {
+                if (previous.contains(node) || node.equals(self)) continue;
+                window.acquireUninterruptibly();
+                Peer peer = peer(node);
+                boolean sent = commandHandler.withEntry(key, (k, value, deadline) ->
+                        peer.replicator.request(BinaryProtocol.OP_MIGRATE, (byte) 0, key, deadline + " " + value)
+                                .whenComplete((response, e) -> {
+                                    (e == null ? moved : failed).incrementAndGet();
+                                    window.release();
+                                }));
+                if (!sent) window.release();
+            }
+        }
+        // Wait for the acknowledgments still in flight
+        window.acquireUninterruptibly(MAX_MIGRATIONS_IN_FLIGHT);
+        window.release(MAX_MIGRATIONS_IN_FLIGHT);
+        if (moved.get() > 0 || failed.get() > 0) {
+            log.info("Pushed " + moved.get() + " keys in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+        }
+        if (failed.get() > 0) {
+            log.warning(failed.get() + " keys could not be moved to their new owners");
+        }
+    }
+
+    /**
+     * @return The node that pushes a key to its new owners.
+     */
+    private String pusher(List<String> previous, HashRing after) {
+        String primary = previous.get(0);
+        if (primary.equals(self) || after.contains(primary)) return primary;
+        for (String node : previous) {
+            if (after.contains(node)) return node;
+        }
+        return primary;
+    }
+
+    /**
+     * Removes the keys this node no longer owns. They are not replicated: their owners keep them.
+     */
+    private void dropUnowned() {
+        HashRing current = ring;
+        List<String> keys = new ArrayList<>();
+        commandHandler.forEachEntry((key, value, deadline) -> {
+            if (!current.owners(key, replicas).contains(self)) keys.add(key);
+        });
+        for (String key : keys) {
+            commandHandler.discard(key);
+        }
+        if (!keys.isEmpty()) {
+            log.info("Dropped " + keys.size() + " keys owned by other nodes");
+        }
+    }
+
+    /**
+     * Starts connecting to every other node of the ring, so that the first changes replicated
+     * to them do not fail for lack of a connection.
+     */
+    private void connectPeers() {
+        for (String node : ring.nodes()) {
+            if (!node.equals(self)) peer(node);
+        }
+    }
+
+    /**
+     * @return The connections to a node, created on first use.
+     */
+    private Peer peer(String node) {
+        Peer peer = peers.get(node);
+        return peer != null ? peer : peers.computeIfAbsent(node, Peer::new);
+    }
+
+    private static String host(String node) {
+        return node.substring(0, node.lastIndexOf(':'));
+    }
+
+    private static int port(String node) {
+        return Integer.parseInt(node.substring(node.lastIndexOf(':') + 1));
+    }
+
+    /**
+     * Peer holds the connections to another node. They are opened in the background and
+     * reopened with backoff whenever they fail.
+     */
+    private class Peer {
+        /**
+         * Pool used to forward requests and control commands.
+         */
+        final KeyValueClient forwarder;
+
+        /**
+         * Single connection carrying the replicated changes and moved keys, in order. They are
+         * written by its writer thread, since they are queued under stripe locks.
+         */
+        final KeyValueClient replicator;
+
+        /**
+         * Time of the last failure logged, so that an unreachable node does not flood the log.
+         */
+        private final AtomicLong lastWarning = new AtomicLong();
+
+        private final String host;
+
+        /**
+         * Addresses the host of the node resolves to, empty until it can be resolved.
+         */
+        private volatile InetAddress[] addresses;
+
+        Peer(String node) {
+            host = host(node);
+            addresses = resolve();
+            forwarder = KeyValueClient.connectInBackground(host, port(node), FORWARD_CONNECTIONS, timeoutMillis);
+            replicator = KeyValueClient.connectInBackground(host, port(node), 1, timeoutMillis, true);
+        }
+
+        /**
+         * @return The addresses of the node, resolved again while none are known.
+         */
+        InetAddress[] addresses() {
+            InetAddress[] known = addresses;
+            if (known.length == 0) addresses = known = resolve();
+            return known;
+        }
+
+        private InetAddress[] resolve() {
+            try {
+                return InetAddress.getAllByName(host);
+            } catch (UnknownHostException e) {
+                return new InetAddress[0];
+            }
+        }
+
+        /**
+         * @return The forwarding pool, once a connection is open or the peer timeout elapsed.
+         */
+        KeyValueClient forwarder() {
+            awaitOpen(forwarder, timeoutMillis);
+            return forwarder;
+        }
+
+        /**
+         * Waits until a connection of the client is open.
+         * @param client The forwarder or the replicator of this peer.
+         * @param millis Longest time to wait.
+         */
+        void awaitOpen(KeyValueClient client, long millis) {
+            long deadline = System.currentTimeMillis() + millis;
+            while (client.openConnections() == 0 && System.currentTimeMillis() < deadline) {
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Logs a failure, at most once per second.
+         */
+        void warn(String message) {
+            long now = System.currentTimeMillis();
+            long last = lastWarning.get();
+            if (now - last >= 1000 && lastWarning.compareAndSet(last, now)) {
+                log.warning(message);
+            }
+        }
+
+        void close() {
+            forwarder.close();
+            replicator.close();
+        }
+    }
+}
@@ -0,0 +1,136 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * CommandExecutor runs the commands received by several transports on one fixed pool of
+ * threads, so that the transports share the CPU and the store instead of each bringing
+ * threads of its own. The I/O threads of a transport only read and decode requests, and hand
+ * them over to the lane of their transport.
+ *
+ * Every lane is a bounded queue, and the workers take the next command from the lanes in
+ * turn, one command per lane, skipping empty ones. A transport that floods its lane therefore
+ * gets at most its share of the workers while the other lanes have commands, and once its lane
+ * is full, it is pushed back: blocking I/O threads wait for room, which stops them reading,
+ * and datagram receivers drop what does not fit.
+ */
+public class CommandExecutor {
+
+    private final List<Lane> lanes = new ArrayList<>();
+    private final int threads;
+    private final AsyncLogger log;
+
+    /**
+     * Number of commands queued over all lanes; a worker takes a permit per command.
+     */
+    private final Semaphore queued = new Semaphore(0);
+
+    /**
+     * Lane the next worker starts looking at, advanced on every take so the lanes take turns.
+     */
+    private final AtomicInteger nextLane = new AtomicInteger();
+
+    /**
+     * A new CommandExecutor is constructed without lanes or running threads.
+     * @param threads Number of worker threads.
+     * @param log Logger for commands failing unexpectedly.
+     */
+    public CommandExecutor(int threads, AsyncLogger log) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("--executor-threads must be at least 1");
+        }
+        this.threads = threads;
+        this.log = log;
+    }
+
+    /**
+     * Adds the lane of a transport. Lanes are added before the executor starts.
+     * @param capacity Largest number of commands waiting in the lane.
+     * @return The lane, to which the transport submits its commands.
+     */
+    public Lane addLane(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("--queue-size must be at least 1");
+        }
+        Lane lane = new Lane(capacity);
+        lanes.add(lane);
+        return lane;
+    }
+
+    /**
+     * Starts the worker threads.
+     */
+    public void start() {
+        Lane[] taken = lanes.toArray(new Lane[0]);
+        for (int i = 0; i < threads; i++) {
+            Thread thread = new Thread(() -> work(taken), "executor-" + (i + 1));
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Worker loop: waits for a command in any lane and runs it.
+     * @param lanes The lanes of the executor.
+     */
+    private void work(Lane[] lanes) {
+        while (true) {
+            queued.acquireUninterruptibly();
+            Runnable command = take(lanes);
+            try {
+                command.run();
+            } catch (RuntimeException e) {
+                log.severe("Command failed: " + e);
+            }
+        }
+    }
+
+    /**
+     * Takes the next command, looking at the lanes in turn from the one after the lane of the
+     * previous take. The caller holds a permit, so a command is queued, although another worker
+     * may take it first from the lane it was found in; the search then goes on.
+     */
+    private Runnable take(Lane[] lanes) {
+        while (true) {
+            int start = nextLane.getAndIncrement();
+            for (int i = 0; i < lanes.length; i++) {
+                Runnable command = lanes[Math.floorMod(start + i, lanes.length)].queue.poll();
+                if (command != null) return command;
+            }
+        }
+    }
+
+    /**
+     * Lane is the bounded queue of the commands of one transport.
+     */
+    public final class Lane {
+        private final ArrayBlockingQueue<Runnable> queue;
+
+        private Lane(int capacity) {
+            this.queue = new ArrayBlockingQueue<>(capacity);
+        }
+
+        /**
+         * Queues a command, waiting for room if the lane is full.
+         * @param command The command to be run by a worker.
+         * @throws InterruptedException If the thread is interrupted while waiting.
+         */
+        public void put(Runnable command) throws InterruptedException {
+            queue.put(command);
+            queued.release();
+        }
+
+        /**
+         * Queues a command unless the lane is full.
+         * @param command The command to be run by a worker.
+         * @return False if the lane is full and the command was not queued.
+         */
+        public boolean offer(Runnable command) {
+            if (!queue.offer(command)) return false;
+            queued.release();
+            return true;
+        }
+    }
+}
@@ -1,52 +1,1135 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * CommandHandler class is an easy to use Command-Line Interface for managing 
  * the key-value pairs for both TCP and UDP Clients.
  */
-public class CommandHandler {
+public class CommandHandler implements AutoCloseable {
 
     /**
-     * keyValueStore is the HashMap that stores the key-value pairs.
+     * Charset used by the servers to turn request bytes into Strings and back. It maps
+     * every byte to exactly one char, so any byte sequence sent by a client is stored
+     * and returned unchanged, whichever protocol it was written with.
      */
-    private HashMap<String, String> keyValueStore;
+    public static final Charset CHARSET = StandardCharsets.ISO_8859_1;
 
     /**
-     * A new CommandHandler is constructed with an empty keyValueStore.
+     * keyValueStore is the storage engine that stores the key-value pairs.
+     * It is shared by every client thread, so it must be thread-safe.
+     */
+    private final KeyValueStore keyValueStore;
+
+    /**
+     * writeAheadLog records every PUT and DELETE, or is null if persistence is disabled.
+     */
+    private final WriteAheadLog writeAheadLog;
+
+    /**
+     * Locks that order the changes of the same key: the store update, the expiry timer and
+     * the log record, so that replaying the log gives the same result as the store.
+     */
+    private final Object[] stripes = new Object[256];
+
+    /**
+     * Sorted index of the keys used by SCAN and RANGE, or null if the store has none.
+     */
+    private final OrderedKeyValueStore orderedIndex;
+
+    /**
+     * Response to an unknown command.
+     */
+    private static final String INVALID_COMMAND = "Invalid Command.";
+
+    /**
+     * Response to a value longer than BinaryProtocol.MAX_VALUE_LENGTH, which the write-ahead
+     * log and the binary protocol do not accept.
+     */
+    private static final String VALUE_TOO_LARGE = "Value too large.";
+
+    /**
+     * Number of entries returned by SCAN and RANGE without LIMIT, and the largest LIMIT accepted.
+     */
+    private static final int DEFAULT_SCAN_LIMIT = 100;
+    private static final int MAX_SCAN_LIMIT = 10_000;
+
+    /**
+     * Size in chars after which a SCAN or RANGE response ends its page early, so that large
+     * values cannot make a single response grow without bound.
+     */
+    private static final int MAX_SCAN_RESPONSE = 32 * 1024;
+
+    /**
+     * Keys visited per returned entry after which a SCAN or RANGE page ends, so that a page
+     * skipping many expired keys, or keys of other cluster nodes, stays short.
+     */
+    private static final int SCAN_VISITS_PER_ENTRY = 10;
+
+    /**
+     * Counters of the commands executed and of the traffic of the servers using this handler.
+     */
+    private final Metrics metrics = new Metrics();
+
+    /**
+     * Connections watching keys, told about every change recorded by this handler.
+     */
+    private final WatchRegistry watches = new WatchRegistry();
+
+    /**
+     * Duration of a tick of the timing wheel, the resolution of the active expiry.
+     */
+    private static final long EXPIRY_TICK_MILLIS = 10;
+
+    /**
+     * Expiry timers of the keys that have a TTL. The timer of a key is only replaced or
+     * removed under the key's stripe lock, except when the key is evicted.
+     */
+    private final ConcurrentHashMap<String, TimingWheel.Timer> timers = new ConcurrentHashMap<>();
+
+    /**
+     * Wheel firing the timers, advanced by a background thread every tick.
+     */
+    private final TimingWheel timingWheel = new TimingWheel(EXPIRY_TICK_MILLIS);
+
+    /**
+     * Thread advancing the timing wheels of every CommandHandler of the process, created
+     * along with the first task. Guarded by CommandHandler.class.
+     */
+    private static ScheduledThreadPoolExecutor expiryScheduler;
+
+    /**
+     * Task advancing the timing wheel of this handler, scheduled when the first key gets a TTL
+     * so that handlers without TTLs cost no thread time, and cancelled by close. Guarded by
+     * expiryLock.
+     */
+    private volatile ScheduledFuture<?> expiryTask;
+    private boolean closed;
+    private final Object expiryLock = new Object();
+
+    /**
+     * Routing and replication of a node of a cluster, or null if the server runs alone. Set
+     * before the server starts accepting requests.
+     */
+    private Cluster cluster;
+
+    /**
+     * A new CommandHandler is constructed with an empty ConcurrentKeyValueStore.
      */
     public CommandHandler() {
-        this.keyValueStore = new HashMap<>();
+        this(new ConcurrentKeyValueStore());
+    }
+
+    /**
+     * A new CommandHandler is constructed on top of the given storage engine.
+     * @param keyValueStore The storage engine to be used for the key-value pairs.
+     */
+    public CommandHandler(KeyValueStore keyValueStore) {
+        this(keyValueStore, null);
+    }
+
+    /**
+     * A new CommandHandler is constructed on top of the given storage engine,
+     * recording every change in the write-ahead log.
+     * @param keyValueStore The storage engine to be used for the key-value pairs.
+     * @param writeAheadLog The log for PUT and DELETE, already replayed into the store, or null.
+     */
+    public CommandHandler(KeyValueStore keyValueStore, WriteAheadLog writeAheadLog) {
+        this(keyValueStore, writeAheadLog, Map.of());
+    }
+
+    /**
+     * A new CommandHandler is constructed on top of the given storage engine, with expiry
+     * deadlines for some of its keys. Keys are expired in the background from then on, until
+     * the handler is closed.
+     * @param keyValueStore The storage engine to be used for the key-value pairs.
+     * @param writeAheadLog The log for PUT and DELETE, already replayed into the store, or null.
+     * @param deadlines Expiry deadlines of keys of the store, in milliseconds since the epoch.
+     */
+    public CommandHandler(KeyValueStore keyValueStore, WriteAheadLog writeAheadLog, Map<String, Long> deadlines) {
+        this.keyValueStore = keyValueStore;
+        this.writeAheadLog = writeAheadLog;
+        this.orderedIndex = find(keyValueStore, OrderedKeyValueStore.class);
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Object();
+        }
+        deadlines.forEach(this::setDeadline);
+        BoundedKeyValueStore cache = find(keyValueStore, BoundedKeyValueStore.class);
+        if (cache != null) cache.setEvictionListener(this::evicted);
+    }
+
+    /**
+     * Stops expiring keys in the background, so that the handler and its store can be
+     * collected once they are no longer used. Expired keys are still removed when they are read.
+     */
+    @Override
+    public void close() {
+        synchronized (expiryLock) {
+            closed = true;
+            if (expiryTask != null) expiryTask.cancel(false);
+        }
+    }
+
+    /**
+     * Builds the CommandHandler described by the server options. --engine=heap|offheap
+     * selects the storage engine (default heap), and --max-memory=SIZE or --max-entries=N
+     * bound it as a cache evicting keys by --eviction=lru|lfu|tinylfu. --ordered-index keeps
+     * the keys sorted for SCAN and RANGE. With --wal-dir=DIR the
+     * snapshot and write-ahead log in DIR are loaded, and the log is then kept up to date,
+     * forced to disk according to --fsync=always|group|os (default group, every
+     * --group-commit-ms=N milliseconds). --snapshot-interval=SECONDS takes snapshots in
+     * the background, and --metrics-port=N serves the metrics to Prometheus. The cluster
+     * options, starting with --cluster or --join, are described in Cluster.fromOptions.
+     * @param options Command-line options of the server.
+     * @param log Logger for the startup messages.
+     * @return A CommandHandler ready to serve requests.
+     * @throws IOException If the snapshot or the write-ahead log cannot be opened or read.
+     * @throws IllegalArgumentException If an option has an invalid value.
+     */
+    public static CommandHandler fromOptions(ServerOptions options, AsyncLogger log) throws IOException {
+        CommandHandler commandHandler = load(options, log);
+        commandHandler.cluster = Cluster.fromOptions(options, commandHandler, log);
+        int metricsPort = options.getInt("metrics-port", 0);
+        if (metricsPort > 0) {
+            Metrics.serve(metricsPort, commandHandler::prometheus);
+            log.info("Metrics endpoint listening on http://127.0.0.1:" + metricsPort + "/metrics");
+        }
+        return commandHandler;
+    }
+
+    /**
+     * Creates the store described by the server options and loads its persisted state.
+     * @param options Command-line options of the server.
+     * @param log Logger for the startup messages.
+     * @return A CommandHandler ready to serve requests.
+     * @throws IOException If the snapshot or the write-ahead log cannot be opened or read.
+     */
+    private static CommandHandler load(ServerOptions options, AsyncLogger log) throws IOException {
+        KeyValueStore store = createStore(options);
+        String walDirectory = options.get("wal-dir", null);
+        if (walDirectory == null) {
+            return new CommandHandler(store);
+        }
+
+        WriteAheadLog.FsyncPolicy policy = WriteAheadLog.FsyncPolicy.valueOf(
+                options.get("fsync", "group").toUpperCase());
+        WriteAheadLog writeAheadLog = new WriteAheadLog(Paths.get(walDirectory), policy,
+                options.getInt("group-commit-ms", 10));
+
+        // Load the latest snapshot, then replay the log segments written after it
+        long start = System.nanoTime();
+        long firstSegment = 1;
+        Map<String, Long> deadlines = new HashMap<>();
+        Path snapshotFile = writeAheadLog.directory().resolve(Snapshot.FILE_NAME);
+        if (Files.exists(snapshotFile)) {
+            firstSegment = Snapshot.load(snapshotFile, (key, value, deadline) -> {
+                store.put(key, value);
+                if (deadline != 0) deadlines.put(key, deadline);
+            });
+            log.info("Loaded snapshot with " + store.size() + " keys in "
+                    + (System.nanoTime() - start) / 1_000_000 + " ms");
+        }
+        long replayStart = System.nanoTime();
+        long records = writeAheadLog.replay(firstSegment,
+                (op, key, value) -> replay(store, deadlines, op, key, value));
+        log.info("Replayed " + records + " write-ahead log records in "
+                + (System.nanoTime() - replayStart) / 1_000_000 + " ms, " + store.size() + " keys");
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                writeAheadLog.close();
+            } catch (IOException e) {
+                System.err.println("Failed to close the write-ahead log: " + e.getMessage());
+            }
+        }));
+        CommandHandler commandHandler = new CommandHandler(store, writeAheadLog, deadlines);
+
+        int snapshotInterval = options.getInt("snapshot-interval", 0);
+        if (snapshotInterval > 0) {
+            ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "snapshot");
+                thread.setDaemon(true);
+                return thread;
+            });
+            scheduler.scheduleWithFixedDelay(() -> {
+                try {
+                    long snapshotStart = System.nanoTime();
+                    long count = commandHandler.snapshot();
+                    log.info("Snapshot written with " + count + " keys in "
+                            + (System.nanoTime() - snapshotStart) / 1_000_000 + " ms");
+                } catch (IOException e) {
+                    log.severe("Failed to write snapshot: " + e.getMessage());
+                }
+            }, snapshotInterval, snapshotInterval, TimeUnit.SECONDS);
+        }
+        return commandHandler;
+    }
+
+    /**
+     * Applies a record of the write-ahead log during startup.
+     * @param store The store being recovered.
+     * @param deadlines The expiry deadlines being recovered.
+     * @param op Operation code of the record.
+     * @param key The key of the record.
+     * @param value The value of the record, or null.
+     */
+    private static void replay(KeyValueStore store, Map<String, Long> deadlines, byte op, String key, String value) {
+        switch (op) {
+            case WriteAheadLog.OP_PUT:
+                store.put(key, value);
+                deadlines.remove(key);
+                break;
+            case WriteAheadLog.OP_PUT_EXPIRING:
+                int space = value.indexOf(' ');
+                store.put(key, value.substring(space + 1));
+                deadlines.put(key, Long.parseLong(value.substring(0, space)));
+                break;
+            case WriteAheadLog.OP_DELETE:
+                store.remove(key);
+                deadlines.remove(key);
+                break;
+            case WriteAheadLog.OP_PERSIST:
+                deadlines.remove(key);
+                break;
+        }
+    }
+
+    /**
+     * Creates the storage engine selected by the --engine option, bounded by the memory
+     * budget options if any is given.
+     * @param options Command-line options of the server.
+     * @return A new, empty store.
+     * @throws IllegalArgumentException If the engine or the eviction policy is unknown.
+     */
+    private static KeyValueStore createStore(ServerOptions options) {
+        KeyValueStore store;
+        String engine = options.get("engine", "heap");
+        switch (engine) {
+            case "heap":
+                store = new ConcurrentKeyValueStore();
+                break;
+            case "offheap":
+                store = new OffHeapKeyValueStore();
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown storage engine: " + engine);
+        }
+        if (options.has("ordered-index")) {
+            // Under the cache, so that evictions are removed from the index as well
+            store = new OrderedKeyValueStore(store);
+        }
+
+        long maxBytes = options.getSize("max-memory", 0);
+        long maxEntries = options.getSize("max-entries", 0);
+        if (maxBytes <= 0 && maxEntries <= 0) {
+            return store;
+        }
+        EvictionPolicy policy = EvictionPolicy.create(options.get("eviction", "lru"));
+        return new BoundedKeyValueStore(store, policy, maxBytes, maxEntries);
+    }
+
+    /**
+     * Parses a request line into a command and its arguments and executes it.
+     * Single-key commands take the key and the rest of the line as the value,
+     * while the batch commands take any number of space separated arguments.
+     * In cluster mode, a request for keys owned by another node is forwarded to it.
+     * @param text The request line received from a client.
+     * @return A message depicting the result of the operation.
+     */
+    public String handleRequest(String text) {
+        if (cluster != null) {
+            String response = cluster.route(text);
+            if (response != null) return response;
+        }
+        return handleLocalRequest(text);
+    }
+
+    /**
+     * Parses a request line and executes it on this node, even in cluster mode. Used for the
+     * requests forwarded by the other nodes.
+     * @param text The request line received from a client.
+     * @return A message depicting the result of the operation.
+     */
+    public String handleLocalRequest(String text) {
+        // Split the request into the command and its arguments
+        String[] textParts = text.split(" ", 2);
+        String command = textParts[0];
+        String[] commandArgs;
+        if (textParts.length < 2) {
+            commandArgs = new String[]{};
+        } else if (isBatchCommand(command)) {
+            commandArgs = textParts[1].split(" ");
+        } else {
+            commandArgs = textParts[1].split(" ", 2);
+        }
+        return handleCommand(command, commandArgs);
     }
 
     /**
      * 
-     * @param command The command to be execute (PUT, GET, DELETE).
+     * @param command The command to be execute (PUT, GET, DELETE, MPUT, MGET, MDELETE, SNAPSHOT, STATS, TTL, PERSIST, INCR, DECR,
+     *                PUTIFABSENT, APPEND, CAS, SCAN, RANGE, CLUSTER).
      * @param args Arguments for the command.
      * @return A message depicting the result of the operation.
      */
     public String handleCommand(String command, String[] args) {
-        switch (command) {
-            case "PUT":
-                return put(args);
-            case "GET":
-                return get(args);
-            case "DELETE":
-                return delete(args);
+        long start = System.nanoTime();
+        String response = executeCommand(command, args);
+        // Unknown commands are counted together, so clients cannot grow the set of metrics
+        metrics.record(response == INVALID_COMMAND ? "INVALID" : command, System.nanoTime() - start);
+        return response;
+    }
+
+    /**
+     * Executes a command without recording it in the metrics.
+     */
+    private String executeCommand(String command, String[] args) {
+        try {
+            switch (command) {
+                case "PUT":
+                    return put(args);
+                case "GET":
+                    return get(args);
+                case "DELETE":
+                    return delete(args);
+                case "MPUT":
+                    return multiPut(args);
+                case "MGET":
+                    return multiGet(args);
+                case "MDELETE":
+                    return multiDelete(args);
+                case "SNAPSHOT":
+                    return snapshotCommand();
+                case "STATS":
+                    return stats();
+                case "TTL":
+                    return ttl(args);
+                case "PERSIST":
+                    return persist(args);
+                case "INCR":
+                    return increment(args, false);
+                case "DECR":
+                    return increment(args, true);
+                case "PUTIFABSENT":
+                    return putIfAbsent(args);
+                case "APPEND":
+                    return appendValue(args);
+                case "CAS":
+                    return compareAndSet(args);
+                case "SCAN":
+                    return scan(args);
+                case "RANGE":
+                    return range(args);
+                case "CLUSTER":
+                    return cluster != null ? cluster.command(args) : "Cluster mode is disabled.";
+                case "WATCH":
+                case "UNWATCH":
+                    // Watches belong to a connection, so the servers execute them
+                    return "Watches are only supported by text connections of the TCP server.";
+                default:
+                    return INVALID_COMMAND;
+            }
+        } catch (UncheckedIOException e) {
+            // The write-ahead log could not be written
+            return "Operation failed: " + e.getCause().getMessage();
+        }
+    }
+
+    /**
+     * Fetches the value for a key. Used by the text commands and the binary protocol.
+     * @param key The key for which the value must be retrieved.
+     * @return The value for the key, or null if the key does not exist.
+     */
+    public String lookup(String key) {
+        String value = keyValueStore.get(key);
+        if (value != null && !timers.isEmpty()) {
+            // Keys are expired lazily when they are read after their deadline
+            TimingWheel.Timer timer = timers.get(key);
+            if (timer != null && timer.deadline <= System.currentTimeMillis()) {
+                expire(timer);
+                return null;
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Stores a key-value pair. Used by the text commands and the binary protocol.
+     * @param key The key to be stored.
+     * @param value The value to be associated with the key.
+     */
+    public void store(String key, String value) {
+        sync(storeUnsynced(key, value, 0, true));
+    }
+
+    /**
+     * Stores a key-value pair that expires at the given time.
+     * @param key The key to be stored.
+     * @param value The value to be associated with the key.
+     * @param deadline Expiry deadline in milliseconds since the epoch, or 0 for no expiry.
+     */
+    public void store(String key, String value, long deadline) {
+        sync(storeUnsynced(key, value, deadline, true));
+    }
+
+    /**
+     * Removes a key-value pair. Used by the text commands and the binary protocol.
+     * @param key The key to be removed.
+     * @return True if the key existed.
+     */
+    public boolean remove(String key) {
+        long sequence = removeUnsynced(key, true);
+        sync(sequence);
+        return sequence >= 0;
+    }
+
+    /**
+     * Applies a change sent by the primary of a key in cluster mode. It is logged like a
+     * change made here, but not replicated further.
+     * @param op Write-ahead log operation of the change.
+     * @param key The changed key.
+     * @param value The value of the log record, or null.
+     * @throws IllegalArgumentException If the operation is unknown or the value malformed.
+     */
+    public void applyReplicated(byte op, String key, String value) {
+        switch (op) {
+            case WriteAheadLog.OP_PUT:
+                sync(storeUnsynced(key, value, 0, false));
+                break;
+            case WriteAheadLog.OP_PUT_EXPIRING:
+                long deadline = parseDeadline(value);
+                sync(storeUnsynced(key, valueAfterDeadline(value), deadline, false));
+                break;
+            case WriteAheadLog.OP_DELETE:
+                sync(removeUnsynced(key, false));
+                break;
+            case WriteAheadLog.OP_PERSIST:
+                sync(persistUnsynced(key, false));
+                break;
             default:
-                return "Invalid Command.";
+                throw new IllegalArgumentException("Unknown log operation " + op);
+        }
+    }
+
+    /**
+     * Stores a key moved from another node in cluster mode, unless the key was written here
+     * since or has expired meanwhile. It is logged but not replicated.
+     * @param key The moved key.
+     * @param value Its value.
+     * @param deadline Its expiry deadline in milliseconds since the epoch, or 0 for no expiry.
+     * @return True if the key was stored.
+     */
+    public boolean migrate(String key, String value, long deadline) {
+        long sequence;
+        synchronized (lockFor(key)) {
+            if (keyValueStore.get(key) != null) return false;
+            if (deadline != 0 && deadline <= System.currentTimeMillis()) return false;
+            sequence = storeUnsynced(key, value, deadline, false);
+        }
+        sync(sequence);
+        return true;
+    }
+
+    /**
+     * Reads the expiry deadline of a value in the form "deadline value", as sent with the
+     * expiring changes of the primary and with moved keys.
+     * @param value The value received from another node.
+     * @return The deadline in milliseconds since the epoch.
+     * @throws IllegalArgumentException If the value does not start with a deadline and a space.
+     */
+    public static long parseDeadline(String value) {
+        int space = value == null ? -1 : value.indexOf(' ');
+        if (space < 1 || space > 19) throw new IllegalArgumentException("Missing expiry deadline.");
+        for (int i = 0; i < space; i++) {
+            if (value.charAt(i) < '0' || value.charAt(i) > '9') {
+                throw new IllegalArgumentException("Invalid expiry deadline.");
+            }
+        }
+        return Long.parseLong(value.substring(0, space));
+    }
+
+    /**
+     * @param value A value in the form "deadline value", checked by parseDeadline.
+     * @return The value without its deadline.
+     */
+    public static String valueAfterDeadline(String value) {
+        return value.substring(value.indexOf(' ') + 1);
+    }
+
+    /**
+     * Removes a key this node no longer owns in cluster mode, without replicating the removal.
+     * @param key The key to be removed.
+     */
+    void discard(String key) {
+        sync(removeUnsynced(key, false));
+    }
+
+    /**
+     * Calls the handler for every key with its value and expiry deadline (0 if none), while
+     * requests keep changing the store.
+     * @param handler Receives the entries.
+     */
+    void forEachEntry(Snapshot.EntryHandler handler) {
+        keyValueStore.forEach((key, value) -> handler.accept(key, value, deadlineOf(key)));
+    }
+
+    /**
+     * Calls the handler with the current value and expiry deadline of a key under its stripe
+     * lock, so that no change of the key is logged or replicated while it runs.
+     * @param key A key.
+     * @param handler Receives the entry.
+     * @return True if the key exists and the handler was called.
+     */
+    boolean withEntry(String key, Snapshot.EntryHandler handler) {
+        synchronized (lockFor(key)) {
+            String value = keyValueStore.get(key);
+            if (value == null) return false;
+            handler.accept(key, value, deadlineOf(key));
+            return true;
+        }
+    }
+
+    /**
+     * @return The cluster this node belongs to, or null if the server runs alone.
+     */
+    public Cluster cluster() {
+        return cluster;
+    }
+
+    /**
+     * Stores a key-value pair, replacing its expiry, and appends it to the write-ahead log,
+     * without waiting for the log.
+     * @param key The key to be stored.
+     * @param value The value to be associated with the key.
+     * @param deadline Expiry deadline in milliseconds since the epoch, or 0 for no expiry.
+     * @param replicate True to send the change to the other owners of the key in cluster mode.
+     * @return Sequence number of the log record, or 0 if there is no log.
+     * @throws UncheckedIOException If the log cannot be written.
+     */
+    private long storeUnsynced(String key, String value, long deadline, boolean replicate) {
+        // The store is updated before the log, so that a record in a segment older than a
+        // snapshot always has its change visible to that snapshot
+        synchronized (lockFor(key)) {
+            long previousDeadline = deadlineOf(key);
+            String previous = keyValueStore.put(key, value);
+            setDeadline(key, deadline);
+            try {
+                if (deadline == 0) {
+                    return record(WriteAheadLog.OP_PUT, key, value, replicate);
+                }
+                return record(WriteAheadLog.OP_PUT_EXPIRING, key, deadline + " " + value, replicate);
+            } catch (UncheckedIOException e) {
+                restore(key, previous);
+                setDeadline(key, previousDeadline);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Removes a key and appends the removal to the write-ahead log, without waiting for the log.
+     * @param key The key to be removed.
+     * @param replicate True to send the change to the other owners of the key in cluster mode.
+     * @return Sequence number of the log record, 0 if there is no log, or -1 if the key did not exist.
+     * @throws UncheckedIOException If the log cannot be written.
+     */
+    private long removeUnsynced(String key, boolean replicate) {
+        synchronized (lockFor(key)) {
+            String previous = keyValueStore.remove(key);
+            TimingWheel.Timer timer = timers.remove(key);
+            if (previous == null) return -1;
+            try {
+                return record(WriteAheadLog.OP_DELETE, key, null, replicate);
+            } catch (UncheckedIOException e) {
+                restore(key, previous);
+                if (timer != null) setDeadline(key, timer.deadline);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Returns the expiry deadline of a key.
+     * @param key A key.
+     * @return The deadline in milliseconds since the epoch, or 0 if the key does not expire.
+     */
+    private long deadlineOf(String key) {
+        TimingWheel.Timer timer = timers.get(key);
+        return timer != null ? timer.deadline : 0;
+    }
+
+    /**
+     * Sets or removes the expiry of a key. Called under the key's stripe lock.
+     * @param key A key of the store.
+     * @param deadline Expiry deadline in milliseconds since the epoch, or 0 for no expiry.
+     */
+    private void setDeadline(String key, long deadline) {
+        if (deadline == 0) {
+            timers.remove(key);
+            return;
+        }
+        TimingWheel.Timer timer = timers.get(key);
+        if (timer != null && deadline >= timer.deadline) {
+            // Extending a TTL leaves the wheel alone: the timer reschedules itself when it comes due
+            timer.deadline = deadline;
+        } else {
+            timer = new TimingWheel.Timer(key, deadline);
+            timers.put(key, timer);
+            timingWheel.schedule(timer);
+            if (expiryTask == null) startExpiry();
         }
     }
 
+    /**
+     * Schedules the task advancing the timing wheel every tick, unless it already runs or the
+     * handler is closed.
+     */
+    private void startExpiry() {
+        synchronized (expiryLock) {
+            if (expiryTask != null || closed) return;
+            ScheduledThreadPoolExecutor scheduler;
+            synchronized (CommandHandler.class) {
+                if (expiryScheduler == null) {
+                    expiryScheduler = new ScheduledThreadPoolExecutor(1, runnable -> {
+                        Thread thread = new Thread(runnable, "expiry");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                    // A cancelled task would keep its handler reachable until its next tick
+                    expiryScheduler.setRemoveOnCancelPolicy(true);
+                }
+                scheduler = expiryScheduler;
+            }
+            expiryTask = scheduler.scheduleAtFixedRate(this::expireDue, EXPIRY_TICK_MILLIS,
+                    EXPIRY_TICK_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Advances the timing wheel to the current time. Runs on the shared expiry thread every tick.
+     */
+    private void expireDue() {
+        timingWheel.advance(System.currentTimeMillis(), this::expire);
+    }
+
+    /**
+     * Removes a key whose timer came due, unless its expiry was changed since. The removal
+     * is logged like a DELETE, so that a snapshot taken meanwhile cannot bring the key back.
+     * @param timer The timer that came due.
+     */
+    private void expire(TimingWheel.Timer timer) {
+        synchronized (lockFor(timer.key)) {
+            if (timers.get(timer.key) != timer) return;
+            if (timer.deadline > System.currentTimeMillis()) {
+                // The TTL was extended after the wheel found the timer due
+                timingWheel.schedule(timer);
+                return;
+            }
+            try {
+                // Not replicated: the followers know the deadline and expire the key themselves
+                removeUnsynced(timer.key, false);
+            } catch (UncheckedIOException e) {
+                // The removal could not be logged: the key and a new timer were put back, and
+                // the expiry is tried again on the next tick
+            }
+        }
+    }
+
+    /**
+     * Forgets the expiry of a key evicted by a bounded store and tells its watchers. Called by
+     * the writer that caused the eviction under the store's policy lock, possibly while another
+     * thread holds the key's stripe lock, which is why it is not taken here; a timer set
+     * meanwhile by that thread finds the key gone when it comes due.
+     * @param key The evicted key.
+     */
+    private void evicted(String key) {
+        timers.remove(key);
+        watches.changed(key);
+    }
+
+    /**
+     * Puts back the previous value of a key after its change could not be logged.
+     * @param key The key that was changed.
+     * @param previous The value before the change, or null if the key did not exist.
+     */
+    private void restore(String key, String previous) {
+        if (previous == null) {
+            keyValueStore.remove(key);
+        } else {
+            keyValueStore.put(key, previous);
+        }
+    }
+
+    /**
+     * Records a change made under the key's stripe lock: appends it to the write-ahead log,
+     * if there is one, in cluster mode sends it to the other owners of the key, and queues
+     * it for the connections watching the key.
+     * @return Sequence number of the log record, or 0 if there is no log.
+     * @throws UncheckedIOException If the log cannot be written; nothing was replicated then.
+     */
+    private long record(byte op, String key, String value, boolean replicate) {
+        long sequence = writeAheadLog == null ? 0 : append(op, key, value);
+        if (replicate && cluster != null) cluster.replicate(op, key, value);
+        if (op != WriteAheadLog.OP_PERSIST) watches.changed(key);
+        return sequence;
+    }
+
+    /**
+     * Appends a record to the write-ahead log.
+     * @throws UncheckedIOException If the log cannot be written.
+     */
+    private long append(byte op, String key, String value) {
+        try {
+            return writeAheadLog.append(op, key, value);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Waits until the log record with the given sequence number is durable, and in cluster
+     * mode until the changes replicated by this thread are acknowledged.
+     * @param sequence Sequence number of the record; 0 or less if nothing was logged.
+     * @throws UncheckedIOException If the log cannot be forced.
+     */
+    private void sync(long sequence) {
+        if (cluster != null) cluster.awaitReplication();
+        if (sequence <= 0) return;
+        try {
+            writeAheadLog.sync(sequence);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @param key A key.
+     * @return The lock that orders the changes of the key.
+     */
+    private Object lockFor(String key) {
+        int hash = key.hashCode();
+        return stripes[(hash ^ (hash >>> 16)) & (stripes.length - 1)];
+    }
+
+    /**
+     * Writes a snapshot of the keyspace while requests keep being served, then deletes the
+     * write-ahead log segments it covers, so that a restart only loads the snapshot and
+     * replays the changes made since.
+     * @return Number of key-value pairs in the snapshot.
+     * @throws IOException If the snapshot cannot be written.
+     * @throws IllegalStateException If persistence is disabled.
+     */
+    public synchronized long snapshot() throws IOException {
+        if (writeAheadLog == null) throw new IllegalStateException("Persistence is disabled.");
+        long firstSegment = writeAheadLog.rotate();
+        long count = Snapshot.write(writeAheadLog.directory().resolve(Snapshot.FILE_NAME),
+                keyValueStore, this::deadlineOf, firstSegment);
+        writeAheadLog.deleteSegmentsBefore(firstSegment);
+        return count;
+    }
+
+    /**
+     * Takes a snapshot on request of a client.
+     * @return A message depicting success or failure of the operation.
+     */
+    private String snapshotCommand() {
+        if (writeAheadLog == null) return "Persistence is disabled.";
+        try {
+            return "Snapshot written: " + snapshot() + " keys.";
+        } catch (IOException e) {
+            return "Operation failed: " + e.getMessage();
+        }
+    }
+
+    /**
+     * Reports the number of keys, the memory used and, when the store is a bounded cache, its
+     * size in bytes and its hit, miss and eviction counters, followed by the server metrics.
+     * @return The statistics as comma separated name=value pairs.
+     */
+    private String stats() {
+        StringBuilder stats = new StringBuilder("keys=").append(keyValueStore.size());
+        if (keyValueStore instanceof BoundedKeyValueStore) {
+            BoundedKeyValueStore cache = (BoundedKeyValueStore) keyValueStore;
+            stats.append(", bytes=").append(cache.bytes()).append(", hits=").append(cache.hits())
+                 .append(", misses=").append(cache.misses()).append(", evictions=").append(cache.evictions());
+        }
+        Runtime runtime = Runtime.getRuntime();
+        stats.append(", heap_used=").append(runtime.totalMemory() - runtime.freeMemory())
+             .append(", offheap_used=").append(offHeapBytes());
+        metrics.appendStats(stats);
+        return stats.toString();
+    }
+
+    /**
+     * Renders the statistics in the Prometheus text exposition format.
+     * @return The metric families, one per line.
+     */
+    public String prometheus() {
+        StringBuilder text = new StringBuilder();
+        Metrics.gauge(text, "kvstore_keys", "Keys in the store.", keyValueStore.size());
+        Runtime runtime = Runtime.getRuntime();
+        Metrics.gauge(text, "kvstore_heap_used_bytes", "Java heap in use.", runtime.totalMemory() - runtime.freeMemory());
+        Metrics.gauge(text, "kvstore_offheap_used_bytes", "Direct memory held by the off-heap engine.", offHeapBytes());
+        if (keyValueStore instanceof BoundedKeyValueStore) {
+            BoundedKeyValueStore cache = (BoundedKeyValueStore) keyValueStore;
+            Metrics.gauge(text, "kvstore_cache_bytes", "Key and value bytes counted against --max-memory.", cache.bytes());
+            Metrics.counter(text, "kvstore_cache_hits_total", "Reads that found their key.", cache.hits());
+            Metrics.counter(text, "kvstore_cache_misses_total", "Reads that did not find their key.", cache.misses());
+            Metrics.counter(text, "kvstore_cache_evictions_total", "Keys evicted to stay within the budget.", cache.evictions());
+        }
+        metrics.appendPrometheus(text);
+        return text.toString();
+    }
+
+    /**
+     * @return Direct memory held by the off-heap storage engine, or 0 for the heap engine.
+     */
+    private long offHeapBytes() {
+        OffHeapKeyValueStore store = find(keyValueStore, OffHeapKeyValueStore.class);
+        return store != null ? store.offHeapBytes() : 0;
+    }
+
+    /**
+     * Finds a store of the given class among a store and the stores it wraps.
+     * @param store The outermost store.
+     * @param type The class looked for.
+     * @return The store of that class, or null if there is none.
+     */
+    private static <T extends KeyValueStore> T find(KeyValueStore store, Class<T> type) {
+        while (!type.isInstance(store)) {
+            if (store instanceof BoundedKeyValueStore) {
+                store = ((BoundedKeyValueStore) store).delegate();
+            } else if (store instanceof OrderedKeyValueStore) {
+                store = ((OrderedKeyValueStore) store).delegate();
+            } else {
+                return null;
+            }
+        }
+        return type.cast(store);
+    }
+
+    /**
+     * @return The registry of the connections watching keys of this handler.
+     */
+    public WatchRegistry watches() {
+        return watches;
+    }
+
+    /**
+     * @return The metrics of the commands executed by this handler, also updated by the servers.
+     */
+    public Metrics metrics() {
+        return metrics;
+    }
+
     /**
      * Puts a key-value pair into the keyValueStore.
      * @param args Arguments containing the key and value to be inserted.
      * @return A message depicting success or failure of the operation.
      */
     private String put(String[] args) {
-        if (args.length < 2) return "Sample Usage: PUT <key> <value>";
+        if (args.length < 2) return "Sample Usage: PUT <key> <value> [EX <seconds>]";
         String key = args[0];
         String value = args[1];
-        keyValueStore.put(key, value);
+        long deadline = 0;
+
+        // A value ending with " EX <seconds>" sets the time to live of the key
+        int expiry = value.lastIndexOf(" EX ");
+        if (expiry >= 0) {
+            long seconds = parseSeconds(value.substring(expiry + 4));
+            if (seconds == 0) return "Invalid expire time.";
+            if (seconds > 0) {
+                value = value.substring(0, expiry);
+                deadline = System.currentTimeMillis() + seconds * 1000;
+            }
+        }
+        if (value.length() > BinaryProtocol.MAX_VALUE_LENGTH) return VALUE_TOO_LARGE;
+        store(key, value, deadline);
+        return "Operation successful.";
+    }
+
+    /**
+     * Parses the number of seconds of an EX option.
+     * @param text The text following EX.
+     * @return The number of seconds, 0 if it is not positive, or -1 if the text is not a number.
+     */
+    private static long parseSeconds(String text) {
+        try {
+            long seconds = Long.parseLong(text);
+            return seconds > 0 && seconds < Long.MAX_VALUE / 1000 ? seconds : 0;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Reports the remaining time to live of a key.
+     * @param args Argument containing the key.
+     * @return The remaining seconds, rounded up, or a message if the key does not exist or does not expire.
+     */
+    private String ttl(String[] args) {
+        if (args.length < 1) return "Sample Usage: TTL <key>";
+        String key = args[0];
+        if (lookup(key) == null) return "No record found.";
+        long deadline = deadlineOf(key);
+        if (deadline == 0) return "No expiry.";
+        long remaining = deadline - System.currentTimeMillis();
+        return String.valueOf(Math.max(0, (remaining + 999) / 1000));
+    }
+
+    /**
+     * Removes the expiry of a key, so that it is kept until it is deleted.
+     * @param args Argument containing the key.
+     * @return A message depicting success or failure of the operation.
+     */
+    private String persist(String[] args) {
+        if (args.length < 1) return "Sample Usage: PERSIST <key>";
+        String key = args[0];
+        if (lookup(key) == null) return "No record found.";
+        long sequence = persistUnsynced(key, true);
+        if (sequence < 0) return "No expiry.";
+        sync(sequence);
+        return "Operation successful.";
+    }
+
+    /**
+     * Removes the expiry of a key and appends the change to the write-ahead log, without
+     * waiting for the log.
+     * @param key A key.
+     * @param replicate True to send the change to the other owners of the key in cluster mode.
+     * @return Sequence number of the log record, 0 if there is no log, or -1 if the key did not expire.
+     * @throws UncheckedIOException If the log cannot be written.
+     */
+    private long persistUnsynced(String key, boolean replicate) {
+        synchronized (lockFor(key)) {
+            TimingWheel.Timer timer = timers.remove(key);
+            if (timer == null) return -1;
+            try {
+                return record(WriteAheadLog.OP_PERSIST, key, null, replicate);
+            } catch (UncheckedIOException e) {
+                setDeadline(key, timer.deadline);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Adds to the integer value of a key, which counts as 0 if the key does not exist. The
+     * expiry of the key is kept.
+     * @param args Arguments containing the key and optionally the amount, 1 by default.
+     * @param negate True for DECR, which subtracts the amount.
+     * @return The new value, or an error message.
+     */
+    private String increment(String[] args, boolean negate) {
+        String command = negate ? "DECR" : "INCR";
+        if (args.length < 1) return "Sample Usage: " + command + " <key> [<amount>]";
+        String key = args[0];
+        long amount = 1;
+        if (args.length > 1) {
+            try {
+                amount = Long.parseLong(args[1]);
+            } catch (NumberFormatException e) {
+                return "Sample Usage: " + command + " <key> [<amount>]";
+            }
+        }
+        long sequence;
+        String result;
+        // The read, the update and the log record happen under the key's stripe lock, so
+        // concurrent increments of a hot key never lose an update; only the wait for the log
+        // to become durable happens outside of it
+        synchronized (lockFor(key)) {
+            String current = lookup(key);
+            long value;
+            try {
+                value = current == null ? 0 : Long.parseLong(current);
+                value = negate ? Math.subtractExact(value, amount) : Math.addExact(value, amount);
+            } catch (NumberFormatException e) {
+                return "Value is not an integer.";
+            } catch (ArithmeticException e) {
+                return "Value would overflow.";
+            }
+            result = Long.toString(value);
+            sequence = storeUnsynced(key, result, deadlineOf(key), true);
+        }
+        sync(sequence);
+        return result;
+    }
+
+    /**
+     * Stores a key-value pair unless the key already exists.
+     * @param args Arguments containing the key and value to be inserted.
+     * @return A message depicting success or failure of the operation.
+     */
+    private String putIfAbsent(String[] args) {
+        if (args.length < 2) return "Sample Usage: PUTIFABSENT <key> <value>";
+        if (args[1].length() > BinaryProtocol.MAX_VALUE_LENGTH) return VALUE_TOO_LARGE;
+        String key = args[0];
+        long sequence;
+        synchronized (lockFor(key)) {
+            if (lookup(key) != null) return "Key exists.";
+            sequence = storeUnsynced(key, args[1], 0, true);
+        }
+        sync(sequence);
+        return "Operation successful.";
+    }
+
+    /**
+     * Appends to the value of a key, which is created if it does not exist. The expiry of
+     * the key is kept.
+     * @param args Arguments containing the key and the text to be appended.
+     * @return The length of the new value, or an error message if it would be too large.
+     */
+    private String appendValue(String[] args) {
+        if (args.length < 2) return "Sample Usage: APPEND <key> <value>";
+        String key = args[0];
+        long sequence;
+        String value;
+        synchronized (lockFor(key)) {
+            String current = lookup(key);
+            // Checked before concatenating, so repeated appends cannot grow a value past the limit
+            if ((current == null ? 0 : current.length()) + args[1].length() > BinaryProtocol.MAX_VALUE_LENGTH) {
+                return VALUE_TOO_LARGE;
+            }
+            value = current == null ? args[1] : current + args[1];
+            sequence = storeUnsynced(key, value, deadlineOf(key), true);
+        }
+        sync(sequence);
+        return String.valueOf(value.length());
+    }
+
+    /**
+     * Replaces the value of a key if it still equals the expected value. The expiry of the
+     * key is kept.
+     * @param args Arguments containing the key, then the expected value, which cannot contain
+     *             spaces, and the new value.
+     * @return A message depicting success or failure of the operation.
+     */
+    private String compareAndSet(String[] args) {
+        String[] values = args.length < 2 ? new String[0] : args[1].split(" ", 2);
+        if (values.length < 2) return "Sample Usage: CAS <key> <expected value> <new value>";
+        if (values[1].length() > BinaryProtocol.MAX_VALUE_LENGTH) return VALUE_TOO_LARGE;
+        String key = args[0];
+        long sequence;
+        synchronized (lockFor(key)) {
+            String current = lookup(key);
+            if (current == null) return "No record found.";
+            if (!current.equals(values[0])) return "Value has changed.";
+            sequence = storeUnsynced(key, values[1], deadlineOf(key), true);
+        }
+        sync(sequence);
         return "Operation successful.";
     }
 
@@ -58,7 +1141,7 @@ public class CommandHandler {
     private String get(String[] args) {
         if (args.length < 1) return "Sample Usage: GET <key>";
         String key = args[0];
-        String value = keyValueStore.get(key);
+        String value = lookup(key);
         return value != null ? value : "No record found.";
     }
 
@@ -70,7 +1153,207 @@ public class CommandHandler {
     private String delete(String[] args) {
         if (args.length < 1) return "Sample Usage: DELETE <key>";
         String key = args[0];
-        keyValueStore.remove(key);
+        remove(key);
+        return "Operation successful.";
+    }
+
+    /**
+     * Puts several key-value pairs into the keyValueStore.
+     * @param args Arguments containing alternating keys and values to be inserted.
+     * @return A message depicting success or failure of the operation.
+     */
+    private String multiPut(String[] args) {
+        if (args.length < 2 || args.length % 2 != 0) {
+            return "Sample Usage: MPUT <key> <value> [<key> <value> ...]";
+        }
+        for (int i = 1; i < args.length; i += 2) {
+            if (args[i].length() > BinaryProtocol.MAX_VALUE_LENGTH) return VALUE_TOO_LARGE;
+        }
+        // All pairs are logged before waiting once for the last record to become durable
+        long sequence = 0;
+        for (int i = 0; i < args.length; i += 2) {
+            sequence = Math.max(sequence, storeUnsynced(args[i], args[i + 1], 0, true));
+        }
+        sync(sequence);
         return "Operation successful.";
     }
+
+    /**
+     * Fetches the values for several keys from the keyValueStore.
+     * @param args Arguments containing the keys for which the values must be retrieved.
+     * @return The key=value pairs separated by commas, with an error message for missing keys.
+     */
+    private String multiGet(String[] args) {
+        if (args.length < 1) return "Sample Usage: MGET <key> [<key> ...]";
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < args.length; i++) {
+            String value = lookup(args[i]);
+            if (i > 0) result.append(", ");
+            result.append(args[i]).append('=').append(value != null ? value : "No record found.");
+        }
+        return result.toString();
+    }
+
+    /**
+     * Deletes several key-value pair records from the keyValueStore.
+     * @param args Arguments containing the keys which must be deleted.
+     * @return A message depicting success or failure of the operation.
+     */
+    private String multiDelete(String[] args) {
+        if (args.length < 1) return "Sample Usage: MDELETE <key> [<key> ...]";
+        long sequence = 0;
+        for (String key : args) {
+            sequence = Math.max(sequence, removeUnsynced(key, true));
+        }
+        sync(sequence);
+        return "Operation successful.";
+    }
+
+    /**
+     * Lists the keys with a given prefix in order, one page at a time.
+     * @param args Arguments containing the cursor, then optionally PREFIX <prefix> and LIMIT <count>.
+     * @return The next cursor and the key=value pairs of the page, separated by commas.
+     */
+    private String scan(String[] args) {
+        if (args.length < 1 || args.length % 2 != 1) {
+            return "Sample Usage: SCAN <cursor> [PREFIX <prefix>] [LIMIT <count>]";
+        }
+        String prefix = "";
+        int limit = DEFAULT_SCAN_LIMIT;
+        for (int i = 1; i < args.length; i += 2) {
+            if (args[i].equals("PREFIX")) {
+                prefix = args[i + 1];
+            } else if (args[i].equals("LIMIT")) {
+                limit = parseLimit(args[i + 1]);
+                if (limit < 0) return "Invalid limit.";
+            } else {
+                return "Sample Usage: SCAN <cursor> [PREFIX <prefix>] [LIMIT <count>]";
+            }
+        }
+        return page(args[0], prefix, null, prefix, limit);
+    }
+
+    /**
+     * Lists the keys from a start key, included, to an end key, excluded, in order, one page at a time.
+     * @param args Arguments containing the cursor, the start and end keys, then optionally LIMIT <count>.
+     * @return The next cursor and the key=value pairs of the page, separated by commas.
+     */
+    private String range(String[] args) {
+        if (args.length != 3 && !(args.length == 5 && args[3].equals("LIMIT"))) {
+            return "Sample Usage: RANGE <cursor> <start> <end> [LIMIT <count>]";
+        }
+        int limit = args.length == 5 ? parseLimit(args[4]) : DEFAULT_SCAN_LIMIT;
+        if (limit < 0) return "Invalid limit.";
+        return page(args[0], args[1], args[2], "", limit);
+    }
+
+    /**
+     * Parses the count of a LIMIT option.
+     * @return The count, or -1 if it is not a number from 1 to MAX_SCAN_LIMIT.
+     */
+    private static int parseLimit(String text) {
+        try {
+            int limit = Integer.parseInt(text);
+            return limit >= 1 && limit <= MAX_SCAN_LIMIT ? limit : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Reads a page of the ordered index. The index is iterated without locks, so writers are
+     * never blocked and the page reflects the keys as they are while it is read. In cluster
+     * mode only the keys this node is the primary of are listed, so every key is listed by
+     * exactly one node.
+     * @param cursor "0" to start, otherwise the cursor returned by the previous page.
+     * @param start First key that may be listed.
+     * @param end Key at which the listing ends, excluded, or null for none.
+     * @param prefix Prefix of the listed keys, possibly empty.
+     * @param limit Largest number of entries in the page.
+     * @return "next=" and the cursor of the next page, "0" after the last one, followed by the
+     *         key=value pairs of the page, separated by commas.
+     */
+    private String page(String cursor, String start, String end, String prefix, int limit) {
+        if (orderedIndex == null) return "Ordered index is disabled.";
+        String after = decodeCursor(cursor);
+        if (after == null) return "Invalid cursor.";
+
+        NavigableSet<String> keys = after.isEmpty() || after.compareTo(start) < 0
+                ? orderedIndex.keys().tailSet(start, true) : orderedIndex.keys().tailSet(after, false);
+        StringBuilder entries = new StringBuilder();
+        String last = null;
+        boolean more = false;
+        int count = 0;
+        long visits = 0;
+        for (String key : keys) {
+            if ((end != null && key.compareTo(end) >= 0) || !key.startsWith(prefix)) break;
+            if (count == limit || entries.length() >= MAX_SCAN_RESPONSE
+                    || visits == (long) limit * SCAN_VISITS_PER_ENTRY) {
+                more = true;
+                break;
+            }
+            visits++;
+            last = key;
+            if (cluster != null && !cluster.isPrimary(key)) continue;
+            String value = lookup(key);
+            if (value == null) continue;
+            entries.append(", ").append(key).append('=').append(value);
+            count++;
+        }
+        // The next page resumes after the last key visited
+        return "next=" + (more ? encodeCursor(last) : "0") + entries;
+    }
+
+    /**
+     * Encodes a key as a cursor: the hexadecimal codes of its chars, which keeps cursors free
+     * of spaces whatever the key holds.
+     */
+    private static String encodeCursor(String key) {
+        StringBuilder cursor = new StringBuilder(key.length() * 2);
+        for (int i = 0; i < key.length(); i++) {
+            cursor.append(Character.forDigit(key.charAt(i) >> 4 & 0xF, 16))
+                  .append(Character.forDigit(key.charAt(i) & 0xF, 16));
+        }
+        return cursor.toString();
+    }
+
+    /**
+     * Decodes a cursor into the key it resumes after.
+     * @return The key, the empty string for the cursor "0", or null if the cursor is invalid.
+     */
+    private static String decodeCursor(String cursor) {
+        if (cursor.equals("0")) return "";
+        if (cursor.length() % 2 != 0) return null;
+        StringBuilder key = new StringBuilder(cursor.length() / 2);
+        for (int i = 0; i < cursor.length(); i += 2) {
+            int high = Character.digit(cursor.charAt(i), 16);
+            int low = Character.digit(cursor.charAt(i + 1), 16);
+            if (high < 0 || low < 0) return null;
+            key.append((char) (high << 4 | low));
+        }
+        return key.toString();
+    }
+
+    /**
+     * Checks whether a command takes a variable number of arguments.
+     * @param command The command to be checked.
+     * @return True for the batch commands (MPUT, MGET, MDELETE) and for SCAN and RANGE.
+     */
+    private static boolean isBatchCommand(String command) {
+        return command.equals("MPUT") || command.equals("MGET") || command.equals("MDELETE")
+                || command.equals("SCAN") || command.equals("RANGE");
+    }
+
+    /**
+     * Checks whether a request line only reads the store, so that executing it again gives
+     * the same result and changes nothing.
+     * @param text The request line received from a client.
+     * @return True for GET, MGET, TTL, STATS, SCAN and RANGE.
+     */
+    public static boolean isReadOnly(String text) {
+        int space = text.indexOf(' ');
+        String command = space < 0 ? text : text.substring(0, space);
+        return command.equals("GET") || command.equals("MGET") || command.equals("TTL") || command.equals("STATS")
+                || command.equals("SCAN") || command.equals("RANGE");
+    }
 }
\ No newline at end of file
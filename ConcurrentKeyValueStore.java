@@ -0,0 +1,60 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+/**
+ * ConcurrentKeyValueStore is the default storage engine, backed by a ConcurrentHashMap.
+ * Reads never take a lock and writes only lock the hash bin they touch, so throughput
+ * scales with the number of cores instead of serializing on a global lock.
+ */
+public class ConcurrentKeyValueStore implements KeyValueStore {
+
+    /**
+     * Initial capacity of the map, sized to avoid early resizes under load.
+     */
+    private static final int DEFAULT_CAPACITY = 1 << 16;
+
+    /**
+     * map is the ConcurrentHashMap that stores the key-value pairs.
+     */
+    private final ConcurrentHashMap<String, String> map;
+
+    /**
+     * A new ConcurrentKeyValueStore is constructed with the default capacity.
+     */
+    public ConcurrentKeyValueStore() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * A new ConcurrentKeyValueStore is constructed with the given initial capacity.
+     * @param initialCapacity Number of entries the store can hold before resizing.
+     */
+    public ConcurrentKeyValueStore(int initialCapacity) {
+        this.map = new ConcurrentHashMap<>(initialCapacity);
+    }
+
+    @Override
+    public String get(String key) {
+        return map.get(key);
+    }
+
+    @Override
+    public String put(String key, String value) {
+        return map.put(key, value);
+    }
+
+    @Override
+    public String remove(String key) {
+        return map.remove(key);
+    }
+
+    @Override
+    public int size() {
+        return map.size();
+    }
+
+    @Override
+    public void forEach(BiConsumer<String, String> action) {
+        map.forEach(action);
+    }
+}
@@ -0,0 +1,122 @@
+import java.net.SocketAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * DuplicateCache remembers the responses to the most recent tagged UDP requests that change
+ * the store, so that a request retransmitted by a client is answered again without being
+ * executed twice. Entries are keyed by the client address and the request ID, and the least
+ * recently added ones are dropped once the cache is full. The cache is split into stripes
+ * with a lock each, so that the UDP workers rarely wait for each other.
+ */
+public class DuplicateCache {
+
+    /**
+     * Marks a request that is still being executed. Copies of it arriving meanwhile are dropped.
+     */
+    public static final byte[] IN_PROGRESS = new byte[0];
+
+    private static final int STRIPES = 16;
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    /**
+     * A new DuplicateCache is constructed empty.
+     * @param capacity Number of responses kept.
+     */
+    public DuplicateCache(int capacity) {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe(Math.max(1, capacity / STRIPES));
+        }
+    }
+
+    /**
+     * Looks up a request, and registers it as in progress if it was not seen before.
+     * @param client Address of the client.
+     * @param id Request ID chosen by the client.
+     * @return Null if the request is new and must be executed, IN_PROGRESS if it is being
+     *         executed, or the response that was sent for it.
+     */
+    public byte[] begin(SocketAddress client, long id) {
+        Key key = new Key(client, id);
+        Stripe stripe = stripeFor(key);
+        synchronized (stripe) {
+            return stripe.putIfAbsent(key, IN_PROGRESS);
+        }
+    }
+
+    /**
+     * Records the response to a request registered with begin.
+     * @param client Address of the client.
+     * @param id Request ID chosen by the client.
+     * @param response The response sent to the client.
+     */
+    public void complete(SocketAddress client, long id, byte[] response) {
+        Key key = new Key(client, id);
+        Stripe stripe = stripeFor(key);
+        synchronized (stripe) {
+            stripe.replace(key, response);
+        }
+    }
+
+    /**
+     * Forgets a request registered with begin that produced no response, so that a retry is executed.
+     * @param client Address of the client.
+     * @param id Request ID chosen by the client.
+     */
+    public void abandon(SocketAddress client, long id) {
+        Key key = new Key(client, id);
+        Stripe stripe = stripeFor(key);
+        synchronized (stripe) {
+            stripe.remove(key, IN_PROGRESS);
+        }
+    }
+
+    private Stripe stripeFor(Key key) {
+        int hash = key.hashCode();
+        return stripes[(hash ^ (hash >>> 16)) & (STRIPES - 1)];
+    }
+
+    /**
+     * Key identifies a request by its client and ID.
+     */
+    private static final class Key {
+        final SocketAddress client;
+        final long id;
+
+        Key(SocketAddress client, long id) {
+            this.client = client;
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) return false;
+            Key key = (Key) other;
+            return id == key.id && client.equals(key.client);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * client.hashCode() + Long.hashCode(id);
+        }
+    }
+
+    /**
+     * Stripe is an insertion-ordered map dropping its eldest entry when it is full.
+     */
+    private static final class Stripe extends LinkedHashMap<Key, byte[]> {
+        private static final long serialVersionUID = 1L;
+
+        private final int capacity;
+
+        Stripe(int capacity) {
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, byte[]> eldest) {
+            return size() > capacity;
+        }
+    }
+}
@@ -0,0 +1,380 @@
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+
+/**
+ * EvictionPolicy decides which key a BoundedKeyValueStore evicts when it is over its budget.
+ * Policies are not thread-safe: the store only calls them while holding its policy lock.
+ * Every operation runs in constant (amortized) time.
+ */
+public interface EvictionPolicy {
+
+    /**
+     * Records that a key was added to the store.
+     * @param key The new key.
+     */
+    void onInsert(String key);
+
+    /**
+     * Records that a key was read or overwritten. Keys the policy does not track are ignored.
+     * @param key The accessed key.
+     */
+    void onAccess(String key);
+
+    /**
+     * Records that a key was removed from the store by a client.
+     * @param key The removed key.
+     */
+    void onRemove(String key);
+
+    /**
+     * Chooses the next key to evict and stops tracking it.
+     * @return The key to evict, or null if no key is tracked.
+     */
+    String evict();
+
+    /**
+     * Creates a policy by name.
+     * @param name lru, lfu or tinylfu.
+     * @return A new, empty policy.
+     * @throws IllegalArgumentException If the policy is unknown.
+     */
+    static EvictionPolicy create(String name) {
+        switch (name) {
+            case "lru":
+                return new Lru();
+            case "lfu":
+                return new Lfu();
+            case "tinylfu":
+                return new TinyLfu();
+            default:
+                throw new IllegalArgumentException("Unknown eviction policy: " + name);
+        }
+    }
+
+    /**
+     * Lru evicts the least recently used key, kept at the head of an access-ordered map.
+     */
+    class Lru implements EvictionPolicy {
+        private final LinkedHashMap<String, Boolean> keys = new LinkedHashMap<>(16, 0.75f, true);
+
+        @Override
+        public void onInsert(String key) {
+            keys.put(key, Boolean.TRUE);
+        }
+
+        @Override
+        public void onAccess(String key) {
+            keys.get(key);
+        }
+
+        @Override
+        public void onRemove(String key) {
+            keys.remove(key);
+        }
+
+        @Override
+        public String evict() {
+            Iterator<String> iterator = keys.keySet().iterator();
+            if (!iterator.hasNext()) return null;
+            String key = iterator.next();
+            iterator.remove();
+            return key;
+        }
+    }
+
+    /**
+     * Lfu evicts the least frequently used key, and the least recently used one among keys
+     * with the same frequency. Keys are grouped in buckets of equal frequency, linked in
+     * ascending order, so that an access only moves a key to the neighbouring bucket.
+     */
+    class Lfu implements EvictionPolicy {
+        private final HashMap<String, Bucket> buckets = new HashMap<>();
+        private Bucket lowest;
+
+        @Override
+        public void onInsert(String key) {
+            if (buckets.containsKey(key)) {
+                onAccess(key);
+                return;
+            }
+            Bucket bucket = lowest;
+            if (bucket == null || bucket.frequency != 1) {
+                bucket = new Bucket(1);
+                bucket.next = lowest;
+                if (lowest != null) lowest.previous = bucket;
+                lowest = bucket;
+            }
+            bucket.keys.add(key);
+            buckets.put(key, bucket);
+        }
+
+        @Override
+        public void onAccess(String key) {
+            Bucket bucket = buckets.get(key);
+            if (bucket == null) return;
+            Bucket next = bucket.next;
+            if (next == null || next.frequency != bucket.frequency + 1) {
+                next = new Bucket(bucket.frequency + 1);
+                next.previous = bucket;
+                next.next = bucket.next;
+                if (bucket.next != null) bucket.next.previous = next;
+                bucket.next = next;
+            }
+            next.keys.add(key);
+            buckets.put(key, next);
+            removeFrom(bucket, key);
+        }
+
+        @Override
+        public void onRemove(String key) {
+            Bucket bucket = buckets.remove(key);
+            if (bucket != null) removeFrom(bucket, key);
+        }
+
+        @Override
+        public String evict() {
+            if (lowest == null) return null;
+            String key = lowest.keys.iterator().next();
+            buckets.remove(key);
+            removeFrom(lowest, key);
+            return key;
+        }
+
+        /**
+         * Removes a key from its bucket and unlinks the bucket once it is empty.
+         */
+        private void removeFrom(Bucket bucket, String key) {
+            bucket.keys.remove(key);
+            if (!bucket.keys.isEmpty()) return;
+            if (bucket.previous != null) bucket.previous.next = bucket.next;
+            else lowest = bucket.next;
+            if (bucket.next != null) bucket.next.previous = bucket.previous;
+        }
+
+        /**
+         * Bucket holds the keys used a given number of times, least recently used first.
+         */
+        private static class Bucket {
+            final long frequency;
+            final LinkedHashSet<String> keys = new LinkedHashSet<>();
+            Bucket previous;
+            Bucket next;
+
+            Bucket(long frequency) {
+                this.frequency = frequency;
+            }
+        }
+    }
+
+    /**
+     * TinyLfu is a W-TinyLFU policy. New keys enter a small LRU window (1% of the keys);
+     * keys leaving the window are only admitted to the main space if a frequency sketch
+     * estimates they are used more often than the key they would replace. The main space is
+     * a segmented LRU: keys start in probation and move to the protected segment (at most
+     * 80% of the main space) when they are used again. This keeps one-off scans from
+     * flushing the frequently used keys, while the sketch ages old frequencies away.
+     */
+    class TinyLfu implements EvictionPolicy {
+        private final HashMap<String, Node> nodes = new HashMap<>();
+        private final Queue window = new Queue();
+        private final Queue probation = new Queue();
+        private final Queue protectedQueue = new Queue();
+        private final FrequencySketch sketch = new FrequencySketch();
+
+        /**
+         * Oldest key moved from the window to the probation segment during the current run of
+         * evictions, which has not competed for admission yet. The keys after it are newer
+         * candidates.
+         */
+        private Node candidate;
+
+        @Override
+        public void onInsert(String key) {
+            candidate = null;
+            if (nodes.containsKey(key)) {
+                onAccess(key);
+                return;
+            }
+            sketch.ensureCapacity(nodes.size() + 1);
+            sketch.increment(key);
+            Node node = new Node(key, window);
+            nodes.put(key, node);
+            window.addLast(node);
+        }
+
+        @Override
+        public void onAccess(String key) {
+            Node node = nodes.get(key);
+            if (node == null) return;
+            sketch.increment(key);
+            if (node.queue == probation) {
+                if (node == candidate) candidate = node.next;
+                moveTo(node, protectedQueue);
+                // Demote the least recently used protected key if the segment grew too large
+                if (protectedQueue.size * 5 > (protectedQueue.size + probation.size) * 4) {
+                    moveTo(protectedQueue.first, probation);
+                }
+            } else {
+                node.queue.remove(node);
+                node.queue.addLast(node);
+            }
+        }
+
+        @Override
+        public void onRemove(String key) {
+            candidate = null;
+            Node node = nodes.remove(key);
+            if (node != null) node.queue.remove(node);
+        }
+
+        @Override
+        public String evict() {
+            // Keys beyond the window size become candidates at the end of the probation segment
+            int windowSize = Math.max(1, nodes.size() / 100);
+            while (window.size > windowSize) {
+                Node node = window.first;
+                moveTo(node, probation);
+                if (candidate == null) candidate = node;
+            }
+
+            Node victim = probation.first != candidate ? probation.first : protectedQueue.first;
+            Node evicted;
+            if (candidate == null) {
+                evicted = victim != null ? victim : window.first;
+            } else {
+                Node contender = candidate;
+                candidate = candidate.next;
+                if (victim != null && sketch.frequency(contender.key) > sketch.frequency(victim.key)) {
+                    evicted = victim;
+                } else {
+                    evicted = contender;
+                }
+            }
+            if (evicted == null) return null;
+            nodes.remove(evicted.key);
+            evicted.queue.remove(evicted);
+            return evicted.key;
+        }
+
+        private static void moveTo(Node node, Queue queue) {
+            node.queue.remove(node);
+            node.queue = queue;
+            queue.addLast(node);
+        }
+
+        /**
+         * Node is an entry of one of the intrusive LRU queues.
+         */
+        private static class Node {
+            final String key;
+            Queue queue;
+            Node previous;
+            Node next;
+
+            Node(String key, Queue queue) {
+                this.key = key;
+                this.queue = queue;
+            }
+        }
+
+        /**
+         * Queue is a doubly linked list of nodes, least recently used first.
+         */
+        private static class Queue {
+            Node first;
+            Node last;
+            int size;
+
+            void addLast(Node node) {
+                node.previous = last;
+                node.next = null;
+                if (last != null) last.next = node;
+                else first = node;
+                last = node;
+                size++;
+            }
+
+            void remove(Node node) {
+                if (node.previous != null) node.previous.next = node.next;
+                else first = node.next;
+                if (node.next != null) node.next.previous = node.previous;
+                else last = node.previous;
+                node.previous = null;
+                node.next = null;
+                size--;
+            }
+        }
+    }
+
+    /**
+     * FrequencySketch is a count-min sketch of 4-bit counters estimating how often keys were
+     * used recently. When the number of recorded uses reaches ten times the capacity, all
+     * counters are halved, so that keys that are no longer used lose their frequency.
+     */
+    class FrequencySketch {
+        private static final long[] SEEDS = {
+                0xC3A5C85C97CB3127L, 0xB492B66FBE98F273L, 0x9AE16A3B2F90404FL, 0xCBF29CE484222325L};
+        private static final long RESET_MASK = 0x7777777777777777L;
+
+        /**
+         * Sixteen counters per long.
+         */
+        private long[] table = new long[16];
+        private int additions;
+
+        /**
+         * Grows the sketch so that it can tell apart the given number of keys. Growing
+         * starts over with empty counters.
+         * @param keys Number of keys the policy tracks.
+         */
+        void ensureCapacity(int keys) {
+            if (keys <= table.length) return;
+            table = new long[Integer.highestOneBit(keys - 1) << 1];
+            additions = 0;
+        }
+
+        /**
+         * Records a use of the key.
+         */
+        void increment(String key) {
+            int hash = key.hashCode();
+            for (long seed : SEEDS) {
+                int index = index(hash, seed);
+                int shift = (index & 15) << 2;
+                if (((table[index >>> 4] >>> shift) & 0xF) < 15) {
+                    table[index >>> 4] += 1L << shift;
+                }
+            }
+            if (++additions >= table.length * 10) {
+                for (int i = 0; i < table.length; i++) {
+                    table[i] = (table[i] >>> 1) & RESET_MASK;
+                }
+                additions /= 2;
+            }
+        }
+
+        /**
+         * @return The estimated number of recent uses of the key, at most 15.
+         */
+        int frequency(String key) {
+            int hash = key.hashCode();
+            int frequency = 15;
+            for (long seed : SEEDS) {
+                int index = index(hash, seed);
+                frequency = Math.min(frequency, (int) (table[index >>> 4] >>> ((index & 15) << 2)) & 0xF);
+            }
+            return frequency;
+        }
+
+        /**
+         * @return Index of the key's counter in one row of the sketch.
+         */
+        private int index(int hash, long seed) {
+            long h = (hash + seed) * seed;
+            h ^= h >>> 29;
+            return (int) h & ((table.length << 4) - 1);
+        }
+    }
+}
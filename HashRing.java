@@ -0,0 +1,126 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * HashRing is a consistent-hash ring assigning every key to a list of nodes. Each node is
+ * placed on the ring at many points (virtual nodes), and a key belongs to the nodes of the
+ * first distinct points found clockwise from its hash: the first is its primary, the next
+ * ones its followers. Adding or removing a node only moves the keys next to its points,
+ * about 1/N of the keyspace, and the virtual nodes spread them over all other nodes.
+ *
+ * A HashRing is immutable; a membership change builds a new one.
+ */
+public final class HashRing {
+
+    private final TreeMap<Long, String> points = new TreeMap<>();
+    private final TreeSet<String> nodes;
+    private final int virtualNodes;
+
+    /**
+     * A new HashRing is constructed with the given nodes.
+     * @param nodes Node names, as host:port.
+     * @param virtualNodes Number of points of every node on the ring.
+     */
+    public HashRing(Collection<String> nodes, int virtualNodes) {
+        this.nodes = new TreeSet<>(nodes);
+        this.virtualNodes = virtualNodes;
+        for (String node : this.nodes) {
+            for (int i = 0; i < virtualNodes; i++) {
+                points.put(hash(node + "#" + i), node);
+            }
+        }
+    }
+
+    /**
+     * @return The nodes of the ring, sorted by name.
+     */
+    public Collection<String> nodes() {
+        return Collections.unmodifiableSet(nodes);
+    }
+
+    /**
+     * @return True if the node is a member of the ring.
+     */
+    public boolean contains(String node) {
+        return nodes.contains(node);
+    }
+
+    /**
+     * @return A ring with the node added.
+     */
+    public HashRing with(String node) {
+        List<String> members = new ArrayList<>(nodes);
+        if (!nodes.contains(node)) members.add(node);
+        return new HashRing(members, virtualNodes);
+    }
+
+    /**
+     * @return A ring with the node removed.
+     */
+    public HashRing without(String node) {
+        List<String> members = new ArrayList<>(nodes);
+        members.remove(node);
+        return new HashRing(members, virtualNodes);
+    }
+
+    /**
+     * Finds the nodes holding a key.
+     * @param key The key.
+     * @param count Number of copies of the key, the primary included.
+     * @return The primary first, then the followers; fewer if the ring has fewer nodes.
+     */
+    public List<String> owners(String key, int count) {
+        List<String> owners = new ArrayList<>(count);
+        if (points.isEmpty()) return owners;
+        long hash = hash(key);
+        for (Map.Entry<Long, String> entry : points.tailMap(hash).entrySet()) {
+            if (addOwner(owners, entry.getValue(), count)) return owners;
+        }
+        // Wrap around the ring
+        for (Map.Entry<Long, String> entry : points.headMap(hash).entrySet()) {
+            if (addOwner(owners, entry.getValue(), count)) return owners;
+        }
+        return owners;
+    }
+
+    /**
+     * @return The primary node of the key, or null if the ring is empty.
+     */
+    public String primary(String key) {
+        if (points.isEmpty()) return null;
+        Map.Entry<Long, String> entry = points.ceilingEntry(hash(key));
+        return (entry != null ? entry : points.firstEntry()).getValue();
+    }
+
+    /**
+     * Adds a node to the owners unless it is there already.
+     * @return True once the owners list is complete.
+     */
+    private static boolean addOwner(List<String> owners, String node, int count) {
+        if (!owners.contains(node)) owners.add(node);
+        return owners.size() == count;
+    }
+
+    /**
+     * Hashes a string to 64 bits: FNV-1a over its chars, followed by the MurmurHash3
+     * finalizer, which spreads similar keys (key1, key2, ...) over the whole ring.
+     */
+    static long hash(String text) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < text.length(); i++) {
+            hash ^= text.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
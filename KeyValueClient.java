@@ -0,0 +1,500 @@
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * KeyValueClient is an asynchronous client for applications that use the store. Every
+ * operation returns a CompletableFuture at once and is sent over one of a pool of TCP
+ * connections using the binary protocol, so any number of threads can share the client.
+ *
+ * The connections are multiplexed by pipelining: requests are written as soon as they are
+ * issued, without waiting for earlier responses, and requests issued while a write is in
+ * progress are written together in a single batch. The server answers the requests of a
+ * connection in order, so each connection completes its futures first-in first-out from
+ * a reader thread. A client created with a writer thread per connection never writes on
+ * the calling thread: requests are only queued, so a caller holding a lock is not held up
+ * by a slow server, and the queue grows until the timeout fails the connection.
+ *
+ * A request that gets no response within the timeout fails, and since the responses of
+ * a connection arrive in order, the connection is considered stuck: it is closed, its other
+ * requests fail, and it is reconnected in the background with exponential backoff while
+ * the other connections take over its traffic.
+ */
+public class KeyValueClient implements AutoCloseable {
+
+    private static final long MIN_RECONNECT_DELAY_MILLIS = 50;
+    private static final long MAX_RECONNECT_DELAY_MILLIS = 5000;
+
+    private final InetSocketAddress address;
+    private final long timeoutNanos;
+    private final Slot[] slots;
+    private final AtomicInteger next = new AtomicInteger();
+    private final ScheduledThreadPoolExecutor scheduler;
+    private final boolean writerThreads;
+    private volatile boolean closed;
+
+    /**
+     * A new KeyValueClient is constructed and connected to the server.
+     * @param hostname Hostname of the server.
+     * @param port Port number of the server.
+     * @param connections Number of pooled connections.
+     * @param timeoutMillis Time a request may wait for its response, and a connection attempt may take.
+     * @throws IOException If none of the connections can be opened.
+     */
+    public KeyValueClient(String hostname, int port, int connections, long timeoutMillis) throws IOException {
+        this(hostname, port, connections, timeoutMillis, true, false);
+    }
+
+    /**
+     * Creates a client whose connections are opened in the background, and retried with
+     * backoff until the server is up. Requests fail with a ConnectException meanwhile.
+     * @param hostname Hostname of the server.
+     * @param port Port number of the server.
+     * @param connections Number of pooled connections.
+     * @param timeoutMillis Time a request may wait for its response, and a connection attempt may take.
+     * @return A client that is not connected yet.
+     */
+    public static KeyValueClient connectInBackground(String hostname, int port, int connections, long timeoutMillis) {
+        return connectInBackground(hostname, port, connections, timeoutMillis, false);
+    }
+
+    /**
+     * Creates a client whose connections are opened in the background, like the one above,
+     * optionally with a writer thread per connection.
+     * @param hostname Hostname of the server.
+     * @param port Port number of the server.
+     * @param connections Number of pooled connections.
+     * @param timeoutMillis Time a request may wait for its response, and a connection attempt may take.
+     * @param writerThreads True to write the requests from a thread of each connection, never
+     *                      from the threads issuing them.
+     * @return A client that is not connected yet.
+     */
+    public static KeyValueClient connectInBackground(String hostname, int port, int connections, long timeoutMillis,
+                                                     boolean writerThreads) {
+        try {
+            return new KeyValueClient(hostname, port, connections, timeoutMillis, false, writerThreads);
+        } catch (IOException e) {
+            throw new AssertionError("Nothing is connected yet", e);
+        }
+    }
+
+    /**
+     * A new KeyValueClient is constructed.
+     * @param connect True to open the connections now, false to open them in the background.
+     * @param writerThreads True to write the requests from a thread of each connection.
+     * @throws IOException If connect is true and none of the connections can be opened.
+     */
+    private KeyValueClient(String hostname, int port, int connections, long timeoutMillis, boolean connect,
+                           boolean writerThreads) throws IOException {
+        if (connections < 1) throw new IllegalArgumentException("connections must be at least 1");
+        this.address = new InetSocketAddress(hostname, port);
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        this.slots = new Slot[connections];
+        this.writerThreads = writerThreads;
+        this.scheduler = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "kv-client-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        IOException failure = null;
+        for (int i = 0; i < connections; i++) {
+            slots[i] = new Slot();
+            if (!connect) {
+                scheduleReconnect(slots[i]);
+                continue;
+            }
+            try {
+                slots[i].connection = connect();
+            } catch (IOException e) {
+                failure = e;
+                scheduleReconnect(slots[i]);
+            }
+        }
+        if (failure != null && openConnections() == 0) {
+            close();
+            throw failure;
+        }
+
+        // The oldest request of every connection is checked against the timeout periodically
+        long sweepMillis = Math.max(1, Math.min(100, timeoutMillis / 10));
+        scheduler.scheduleAtFixedRate(this::expireRequests, sweepMillis, sweepMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Fetches the value of a key.
+     * @param key The key to fetch.
+     * @return A future completed with the value, or with null if the key does not exist.
+     */
+    public CompletableFuture<String> get(String key) {
+        return request(BinaryProtocol.OP_GET, (byte) 0, key, null).thenApply(response ->
+                response.status == BinaryProtocol.STATUS_NOT_FOUND ? null
+                        : response.value == null ? "" : response.value);
+    }
+
+    /**
+     * Stores a value. Keys and values may hold any chars from 0 to 255, spaces and newlines included.
+     * @param key The key to store.
+     * @param value The value to store.
+     * @return A future completed once the server has stored the value.
+     */
+    public CompletableFuture<Void> put(String key, String value) {
+        return request(BinaryProtocol.OP_PUT, (byte) 0, key, value).thenApply(response -> null);
+    }
+
+    /**
+     * Deletes a key.
+     * @param key The key to delete.
+     * @return A future completed with true if the key existed.
+     */
+    public CompletableFuture<Boolean> delete(String key) {
+        return request(BinaryProtocol.OP_DELETE, (byte) 0, key, null).thenApply(response ->
+                response.status == BinaryProtocol.STATUS_OK);
+    }
+
+    /**
+     * Runs any text command, for example "PUT key value EX 60" or "STATS".
+     * @param command The text command.
+     * @return A future completed with the text response of the server.
+     */
+    public CompletableFuture<String> command(String command) {
+        return request(BinaryProtocol.OP_COMMAND, (byte) 0, "", command).thenApply(response -> response.value);
+    }
+
+    /**
+     * @return Number of pooled connections that are currently open.
+     */
+    public int openConnections() {
+        int open = 0;
+        for (Slot slot : slots) {
+            Connection connection = slot.connection;
+            if (connection != null && connection.open) open++;
+        }
+        return open;
+    }
+
+    /**
+     * Sends a request frame over the next open connection. The operations above use it, and
+     * the cluster nodes use it for the opcodes and flags reserved for them.
+     * @param opcode Operation code of the request.
+     * @param flags Flags of the request.
+     * @param key The key of the request.
+     * @param value The value of the request, or null.
+     * @return A future completed with the response, or with an IOException if the request
+     *         failed, timed out or no connection is open. Error responses fail it as well.
+     */
+    public CompletableFuture<BinaryProtocol.Response> request(byte opcode, byte flags, String key, String value) {
+        Call call = new Call(opcode, flags, key, value);
+        if (closed) {
+            call.result.completeExceptionally(new IOException("Client is closed"));
+            return call.result;
+        }
+        int start = Math.floorMod(next.getAndIncrement(), slots.length);
+        for (int i = 0; i < slots.length; i++) {
+            Connection connection = slots[(start + i) % slots.length].connection;
+            if (connection != null && connection.send(call)) {
+                return call.result;
+            }
+        }
+        call.result.completeExceptionally(new ConnectException("No connection to " + address));
+        return call.result;
+    }
+
+    /**
+     * Opens a connection and starts its reader thread, and its writer thread if there is one.
+     */
+    private Connection connect() throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.socket().connect(address, (int) TimeUnit.NANOSECONDS.toMillis(timeoutNanos));
+            channel.socket().setTcpNoDelay(true);
+            // Switches the connection to the binary protocol
+            channel.write(ByteBuffer.wrap(new byte[] {BinaryProtocol.MAGIC}));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        Connection connection = new Connection(channel);
+        Thread reader = new Thread(connection::readResponses, "kv-client-reader");
+        reader.setDaemon(true);
+        reader.start();
+        if (writerThreads) {
+            Thread writer = new Thread(connection::writeRequests, "kv-client-writer");
+            writer.setDaemon(true);
+            writer.start();
+        }
+        return connection;
+    }
+
+    /**
+     * Reconnects a slot after its backoff delay, doubling the delay after every failure.
+     */
+    private void scheduleReconnect(Slot slot) {
+        if (closed) return;
+        long delay;
+        synchronized (slot) {
+            delay = slot.reconnectDelay;
+            slot.reconnectDelay = Math.min(MAX_RECONNECT_DELAY_MILLIS, delay * 2);
+        }
+        scheduler.schedule(() -> {
+            if (closed) return;
+            try {
+                slot.connection = connect();
+                synchronized (slot) {
+                    slot.reconnectDelay = MIN_RECONNECT_DELAY_MILLIS;
+                }
+            } catch (IOException e) {
+                scheduleReconnect(slot);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Closes the connections whose oldest request has waited longer than the timeout.
+     */
+    private void expireRequests() {
+        long now = System.nanoTime();
+        for (Slot slot : slots) {
+            Connection connection = slot.connection;
+            if (connection != null && connection.open && connection.oldestSentBefore(now - timeoutNanos)) {
+                connection.fail(new SocketTimeoutException("No response within the timeout"));
+            }
+        }
+    }
+
+    /**
+     * Closes the connections and fails the requests still waiting for a response.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        scheduler.shutdownNow();
+        for (Slot slot : slots) {
+            Connection connection = slot.connection;
+            if (connection != null) {
+                connection.fail(new IOException("Client is closed"));
+            }
+        }
+    }
+
+    /**
+     * Slot is a place in the pool, holding its current connection.
+     */
+    private static class Slot {
+        volatile Connection connection;
+
+        /**
+         * Delay before the next reconnection attempt; guarded by this.
+         */
+        long reconnectDelay = MIN_RECONNECT_DELAY_MILLIS;
+    }
+
+    /**
+     * Call is a request waiting for its response.
+     */
+    private static class Call {
+        final byte opcode;
+        final byte flags;
+        final String key;
+        final String value;
+        final CompletableFuture<BinaryProtocol.Response> result = new CompletableFuture<>();
+        long sentAt;
+
+        Call(byte opcode, byte flags, String key, String value) {
+            this.opcode = opcode;
+            this.flags = flags;
+            this.key = key;
+            this.value = value;
+        }
+
+        int encodedSize() {
+            return BinaryProtocol.REQUEST_HEADER_SIZE + key.length() + (value == null ? 0 : value.length());
+        }
+    }
+
+    /**
+     * Connection is one pooled connection. Callers append their encoded requests to a shared
+     * buffer; the caller that finds no write in progress writes the buffer, and keeps writing
+     * whatever the other callers appended meanwhile, so that concurrent requests share writes.
+     * With a writer thread, the caller wakes that thread up instead.
+     */
+    private class Connection {
+        private final SocketChannel channel;
+
+        /**
+         * Requests written or about to be written, in the order of the wire; guarded by this.
+         */
+        private final ArrayDeque<Call> pending = new ArrayDeque<>();
+        private ByteBuffer outgoing = ByteBuffer.allocate(16 * 1024);
+        private ByteBuffer writing = ByteBuffer.allocate(16 * 1024);
+        private boolean flushing;
+        volatile boolean open = true;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Queues a request and writes it, unless another caller or the writer thread is writing
+         * and will pick it up. With a writer thread, the request is never written here.
+         * @return False if the connection is closed and the request was not sent.
+         */
+        boolean send(Call call) {
+            synchronized (this) {
+                if (!open) return false;
+                if (call.key.length() > 0xFFFF
+                        || (call.value != null && call.value.length() > BinaryProtocol.MAX_VALUE_LENGTH)) {
+                    call.result.completeExceptionally(new IllegalArgumentException("Key or value too long"));
+                    return true;
+                }
+                int size = call.encodedSize();
+                if (outgoing.remaining() < size) {
+                    ByteBuffer grown = ByteBuffer.allocate(Math.max(outgoing.capacity() * 2, outgoing.position() + size));
+                    outgoing.flip();
+                    outgoing = grown.put(outgoing);
+                }
+                BinaryProtocol.encodeRequest(outgoing, call.opcode, call.flags, call.key, call.value);
+                call.sentAt = System.nanoTime();
+                pending.add(call);
+                if (flushing) return true;
+                flushing = true;
+                if (writerThreads) {
+                    notify();
+                    return true;
+                }
+            }
+            flush();
+            return true;
+        }
+
+        /**
+         * Writer loop: writes the queued requests whenever there are some, until the
+         * connection is closed.
+         */
+        void writeRequests() {
+            while (true) {
+                synchronized (this) {
+                    while (open && !flushing) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    if (!open) return;
+                }
+                flush();
+            }
+        }
+
+        /**
+         * Writes the queued requests until none are left.
+         */
+        private void flush() {
+            while (true) {
+                ByteBuffer buffer;
+                synchronized (this) {
+                    if (outgoing.position() == 0 || !open) {
+                        flushing = false;
+                        return;
+                    }
+                    // Swap the buffers, so that callers keep appending while this one is written
+                    buffer = outgoing;
+                    outgoing = writing;
+                    writing = buffer;
+                }
+                buffer.flip();
+                try {
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                } catch (IOException e) {
+                    fail(e);
+                }
+                buffer.clear();
+            }
+        }
+
+        /**
+         * @return True if the oldest request waiting for a response was sent before the given time.
+         */
+        synchronized boolean oldestSentBefore(long time) {
+            Call oldest = pending.peek();
+            return oldest != null && oldest.sentAt - time < 0;
+        }
+
+        /**
+         * Reader loop: completes the requests in order as their responses arrive.
+         */
+        void readResponses() {
+            ByteBuffer in = ByteBuffer.allocate(16 * 1024);
+            try {
+                while (true) {
+                    if (!in.hasRemaining()) {
+                        // A single response larger than the buffer
+                        ByteBuffer grown = ByteBuffer.allocate(in.capacity() * 2);
+                        in.flip();
+                        in = grown.put(in);
+                    }
+                    if (channel.read(in) < 0) {
+                        throw new IOException("Connection closed by the server");
+                    }
+                    in.flip();
+                    while (true) {
+                        BinaryProtocol.Response response = new BinaryProtocol.Response();
+                        if (!BinaryProtocol.decodeResponse(in, response)) break;
+                        Call call;
+                        synchronized (this) {
+                            call = pending.poll();
+                        }
+                        if (call == null) throw new IOException("Unexpected response from the server");
+                        if (response.status == BinaryProtocol.STATUS_ERROR) {
+                            call.result.completeExceptionally(new IOException(response.value));
+                        } else {
+                            call.result.complete(response);
+                        }
+                    }
+                    in.compact();
+                }
+            } catch (IOException | IllegalArgumentException e) {
+                fail(e instanceof IOException ? (IOException) e : new IOException(e.getMessage(), e));
+            }
+        }
+
+        /**
+         * Closes the connection, fails its requests and schedules a reconnection.
+         */
+        void fail(IOException cause) {
+            Call[] failed;
+            synchronized (this) {
+                if (!open) return;
+                open = false;
+                failed = pending.toArray(new Call[0]);
+                pending.clear();
+                // Stops the writer thread
+                notifyAll();
+            }
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // The connection is abandoned anyway
+            }
+            for (Call call : failed) {
+                call.result.completeExceptionally(cause);
+            }
+            for (Slot slot : slots) {
+                if (slot.connection == this) {
+                    scheduleReconnect(slot);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,97 @@
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * KeyValueServer serves the TCP and the UDP protocols from a single process and a single
+ * store, so that a key written over one transport is read over the other.
+ *
+ * Each transport has I/O threads of its own: TCP event loops and UDP receivers, which only
+ * read, decode and answer requests. The commands of both run on one shared CommandExecutor,
+ * with a bounded queue per transport polled in turn, so a flood of datagrams fills its own
+ * queue and is dropped there, while the TCP commands keep their share of the executor.
+ */
+public class KeyValueServer {
+    private static final DateTimeFormatter formatter = DateTimeFormatter.ofPattern
+    ("yyyy-MM-dd HH:mm:ss.SSS");
+
+    /**
+     * Default number of commands waiting in the queue of each transport.
+     */
+    private static final int DEFAULT_QUEUE_SIZE = 1024;
+
+    /**
+     * Main method for the unified server.
+     * @param args Command Line Arguments to run the server: port number of the server, used
+     *             for both TCP and UDP, optionally followed by the flags described in README.md.
+     */
+    public static void main(String[] args) {
+        // Check for correct number of arguments to run the server
+        ServerOptions options = new ServerOptions(args);
+        if (options.positional().size() != 1) {
+            printWithTimestamp("Sample Usage: java KeyValueServer <port number> [--option=value ...]"
+            + " (the options are described in README.md)");
+            return;
+        }
+
+        int port = Integer.parseInt(options.positional().get(0));
+        AsyncLogger log = new AsyncLogger("kvserver.log", options);
+        TCPServer.log = log;
+        UDPServer.log = log;
+        CommandHandler commandHandler;
+        CommandExecutor executor;
+        CommandExecutor.Lane tcpLane;
+        CommandExecutor.Lane udpLane;
+        int udpPort;
+        int tcpThreads;
+        int udpThreads;
+        try {
+            udpPort = options.getInt("udp-port", port);
+            tcpThreads = options.getInt("tcp-threads", 1);
+            udpThreads = options.getInt("udp-threads", 1);
+            if (tcpThreads < 1 || udpThreads < 1) {
+                throw new IllegalArgumentException("--tcp-threads and --udp-threads must be at least 1");
+            }
+            UDPServer.checkOptions(options);
+            if (options.has("cluster") || options.has("join")) {
+                // Forwarded requests would wait for other nodes on the shared executor threads
+                throw new IllegalArgumentException("Cluster mode is only supported by the TCP server");
+            }
+            TCPServer.watchQueue = options.getInt("watch-queue", TCPServer.watchQueue);
+
+            executor = new CommandExecutor(
+                    options.getInt("executor-threads", Runtime.getRuntime().availableProcessors()), log);
+            int queueSize = options.getInt("queue-size", DEFAULT_QUEUE_SIZE);
+            tcpLane = executor.addLane(queueSize);
+            udpLane = executor.addLane(queueSize);
+            commandHandler = CommandHandler.fromOptions(options, log);
+        } catch (IOException | IllegalArgumentException ex) {
+            log.severe("Failed to start the server: " + ex.getMessage());
+            return;
+        }
+        executor.start();
+
+        Thread[] udpWorkers;
+        try {
+            udpWorkers = UDPServer.start(udpPort, options, udpThreads, commandHandler, udpLane);
+        } catch (IOException ex) {
+            log.severe("Failed to start the server: " + ex.getMessage());
+            return;
+        }
+        // The main thread accepts the TCP connections until the server stops
+        TCPServer.runEventLoops(port, tcpThreads, commandHandler, tcpLane);
+
+        // The TCP side failed; interrupting the UDP workers closes their channels
+        for (Thread worker : udpWorkers) {
+            worker.interrupt();
+        }
+    }
+
+    /**
+     * Helper method to print the message with a timestamp.
+     * @param message The message to be printed along with the timestamp on the console.
+     */
+    private static void printWithTimestamp(String message) {
+        System.out.println("[" + LocalDateTime.now().format(formatter) + "] " + message);
+    }
+}
@@ -0,0 +1,43 @@
+import java.util.function.BiConsumer;
+
+/**
+ * KeyValueStore is the storage engine interface used by the CommandHandler.
+ * Implementations must be safe for concurrent use, as a single store is shared
+ * by every client connection of a server.
+ */
+public interface KeyValueStore {
+
+    /**
+     * Fetches the value stored for a key.
+     * @param key The key to look up.
+     * @return The stored value, or null if the key does not exist.
+     */
+    String get(String key);
+
+    /**
+     * Stores a key-value pair, replacing any existing value.
+     * @param key The key to be stored.
+     * @param value The value to be associated with the key.
+     * @return The previous value for the key, or null if there was none.
+     */
+    String put(String key, String value);
+
+    /**
+     * Removes a key and its value from the store.
+     * @param key The key to be removed.
+     * @return The removed value, or null if the key did not exist.
+     */
+    String remove(String key);
+
+    /**
+     * @return The number of key-value pairs currently held by the store.
+     */
+    int size();
+
+    /**
+     * Visits every key-value pair of the store. The iteration does not block writers, and
+     * changes made while it runs may or may not be seen.
+     * @param action Callback receiving each key and its value.
+     */
+    void forEach(BiConsumer<String, String> action);
+}
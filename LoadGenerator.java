@@ -0,0 +1,435 @@
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LoadGenerator drives a server with GET and PUT commands from several connections for a
+ * fixed duration, then reports the throughput and a latency histogram.
+ *
+ * With a target rate the load is open-loop: every connection sends its commands on a fixed
+ * schedule, and the latency of a command is measured from the time it was scheduled, not
+ * from the time it was sent. A server stall then shows up in the latency of every command
+ * that should have been sent during the stall, instead of only the one that was waiting,
+ * which avoids coordinated omission. Without a rate, every connection sends its next
+ * command as soon as the previous response arrives.
+ */
+public class LoadGenerator {
+    private static final DateTimeFormatter formatter = DateTimeFormatter.ofPattern
+    ("yyyy-MM-dd HH:mm:ss.SSS");
+
+    /**
+     * Connection is one client connection able to send a command and wait for its response.
+     */
+    public interface Connection extends AutoCloseable {
+        /**
+         * Sends a command and waits for its response. After an exception, the connection is
+         * closed and replaced rather than used again, since a late response to the failed
+         * command could otherwise be taken for the response to the next one.
+         * @param command The text command.
+         * @return The response of the server.
+         * @throws IOException If no response arrives.
+         */
+        String send(String command) throws IOException;
+
+        @Override
+        void close() throws IOException;
+    }
+
+    /**
+     * Connector opens the connections of the load generator.
+     */
+    public interface Connector {
+        /**
+         * @return A new connection to the server.
+         * @throws IOException If the server cannot be reached.
+         */
+        Connection open() throws IOException;
+    }
+
+    private final Connector connector;
+    private final int connections;
+    private final double readRatio;
+    private final int keyCount;
+    private final boolean zipfian;
+    private final double zipfExponent;
+    private final String value;
+    private final long rate;
+    private final long durationNanos;
+    private final boolean preload;
+
+    /**
+     * A new LoadGenerator is constructed from the client options.
+     * @param connector Opens the connections to the server.
+     * @param options --connections, --read-ratio, --keys, --distribution, --zipf-exponent,
+     *                --value-size, --rate, --duration and --preload, as described in README.md.
+     * @throws IllegalArgumentException If an option is out of range.
+     */
+    public LoadGenerator(Connector connector, ServerOptions options) {
+        this.connector = connector;
+        this.connections = options.getInt("connections", 4);
+        this.readRatio = Double.parseDouble(options.get("read-ratio", "0.9"));
+        this.keyCount = options.getInt("keys", 100_000);
+        this.zipfExponent = Double.parseDouble(options.get("zipf-exponent", "0.99"));
+        this.rate = options.getInt("rate", 0);
+        this.durationNanos = TimeUnit.SECONDS.toNanos(options.getInt("duration", 10));
+        this.preload = options.has("preload");
+        int valueSize = options.getInt("value-size", 100);
+
+        String distribution = options.get("distribution", "uniform");
+        switch (distribution) {
+            case "uniform":
+                this.zipfian = false;
+                break;
+            case "zipfian":
+                this.zipfian = true;
+                break;
+            default:
+                throw new IllegalArgumentException("--distribution must be uniform or zipfian");
+        }
+        if (connections < 1) {
+            throw new IllegalArgumentException("--connections must be at least 1");
+        }
+        if (readRatio < 0 || readRatio > 1) {
+            throw new IllegalArgumentException("--read-ratio must be between 0 and 1");
+        }
+        if (keyCount < 1 || valueSize < 1 || rate < 0 || durationNanos <= 0) {
+            throw new IllegalArgumentException("--keys, --value-size and --duration must be positive");
+        }
+
+        // A random printable value, built once; the commands only differ in their keys
+        StringBuilder builder = new StringBuilder(valueSize);
+        Random random = new Random(42);
+        for (int i = 0; i < valueSize; i++) {
+            builder.append((char) ('a' + random.nextInt(26)));
+        }
+        this.value = builder.toString();
+    }
+
+    /**
+     * Runs the load and prints the results.
+     * @throws IOException If a connection cannot be opened.
+     * @throws InterruptedException If interrupted while waiting for the connections.
+     */
+    public void run() throws IOException, InterruptedException {
+        List<Connection> opened = new ArrayList<>();
+        try {
+            for (int i = 0; i < connections; i++) {
+                opened.add(connector.open());
+            }
+            if (preload) {
+                preload(opened);
+            }
+
+            KeyChooser keys = zipfian ? new ZipfianKeys(keyCount, zipfExponent) : new UniformKeys(keyCount);
+            LatencyHistogram[] histograms = new LatencyHistogram[connections];
+            AtomicLong errors = new AtomicLong();
+            Thread[] threads = new Thread[connections];
+            long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(10);
+            for (int i = 0; i < connections; i++) {
+                LatencyHistogram histogram = histograms[i] = new LatencyHistogram();
+                int index = i;
+                // Connections start their schedules staggered, so the commands are spread evenly
+                long offset = rate > 0 ? i * TimeUnit.SECONDS.toNanos(1) / rate : 0;
+                threads[i] = new Thread(() -> drive(opened, index, keys, start + offset, histogram, errors),
+                        "load-" + (i + 1));
+                threads[i].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+
+            LatencyHistogram total = new LatencyHistogram();
+            for (LatencyHistogram histogram : histograms) {
+                total.add(histogram);
+            }
+            report(total, errors.get(), System.nanoTime() - start);
+        } finally {
+            for (Connection connection : opened) {
+                try {
+                    connection.close();
+                } catch (IOException ignored) {
+                    // The results are already printed
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes every key once, spread over the connections, so that reads find their keys.
+     */
+    private void preload(List<Connection> opened) throws InterruptedException {
+        Thread[] threads = new Thread[opened.size()];
+        for (int i = 0; i < threads.length; i++) {
+            int first = i;
+            threads[i] = new Thread(() -> {
+                Connection connection = opened.get(first);
+                for (int key = first; key < keyCount; key += threads.length) {
+                    try {
+                        connection.send("PUT key" + key + " " + value);
+                    } catch (IOException e) {
+                        // A key missing from the store only turns some reads into misses
+                        try {
+                            connection = reopen(opened, first);
+                        } catch (IOException reconnect) {
+                            return;
+                        }
+                    }
+                }
+            }, "preload-" + (i + 1));
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        printWithTimestamp("Preloaded " + keyCount + " keys");
+    }
+
+    /**
+     * Sends commands on one connection until the duration has passed. A connection that fails
+     * a command is replaced by a new one; if none can be opened, the driver stops.
+     * @param opened The connections, in which the driver replaces its own.
+     * @param index Index of the connection of the driver.
+     * @param keys Chooses the key of every command.
+     * @param start Time at which the first command is scheduled.
+     * @param histogram Receives the latency of every command, in microseconds.
+     * @param errors Counts the commands that got no response.
+     */
+    private void drive(List<Connection> opened, int index, KeyChooser keys, long start, LatencyHistogram histogram,
+                       AtomicLong errors) {
+        Connection connection = opened.get(index);
+        long interval = rate > 0 ? TimeUnit.SECONDS.toNanos(connections) / rate : 0;
+        long end = start + durationNanos;
+        long scheduled = start;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        while (true) {
+            long now = System.nanoTime();
+            if (interval > 0) {
+                if (scheduled >= end) return;
+                // Open loop: wait for the scheduled time, but never skip a command that is late
+                if (scheduled > now) {
+                    sleepUntil(scheduled);
+                }
+            } else {
+                if (now >= end) return;
+                scheduled = now;
+            }
+
+            String key = "key" + keys.next(random);
+            String command = random.nextDouble() < readRatio ? "GET " + key : "PUT " + key + " " + value;
+            try {
+                connection.send(command);
+                histogram.record((System.nanoTime() - scheduled) / 1000);
+            } catch (IOException e) {
+                errors.incrementAndGet();
+                try {
+                    connection = reopen(opened, index);
+                } catch (IOException reconnect) {
+                    printWithTimestamp("Connection " + (index + 1) + " stopped: " + reconnect.getMessage());
+                    return;
+                }
+            }
+            scheduled += interval;
+        }
+    }
+
+    /**
+     * Closes a connection that failed a command and opens its replacement.
+     * @param opened The connections, in which the replacement takes the place of the failed one.
+     * @param index Index of the failed connection.
+     * @return The new connection.
+     * @throws IOException If the new connection cannot be opened.
+     */
+    private Connection reopen(List<Connection> opened, int index) throws IOException {
+        try {
+            opened.get(index).close();
+        } catch (IOException ignored) {
+            // The connection is abandoned anyway
+        }
+        Connection connection = connector.open();
+        opened.set(index, connection);
+        return connection;
+    }
+
+    /**
+     * Waits until the given time, sleeping for most of it and spinning for the last 100 microseconds.
+     */
+    private static void sleepUntil(long deadline) {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            if (remaining > 100_000) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(remaining - 100_000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            } else {
+                Thread.onSpinWait();
+            }
+        }
+    }
+
+    /**
+     * Prints the throughput and the latency percentiles.
+     */
+    private void report(LatencyHistogram histogram, long errors, long elapsedNanos) {
+        long operations = histogram.count();
+        double seconds = elapsedNanos / 1e9;
+        printWithTimestamp(String.format("Completed %d operations in %.1f s: %.0f ops/s (target %s), %d errors",
+                operations, seconds, operations / seconds, rate > 0 ? rate + " ops/s" : "none", errors));
+        if (operations == 0) return;
+
+        printWithTimestamp("Latency percentiles (microseconds):");
+        double[] percentiles = {50, 75, 90, 99, 99.9, 99.99};
+        for (double percentile : percentiles) {
+            System.out.printf("  p%-6s %10d%n", format(percentile), histogram.percentile(percentile));
+        }
+        System.out.printf("  %-7s %10d%n", "max", histogram.max());
+        System.out.printf("  %-7s %10.1f%n", "mean", histogram.mean());
+    }
+
+    /**
+     * @return The percentile without a fraction if it has none, e.g. 99 or 99.9.
+     */
+    private static String format(double percentile) {
+        return percentile == Math.rint(percentile) ? String.valueOf((long) percentile) : String.valueOf(percentile);
+    }
+
+    /**
+     * Helper method to print the message with a timestamp.
+     * @param message The message to be printed along with the timestamp on the console.
+     */
+    private static void printWithTimestamp(String message) {
+        System.out.println("[" + LocalDateTime.now().format(formatter) + "] " + message);
+    }
+
+    /**
+     * KeyChooser picks key numbers between 0 and the key count.
+     */
+    private interface KeyChooser {
+        int next(Random random);
+    }
+
+    /**
+     * UniformKeys picks every key with the same probability.
+     */
+    private static class UniformKeys implements KeyChooser {
+        private final int keyCount;
+
+        UniformKeys(int keyCount) {
+            this.keyCount = keyCount;
+        }
+
+        @Override
+        public int next(Random random) {
+            return random.nextInt(keyCount);
+        }
+    }
+
+    /**
+     * ZipfianKeys picks key i with a probability proportional to 1 / (i + 1)^exponent, so that
+     * a few keys are very hot and most are rarely touched. It uses the rejection-free method of
+     * Gray et al. ("Quickly Generating Billion-Record Synthetic Databases"), as YCSB does.
+     */
+    private static class ZipfianKeys implements KeyChooser {
+        private final int keyCount;
+        private final double exponent;
+        private final double zetaN;
+        private final double alpha;
+        private final double eta;
+
+        ZipfianKeys(int keyCount, double exponent) {
+            if (exponent <= 0 || exponent == 1) {
+                throw new IllegalArgumentException("--zipf-exponent must be positive and not 1");
+            }
+            this.keyCount = keyCount;
+            this.exponent = exponent;
+            this.zetaN = zeta(keyCount, exponent);
+            this.alpha = 1 / (1 - exponent);
+            this.eta = (1 - Math.pow(2.0 / keyCount, 1 - exponent)) / (1 - zeta(2, exponent) / zetaN);
+        }
+
+        private static double zeta(int n, double exponent) {
+            double sum = 0;
+            for (int i = 1; i <= n; i++) {
+                sum += 1 / Math.pow(i, exponent);
+            }
+            return sum;
+        }
+
+        @Override
+        public int next(Random random) {
+            double u = random.nextDouble();
+            double uz = u * zetaN;
+            if (uz < 1) return 0;
+            if (uz < 1 + Math.pow(0.5, exponent)) return Math.min(1, keyCount - 1);
+            return Math.min(keyCount - 1, (int) (keyCount * Math.pow(eta * u - eta + 1, alpha)));
+        }
+    }
+
+    /**
+     * LatencyHistogram counts values in log-linear buckets, like an HdrHistogram with two
+     * significant digits: values below 128 are counted exactly, and larger values in buckets
+     * whose width is under 1/64 of their value. Recording is O(1) and the memory is fixed,
+     * however many values are recorded. Not thread-safe; every connection has its own.
+     */
+    public static class LatencyHistogram {
+        private static final LogLinearBuckets BUCKETS = new LogLinearBuckets(7);
+
+        private final long[] counts = new long[BUCKETS.bucketCount(Long.MAX_VALUE)];
+        private long count;
+        private long sum;
+        private long max;
+
+        /**
+         * Records a value.
+         * @param value A non-negative value, for example a latency in microseconds.
+         */
+        public void record(long value) {
+            value = Math.max(0, value);
+            counts[BUCKETS.index(value)]++;
+            count++;
+            sum += value;
+            max = Math.max(max, value);
+        }
+
+        /**
+         * Adds the values of another histogram to this one.
+         */
+        public void add(LatencyHistogram other) {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] += other.counts[i];
+            }
+            count += other.count;
+            sum += other.sum;
+            max = Math.max(max, other.max);
+        }
+
+        /**
+         * @param percentile Percentage of the values, between 0 and 100.
+         * @return The highest value of the bucket holding the given percentile, or 0 if empty.
+         */
+        public long percentile(double percentile) {
+            return Math.min(max, BUCKETS.percentile(counts, count, percentile));
+        }
+
+        public long count() {
+            return count;
+        }
+
+        public long max() {
+            return max;
+        }
+
+        public double mean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+    }
+}
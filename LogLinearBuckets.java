@@ -0,0 +1,72 @@
+/**
+ * LogLinearBuckets maps non-negative values to the buckets of a log-linear histogram, as
+ * HdrHistogram does: values below 2^subBucketBits are counted exactly, and every larger power
+ * of two is split into 2^(subBucketBits - 1) buckets of equal width. The histograms of the
+ * server metrics and of the load generator keep their counts in their own way and share this
+ * mapping, with the precision each of them needs.
+ */
+public final class LogLinearBuckets {
+    private final int subBucketBits;
+    private final int half;
+
+    /**
+     * A new LogLinearBuckets is constructed for the given precision.
+     * @param subBucketBits Number of significant bits kept of every value, between 1 and 62.
+     */
+    public LogLinearBuckets(int subBucketBits) {
+        if (subBucketBits < 1 || subBucketBits > 62) {
+            throw new IllegalArgumentException("subBucketBits must be between 1 and 62");
+        }
+        this.subBucketBits = subBucketBits;
+        this.half = 1 << (subBucketBits - 1);
+    }
+
+    /**
+     * Finds the bucket of a value. A value of 2^subBucketBits or more keeps its subBucketBits
+     * most significant bits, shifted right by shift, in the half-range of that shift.
+     * @param value A non-negative value.
+     * @return Index of its bucket.
+     */
+    public int index(long value) {
+        if (value < 2 * half) return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - subBucketBits + 1;
+        return shift * half + (int) (value >>> shift);
+    }
+
+    /**
+     * @param index Index of a bucket.
+     * @return The highest value counted in the bucket.
+     */
+    public long highestValue(int index) {
+        if (index < 2 * half) return index;
+        int shift = index / half - 1;
+        long mantissa = index - (long) shift * half;
+        return ((mantissa + 1) << shift) - 1;
+    }
+
+    /**
+     * @param maxValue The highest value to be counted in its own bucket.
+     * @return Number of buckets needed for the values up to maxValue.
+     */
+    public int bucketCount(long maxValue) {
+        return index(maxValue) + 1;
+    }
+
+    /**
+     * Finds a percentile of the values counted in buckets.
+     * @param counts Number of values of every bucket.
+     * @param total Sum of the counts.
+     * @param percentile Percentage of the values, between 0 and 100.
+     * @return The highest value of the bucket holding the percentile, or 0 if there are no values.
+     */
+    public long percentile(long[] counts, long total, double percentile) {
+        if (total == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) return highestValue(i);
+        }
+        return highestValue(counts.length - 1);
+    }
+}
@@ -0,0 +1,260 @@
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Metrics counts the work done by a server: calls and latency per command, bytes received
+ * and sent, and connections. Every counter is a LongAdder, which spreads concurrent updates
+ * over per-thread cells, so recording never makes the request threads contend; the cells
+ * are only summed when the metrics are read by STATS or the Prometheus endpoint.
+ */
+public class Metrics {
+
+    private final long startMillis = System.currentTimeMillis();
+    private final ConcurrentHashMap<String, CommandMetrics> commands = new ConcurrentHashMap<>();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder activeConnections = new LongAdder();
+    private final LongAdder totalConnections = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * Records a call of a command.
+     * @param command Name of the command; callers only pass known commands, so the set stays small.
+     * @param nanos Time spent executing it, in nanoseconds.
+     */
+    public void record(String command, long nanos) {
+        CommandMetrics metrics = commands.get(command);
+        if (metrics == null) {
+            metrics = commands.computeIfAbsent(command, name -> new CommandMetrics());
+        }
+        metrics.calls.increment();
+        metrics.latency.record(nanos);
+    }
+
+    /**
+     * Records bytes received from clients.
+     */
+    public void received(long bytes) {
+        bytesIn.add(bytes);
+    }
+
+    /**
+     * Records bytes sent to clients.
+     */
+    public void sent(long bytes) {
+        bytesOut.add(bytes);
+    }
+
+    /**
+     * Records a request dropped because the command queue of its transport was full.
+     */
+    public void rejected() {
+        rejected.increment();
+    }
+
+    /**
+     * Records a client connection being accepted.
+     */
+    public void connectionOpened() {
+        activeConnections.increment();
+        totalConnections.increment();
+    }
+
+    /**
+     * Records a client connection being closed.
+     */
+    public void connectionClosed() {
+        activeConnections.decrement();
+    }
+
+    /**
+     * Appends the server counters and, for every command called so far, its calls and latency
+     * percentiles in microseconds, as comma separated name=value pairs.
+     * @param stats Receives the pairs, each preceded by ", ".
+     */
+    public void appendStats(StringBuilder stats) {
+        stats.append(", uptime_seconds=").append((System.currentTimeMillis() - startMillis) / 1000)
+             .append(", connections=").append(activeConnections.sum())
+             .append(", connections_total=").append(totalConnections.sum())
+             .append(", bytes_in=").append(bytesIn.sum())
+             .append(", bytes_out=").append(bytesOut.sum())
+             .append(", rejected=").append(rejected.sum());
+        for (Map.Entry<String, CommandMetrics> entry : new TreeMap<>(commands).entrySet()) {
+            String name = entry.getKey().toLowerCase();
+            CommandMetrics metrics = entry.getValue();
+            long[] counts = metrics.latency.counts();
+            stats.append(", ").append(name).append("_calls=").append(metrics.calls.sum())
+                 .append(", ").append(name).append("_p50_us=").append(micros(Histogram.percentile(counts, 50)))
+                 .append(", ").append(name).append("_p99_us=").append(micros(Histogram.percentile(counts, 99)))
+                 .append(", ").append(name).append("_p999_us=").append(micros(Histogram.percentile(counts, 99.9)));
+        }
+    }
+
+    /**
+     * Appends the metrics in the Prometheus text exposition format.
+     * @param text Receives the metric families.
+     */
+    public void appendPrometheus(StringBuilder text) {
+        gauge(text, "kvstore_uptime_seconds", "Seconds since the server started.",
+                (System.currentTimeMillis() - startMillis) / 1000);
+        gauge(text, "kvstore_connections", "Open client connections.", activeConnections.sum());
+        counter(text, "kvstore_connections_total", "Client connections accepted.", totalConnections.sum());
+        counter(text, "kvstore_received_bytes_total", "Bytes received from clients.", bytesIn.sum());
+        counter(text, "kvstore_sent_bytes_total", "Bytes sent to clients.", bytesOut.sum());
+        counter(text, "kvstore_rejected_requests_total", "Requests dropped because their command queue was full.",
+                rejected.sum());
+
+        Map<String, CommandMetrics> sorted = new TreeMap<>(commands);
+        text.append("# HELP kvstore_commands_total Commands executed.\n")
+            .append("# TYPE kvstore_commands_total counter\n");
+        for (Map.Entry<String, CommandMetrics> entry : sorted.entrySet()) {
+            text.append("kvstore_commands_total{command=\"").append(entry.getKey()).append("\"} ")
+                .append(entry.getValue().calls.sum()).append('\n');
+        }
+
+        // Every power of two is a bucket boundary of the histogram, so these buckets are exact
+        text.append("# HELP kvstore_command_duration_seconds Time spent executing commands.\n")
+            .append("# TYPE kvstore_command_duration_seconds histogram\n");
+        for (Map.Entry<String, CommandMetrics> entry : sorted.entrySet()) {
+            String label = "command=\"" + entry.getKey() + "\"";
+            long[] counts = entry.getValue().latency.counts();
+            long cumulative = 0;
+            long sum = 0;
+            int index = 0;
+            for (int exponent = 10; exponent <= Histogram.MAX_EXPONENT; exponent++) {
+                long bound = 1L << exponent;
+                for (; index < counts.length && Histogram.BUCKETS.highestValue(index) < bound; index++) {
+                    cumulative += counts[index];
+                }
+                text.append("kvstore_command_duration_seconds_bucket{").append(label)
+                    .append(",le=\"").append(bound / 1e9).append("\"} ").append(cumulative).append('\n');
+            }
+            // The exact sum is not kept; every value counts as the top of its bucket
+            for (int i = 0; i < counts.length; i++) {
+                sum += counts[i] * Histogram.BUCKETS.highestValue(i);
+            }
+            long count = 0;
+            for (long c : counts) {
+                count += c;
+            }
+            text.append("kvstore_command_duration_seconds_bucket{").append(label).append(",le=\"+Inf\"} ")
+                .append(count).append('\n')
+                .append("kvstore_command_duration_seconds_sum{").append(label).append("} ")
+                .append(sum / 1e9).append('\n')
+                .append("kvstore_command_duration_seconds_count{").append(label).append("} ")
+                .append(count).append('\n');
+        }
+    }
+
+    /**
+     * Appends a gauge in the Prometheus text exposition format.
+     */
+    static void gauge(StringBuilder text, String name, String help, long value) {
+        family(text, name, help, "gauge", value);
+    }
+
+    /**
+     * Appends a counter in the Prometheus text exposition format.
+     */
+    static void counter(StringBuilder text, String name, String help, long value) {
+        family(text, name, help, "counter", value);
+    }
+
+    private static void family(StringBuilder text, String name, String help, String type, long value) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n')
+            .append("# TYPE ").append(name).append(' ').append(type).append('\n')
+            .append(name).append(' ').append(value).append('\n');
+    }
+
+    /**
+     * Serves the text returned by the supplier at http://127.0.0.1:port/metrics, for scraping
+     * by Prometheus. The endpoint only listens on the loopback interface.
+     * @param port Port number of the endpoint.
+     * @param body Renders the metrics on every request.
+     * @throws IOException If the port cannot be bound.
+     */
+    public static void serve(int port, Supplier<String> body) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] bytes = body.get().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, bytes.length);
+            try (OutputStream output = exchange.getResponseBody()) {
+                output.write(bytes);
+            }
+        });
+        // The HTTP server runs its own dispatcher thread, which must not keep the JVM alive
+        Thread thread = new Thread(server::start, "metrics-endpoint");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Formats nanoseconds as microseconds with one decimal.
+     */
+    private static String micros(long nanos) {
+        return String.valueOf(Math.round(nanos / 100.0) / 10.0);
+    }
+
+    /**
+     * CommandMetrics holds the counters of one command.
+     */
+    private static class CommandMetrics {
+        final LongAdder calls = new LongAdder();
+        final Histogram latency = new Histogram();
+    }
+
+    /**
+     * Histogram counts durations in nanoseconds in log-linear buckets: every power of two is
+     * split into 8 buckets, so a percentile is off by at most 12.5%. Values up to 2^4 are
+     * counted exactly, and values over 2^MAX_EXPONENT (about 69 seconds) in the last bucket.
+     */
+    private static class Histogram {
+        static final int MAX_EXPONENT = 36;
+        static final LogLinearBuckets BUCKETS = new LogLinearBuckets(4);
+
+        private final LongAdder[] buckets = new LongAdder[BUCKETS.bucketCount((1L << MAX_EXPONENT) - 1)];
+
+        Histogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void record(long nanos) {
+            buckets[Math.min(buckets.length - 1, BUCKETS.index(Math.max(0, nanos)))].increment();
+        }
+
+        /**
+         * @return The current count of every bucket.
+         */
+        long[] counts() {
+            long[] counts = new long[buckets.length];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = buckets[i].sum();
+            }
+            return counts;
+        }
+
+        /**
+         * @return The highest value of the bucket holding the percentile, or 0 if there are no values.
+         */
+        static long percentile(long[] counts, double percentile) {
+            long total = 0;
+            for (long count : counts) {
+                total += count;
+            }
+            return BUCKETS.percentile(counts, total, percentile);
+        }
+    }
+}
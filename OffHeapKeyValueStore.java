@@ -0,0 +1,358 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+
+/**
+ * OffHeapKeyValueStore keeps keys and values outside of the Java heap, as their bytes in the
+ * wire charset, appended to direct ByteBuffer slabs. The index is a compact open-addressing
+ * table of primitive arrays, so a stored pair costs the garbage collector no objects at all:
+ * large datasets no longer fill the old generation with Strings that every full collection
+ * has to trace.
+ *
+ * The keyspace is split into segments, each with its own lock, index and slabs. Overwritten
+ * and deleted entries leave garbage behind in the slabs, which is reclaimed by compacting a
+ * segment once at least half of its slab space is garbage.
+ *
+ * Entry layout in a slab: key length (4) | value length (4) | key | value
+ */
+public class OffHeapKeyValueStore implements KeyValueStore {
+
+    private static final int SEGMENT_COUNT = 64;
+    private static final int ENTRY_HEADER_SIZE = 8;
+
+    /**
+     * Slabs start small and double up to the maximum, so that small stores stay small.
+     */
+    private static final int MIN_SLAB_SIZE = 64 * 1024;
+    private static final int MAX_SLAB_SIZE = 8 * 1024 * 1024;
+
+    private final Segment[] segments = new Segment[SEGMENT_COUNT];
+
+    /**
+     * A new OffHeapKeyValueStore is constructed empty.
+     */
+    public OffHeapKeyValueStore() {
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    @Override
+    public String get(String key) {
+        int hash = hash(key);
+        return segmentFor(hash).get(key, hash);
+    }
+
+    @Override
+    public String put(String key, String value) {
+        int hash = hash(key);
+        return segmentFor(hash).put(key, hash, value);
+    }
+
+    @Override
+    public String remove(String key) {
+        int hash = hash(key);
+        return segmentFor(hash).remove(key, hash);
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.count;
+        }
+        return size;
+    }
+
+    /**
+     * Visits the segments one at a time. The pairs of a segment are copied out under its
+     * read lock and handed to the action after the lock is released, so a slow action
+     * (such as writing a snapshot) never blocks writers.
+     */
+    @Override
+    public void forEach(BiConsumer<String, String> action) {
+        List<String> pairs = new ArrayList<>();
+        for (Segment segment : segments) {
+            pairs.clear();
+            segment.copyTo(pairs);
+            for (int i = 0; i < pairs.size(); i += 2) {
+                action.accept(pairs.get(i), pairs.get(i + 1));
+            }
+        }
+    }
+
+    /**
+     * @return Number of bytes of direct memory currently allocated for the slabs.
+     */
+    public long offHeapBytes() {
+        long bytes = 0;
+        for (Segment segment : segments) {
+            bytes += segment.allocatedBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * Spreads the String hash code so that both the segment and the index slot bits are well mixed.
+     */
+    private static int hash(String key) {
+        int h = key.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private Segment segmentFor(int hash) {
+        return segments[hash >>> 26];
+    }
+
+    /**
+     * Segment is one lock-protected part of the store: a linear-probing index of entry
+     * addresses and the slabs holding the entries.
+     */
+    private static class Segment {
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+        /**
+         * Index slots. An address packs the slab number plus one in the high 32 bits and the
+         * offset in the slab in the low 32 bits; 0 marks an empty slot.
+         */
+        private long[] addresses = new long[16];
+        private int[] hashes = new int[16];
+
+        private final List<ByteBuffer> slabs = new ArrayList<>();
+        private ByteBuffer current;
+        private long usedBytes;
+        private long garbageBytes;
+        private volatile int count;
+
+        String get(String key, int hash) {
+            lock.readLock().lock();
+            try {
+                int slot = find(key, hash);
+                if (slot < 0) return null;
+                return readValue(addresses[slot]);
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        String put(String key, int hash, String value) {
+            lock.writeLock().lock();
+            try {
+                long address = append(key, value);
+                int slot = find(key, hash);
+                String previous = null;
+                if (slot >= 0) {
+                    previous = readValue(addresses[slot]);
+                    release(addresses[slot]);
+                    addresses[slot] = address;
+                } else {
+                    if ((count + 1) * 4L > addresses.length * 3L) {
+                        resize();
+                    }
+                    insert(address, hash);
+                    count++;
+                }
+                compactIfNeeded();
+                return previous;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        String remove(String key, int hash) {
+            lock.writeLock().lock();
+            try {
+                int slot = find(key, hash);
+                if (slot < 0) return null;
+                String previous = readValue(addresses[slot]);
+                release(addresses[slot]);
+                delete(slot);
+                count--;
+                compactIfNeeded();
+                return previous;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        void copyTo(List<String> pairs) {
+            lock.readLock().lock();
+            try {
+                for (long address : addresses) {
+                    if (address != 0) {
+                        pairs.add(readKey(address));
+                        pairs.add(readValue(address));
+                    }
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        long allocatedBytes() {
+            lock.readLock().lock();
+            try {
+                long bytes = 0;
+                for (ByteBuffer slab : slabs) {
+                    bytes += slab.capacity();
+                }
+                return bytes;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        /**
+         * @return The index slot holding the key, or -1 if the key is not stored.
+         */
+        private int find(String key, int hash) {
+            int mask = addresses.length - 1;
+            for (int slot = hash & mask; addresses[slot] != 0; slot = (slot + 1) & mask) {
+                if (hashes[slot] == hash && keyEquals(addresses[slot], key)) {
+                    return slot;
+                }
+            }
+            return -1;
+        }
+
+        private void insert(long address, int hash) {
+            int mask = addresses.length - 1;
+            int slot = hash & mask;
+            while (addresses[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            addresses[slot] = address;
+            hashes[slot] = hash;
+        }
+
+        /**
+         * Empties a slot and shifts the following entries of the probe sequence back, so
+         * that lookups never need tombstones.
+         */
+        private void delete(int slot) {
+            int mask = addresses.length - 1;
+            int hole = slot;
+            for (int next = (hole + 1) & mask; addresses[next] != 0; next = (next + 1) & mask) {
+                int home = hashes[next] & mask;
+                // The entry can fill the hole if its home slot is not between the hole and itself
+                if (((next - home) & mask) >= ((next - hole) & mask)) {
+                    addresses[hole] = addresses[next];
+                    hashes[hole] = hashes[next];
+                    hole = next;
+                }
+            }
+            addresses[hole] = 0;
+        }
+
+        private void resize() {
+            long[] oldAddresses = addresses;
+            int[] oldHashes = hashes;
+            addresses = new long[oldAddresses.length * 2];
+            hashes = new int[oldAddresses.length * 2];
+            for (int i = 0; i < oldAddresses.length; i++) {
+                if (oldAddresses[i] != 0) {
+                    insert(oldAddresses[i], oldHashes[i]);
+                }
+            }
+        }
+
+        /**
+         * Appends an entry to the current slab, starting a new slab if it does not fit.
+         * @return The address of the entry.
+         */
+        private long append(String key, String value) {
+            int size = ENTRY_HEADER_SIZE + key.length() + value.length();
+            if (current == null || current.remaining() < size) {
+                int slabSize = current == null ? MIN_SLAB_SIZE : Math.min(current.capacity() * 2, MAX_SLAB_SIZE);
+                current = ByteBuffer.allocateDirect(Math.max(slabSize, size));
+                slabs.add(current);
+            }
+            int offset = current.position();
+            current.putInt(key.length()).putInt(value.length());
+            putChars(current, key);
+            putChars(current, value);
+            usedBytes += size;
+            return ((long) slabs.size() << 32) | offset;
+        }
+
+        private static void putChars(ByteBuffer slab, String text) {
+            for (int i = 0; i < text.length(); i++) {
+                slab.put((byte) text.charAt(i));
+            }
+        }
+
+        /**
+         * Accounts for the entry at the address as garbage.
+         */
+        private void release(long address) {
+            ByteBuffer slab = slabs.get((int) (address >>> 32) - 1);
+            int offset = (int) address;
+            garbageBytes += ENTRY_HEADER_SIZE + slab.getInt(offset) + slab.getInt(offset + 4);
+        }
+
+        /**
+         * Copies the live entries into fresh slabs once at least half of the used space is garbage.
+         */
+        private void compactIfNeeded() {
+            if (garbageBytes < MIN_SLAB_SIZE || garbageBytes * 2 < usedBytes) {
+                return;
+            }
+            // Size the new slabs for the live data instead of restarting from the minimum
+            long liveBytes = usedBytes - garbageBytes;
+            int slabSize = (int) Math.min(MAX_SLAB_SIZE, Math.max(MIN_SLAB_SIZE, Long.highestOneBit(liveBytes)));
+            List<ByteBuffer> oldSlabs = new ArrayList<>(slabs);
+            slabs.clear();
+            current = null;
+            usedBytes = 0;
+            garbageBytes = 0;
+            for (int slot = 0; slot < addresses.length; slot++) {
+                long address = addresses[slot];
+                if (address == 0) continue;
+                ByteBuffer slab = oldSlabs.get((int) (address >>> 32) - 1);
+                int offset = (int) address;
+                int size = ENTRY_HEADER_SIZE + slab.getInt(offset) + slab.getInt(offset + 4);
+                if (current == null || current.remaining() < size) {
+                    current = ByteBuffer.allocateDirect(Math.max(slabSize, size));
+                    slabs.add(current);
+                }
+                int newOffset = current.position();
+                current.put(current.position(), slab, offset, size);
+                current.position(newOffset + size);
+                usedBytes += size;
+                addresses[slot] = ((long) slabs.size() << 32) | newOffset;
+            }
+        }
+
+        private boolean keyEquals(long address, String key) {
+            ByteBuffer slab = slabs.get((int) (address >>> 32) - 1);
+            int offset = (int) address;
+            if (slab.getInt(offset) != key.length()) return false;
+            offset += ENTRY_HEADER_SIZE;
+            for (int i = 0; i < key.length(); i++) {
+                if (slab.get(offset + i) != (byte) key.charAt(i)) return false;
+            }
+            return true;
+        }
+
+        private String readKey(long address) {
+            ByteBuffer slab = slabs.get((int) (address >>> 32) - 1);
+            int offset = (int) address;
+            return readString(slab, offset + ENTRY_HEADER_SIZE, slab.getInt(offset));
+        }
+
+        private String readValue(long address) {
+            ByteBuffer slab = slabs.get((int) (address >>> 32) - 1);
+            int offset = (int) address;
+            int keyLength = slab.getInt(offset);
+            return readString(slab, offset + ENTRY_HEADER_SIZE + keyLength, slab.getInt(offset + 4));
+        }
+
+        private static String readString(ByteBuffer slab, int offset, int length) {
+            byte[] bytes = new byte[length];
+            slab.get(offset, bytes, 0, length);
+            return new String(bytes, CommandHandler.CHARSET);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+import java.util.Collections;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.function.BiConsumer;
+
+/**
+ * OrderedKeyValueStore adds a sorted index of the keys to another storage engine, so that
+ * keys can be listed by prefix or range. The index is a ConcurrentSkipListSet: it is updated
+ * without locks, and iterating it never blocks writers, at the cost of a skip list node per
+ * key and a logarithmic insert on every new key.
+ *
+ * The changes of a key are expected to be serialized, as the CommandHandler does with its
+ * stripe locks. Otherwise a key removed while it is being added may linger in the index
+ * without a value; readers of the index skip such keys.
+ */
+public class OrderedKeyValueStore implements KeyValueStore {
+
+    private final KeyValueStore store;
+    private final ConcurrentSkipListSet<String> keys = new ConcurrentSkipListSet<>();
+
+    /**
+     * A new OrderedKeyValueStore is constructed around an empty store.
+     * @param store The storage engine holding the key-value pairs.
+     */
+    public OrderedKeyValueStore(KeyValueStore store) {
+        this.store = store;
+    }
+
+    @Override
+    public String get(String key) {
+        return store.get(key);
+    }
+
+    @Override
+    public String put(String key, String value) {
+        String previous = store.put(key, value);
+        if (previous == null) keys.add(key);
+        return previous;
+    }
+
+    @Override
+    public String remove(String key) {
+        String previous = store.remove(key);
+        if (previous != null) keys.remove(key);
+        return previous;
+    }
+
+    @Override
+    public int size() {
+        return store.size();
+    }
+
+    @Override
+    public void forEach(BiConsumer<String, String> action) {
+        store.forEach(action);
+    }
+
+    /**
+     * @return The keys in ascending order of their chars. The view is weakly consistent: it
+     *         reflects some of the changes made while it is iterated.
+     */
+    public NavigableSet<String> keys() {
+        return Collections.unmodifiableNavigableSet(keys);
+    }
+
+    /**
+     * @return The storage engine holding the key-value pairs.
+     */
+    public KeyValueStore delegate() {
+        return store;
+    }
+}
@@ -0,0 +1,107 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ServerOptions parses the command-line arguments of the servers into positional
+ * arguments (such as the port number) and optional "--name" or "--name=value" flags.
+ */
+public class ServerOptions {
+
+    /**
+     * Arguments that are not flags, in the order they were given.
+     */
+    private final List<String> positional = new ArrayList<>();
+
+    /**
+     * Flags mapped to their values. Flags without a value map to "true".
+     */
+    private final Map<String, String> flags = new HashMap<>();
+
+    /**
+     * A new ServerOptions is constructed by parsing the given command-line arguments.
+     * @param args Command Line Arguments passed to the server.
+     */
+    public ServerOptions(String[] args) {
+        for (String arg : args) {
+            if (arg.startsWith("--")) {
+                int equals = arg.indexOf('=');
+                if (equals < 0) {
+                    flags.put(arg.substring(2), "true");
+                } else {
+                    flags.put(arg.substring(2, equals), arg.substring(equals + 1));
+                }
+            } else {
+                positional.add(arg);
+            }
+        }
+    }
+
+    /**
+     * @return The positional (non-flag) arguments.
+     */
+    public List<String> positional() {
+        return positional;
+    }
+
+    /**
+     * Checks whether a flag was given.
+     * @param name Name of the flag without the leading dashes.
+     * @return True if the flag was present on the command line.
+     */
+    public boolean has(String name) {
+        return flags.containsKey(name);
+    }
+
+    /**
+     * Fetches the value of a flag.
+     * @param name Name of the flag without the leading dashes.
+     * @param defaultValue Value returned if the flag was not given.
+     * @return The value of the flag or the default value.
+     */
+    public String get(String name, String defaultValue) {
+        return flags.getOrDefault(name, defaultValue);
+    }
+
+    /**
+     * Fetches the value of a numeric flag.
+     * @param name Name of the flag without the leading dashes.
+     * @param defaultValue Value returned if the flag was not given.
+     * @return The value of the flag or the default value.
+     * @throws IllegalArgumentException If the value of the flag is not a number.
+     */
+    public int getInt(String name, int defaultValue) {
+        String value = flags.get(name);
+        if (value == null) return defaultValue;
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value for --" + name + ": " + value);
+        }
+    }
+
+    /**
+     * Fetches the value of a flag holding a number of bytes, optionally followed by a K, M
+     * or G suffix (for example 512M).
+     * @param name Name of the flag without the leading dashes.
+     * @param defaultValue Value returned if the flag was not given.
+     * @return The number of bytes or the default value.
+     * @throws IllegalArgumentException If the value of the flag is not a size.
+     */
+    public long getSize(String name, long defaultValue) {
+        String value = flags.get(name);
+        if (value == null) return defaultValue;
+        String digits = value.toUpperCase();
+        int shift = 0;
+        if (digits.endsWith("K")) shift = 10;
+        else if (digits.endsWith("M")) shift = 20;
+        else if (digits.endsWith("G")) shift = 30;
+        if (shift > 0) digits = digits.substring(0, digits.length() - 1);
+        try {
+            return Long.parseLong(digits) << shift;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value for --" + name + ": " + value);
+        }
+    }
+}
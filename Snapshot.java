@@ -0,0 +1,232 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.function.ToLongFunction;
+
+/**
+ * Snapshot writes a point-in-time image of the keyspace in a compact binary format and loads
+ * it back through a memory-mapped file. A snapshot records the write-ahead log segment that
+ * was started right before it was taken; recovery loads the snapshot and replays only that
+ * segment and the ones after it, so older segments can be deleted.
+ *
+ * Header: magic (4) | version (4) | first segment to replay (8) | entry count (8)
+ * Entry:  key length (4) | value length (4) | expiry deadline (8) | key | value
+ *
+ * The deadline is in milliseconds since the epoch, or 0 for keys without expiry. Version 1
+ * snapshots have no deadline field and are still loaded.
+ */
+public class Snapshot {
+
+    /**
+     * Name of the snapshot file inside the write-ahead log directory.
+     */
+    public static final String FILE_NAME = "snapshot.dat";
+
+    private static final int MAGIC = 0x4B56534E; // "KVSN"
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 24;
+    private static final int ENTRY_HEADER_SIZE = 16;
+    private static final int VERSION_1_ENTRY_HEADER_SIZE = 8;
+
+    /**
+     * Callback receiving the entries of a snapshot being loaded.
+     */
+    public interface EntryHandler {
+        void accept(String key, String value, long deadline);
+    }
+
+    /**
+     * Size of the regions of the file mapped at a time while loading.
+     */
+    private static final long MAPPING_SIZE = 256L * 1024 * 1024;
+
+    /**
+     * Writes a snapshot of the store. The store is iterated while requests keep changing
+     * it, so the snapshot may include some changes made during the iteration; replaying
+     * the segments from firstSegment on corrects them. The file is first written under a
+     * temporary name and forced, then atomically renamed, so a crash never leaves a
+     * partial snapshot behind.
+     * @param file Path of the snapshot file.
+     * @param store The store to be written.
+     * @param firstSegment First write-ahead log segment to replay on top of the snapshot.
+     * @return Number of key-value pairs written.
+     * @throws IOException If the snapshot cannot be written.
+     */
+    public static long write(Path file, KeyValueStore store, long firstSegment) throws IOException {
+        return write(file, store, key -> 0L, firstSegment);
+    }
+
+    /**
+     * Writes a snapshot of the store together with the expiry deadlines of its keys.
+     * @param file Path of the snapshot file.
+     * @param store The store to be written.
+     * @param deadlines Function returning the expiry deadline of a key, or 0 if it has none.
+     * @param firstSegment First write-ahead log segment to replay on top of the snapshot.
+     * @return Number of key-value pairs written.
+     * @throws IOException If the snapshot cannot be written.
+     */
+    public static long write(Path file, KeyValueStore store, ToLongFunction<String> deadlines,
+                             long firstSegment) throws IOException {
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            EntryWriter writer = new EntryWriter(channel, deadlines);
+            writer.buffer.putInt(MAGIC).putInt(VERSION).putLong(firstSegment).putLong(0L);
+            try {
+                store.forEach(writer::add);
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            writer.flush();
+
+            // The number of entries is only known at the end
+            ByteBuffer count = ByteBuffer.allocate(8).putLong(0, writer.count);
+            channel.write(count, 16);
+            channel.force(true);
+
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return writer.count;
+        }
+    }
+
+    /**
+     * Loads a snapshot into the store, ignoring the expiry deadlines.
+     * @param file Path of the snapshot file.
+     * @param store The store receiving the key-value pairs.
+     * @return First write-ahead log segment to replay on top of the snapshot.
+     * @throws IOException If the snapshot cannot be read or is corrupt.
+     */
+    public static long load(Path file, KeyValueStore store) throws IOException {
+        return load(file, (key, value, deadline) -> store.put(key, value));
+    }
+
+    /**
+     * Loads a snapshot by mapping the file into memory region by region.
+     * @param file Path of the snapshot file.
+     * @param handler Callback receiving every key, value and expiry deadline.
+     * @return First write-ahead log segment to replay on top of the snapshot.
+     * @throws IOException If the snapshot cannot be read or is corrupt.
+     */
+    public static long load(Path file, EntryHandler handler) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE) throw new IOException("Snapshot is truncated");
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            int version = header.getInt(4);
+            if (header.getInt(0) != MAGIC || (version != 1 && version != VERSION)) {
+                throw new IOException("Unknown snapshot format");
+            }
+            int entryHeaderSize = version == 1 ? VERSION_1_ENTRY_HEADER_SIZE : ENTRY_HEADER_SIZE;
+            long firstSegment = header.getLong(8);
+            long count = header.getLong(16);
+
+            MappedByteBuffer region = null;
+            long regionStart = 0;
+            long position = HEADER_SIZE;
+            byte[] bytes = new byte[256];
+
+            for (long i = 0; i < count; i++) {
+                // Map the next region whenever the entry header runs past the current one
+                if (region == null || position + entryHeaderSize > regionStart + region.limit()) {
+                    region = map(channel, position, entryHeaderSize, size);
+                    regionStart = position;
+                }
+                int offset = (int) (position - regionStart);
+                int keyLength = region.getInt(offset);
+                int valueLength = region.getInt(offset + 4);
+                long deadline = version == 1 ? 0 : region.getLong(offset + 8);
+                long entrySize = entryHeaderSize + (long) keyLength + valueLength;
+                if (keyLength < 0 || valueLength < 0 || position + entrySize > size) {
+                    throw new IOException("Snapshot is corrupt at offset " + position);
+                }
+                if (position + entrySize > regionStart + region.limit()) {
+                    region = map(channel, position, entrySize, size);
+                    regionStart = position;
+                    offset = 0;
+                }
+
+                int length = keyLength + valueLength;
+                if (bytes.length < length) bytes = new byte[Math.max(length, bytes.length * 2)];
+                region.get(offset + entryHeaderSize, bytes, 0, length);
+                handler.accept(new String(bytes, 0, keyLength, CommandHandler.CHARSET),
+                               new String(bytes, keyLength, valueLength, CommandHandler.CHARSET), deadline);
+                position += entrySize;
+            }
+            return firstSegment;
+        }
+    }
+
+    /**
+     * Maps a region of the file starting at position that holds at least the given number of bytes.
+     */
+    private static MappedByteBuffer map(FileChannel channel, long position, long minimum, long size)
+            throws IOException {
+        long length = Math.min(size - position, Math.max(MAPPING_SIZE, minimum));
+        return channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+    }
+
+    /**
+     * EntryWriter encodes entries into a direct buffer and writes it out whenever it fills up.
+     */
+    private static class EntryWriter {
+        private final FileChannel channel;
+        private final ToLongFunction<String> deadlines;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+        private long count;
+
+        EntryWriter(FileChannel channel, ToLongFunction<String> deadlines) {
+            this.channel = channel;
+            this.deadlines = deadlines;
+        }
+
+        /**
+         * Encodes one entry.
+         * @throws UncheckedIOException If the buffer cannot be written out.
+         */
+        void add(String key, String value) {
+            try {
+                int entrySize = ENTRY_HEADER_SIZE + key.length() + value.length();
+                if (buffer.remaining() < entrySize) {
+                    flush();
+                }
+                if (buffer.remaining() < entrySize) {
+                    // Entries larger than the buffer are written through a buffer of their own
+                    ByteBuffer large = ByteBuffer.allocate(entrySize);
+                    put(large, key, value, deadlines.applyAsLong(key));
+                    large.flip();
+                    while (large.hasRemaining()) channel.write(large);
+                } else {
+                    put(buffer, key, value, deadlines.applyAsLong(key));
+                }
+                count++;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        /**
+         * Writes the buffered entries to the file.
+         */
+        void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) channel.write(buffer);
+            buffer.clear();
+        }
+
+        private static void put(ByteBuffer target, String key, String value, long deadline) {
+            target.putInt(key.length()).putInt(value.length()).putLong(deadline);
+            for (int i = 0; i < key.length(); i++) {
+                target.put((byte) key.charAt(i));
+            }
+            for (int i = 0; i < value.length(); i++) {
+                target.put((byte) value.charAt(i));
+            }
+        }
+    }
+}
@@ -0,0 +1,77 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * SnapshotBenchmark compares the startup time of a server that only replays its write-ahead
+ * log with one that loads a snapshot. Every key is written several times, so the log grows
+ * with the write history while the snapshot only grows with the number of live keys.
+ */
+public class SnapshotBenchmark {
+
+    /**
+     * Main method for the benchmark.
+     * @param args Command Line Arguments: [key count] [writes per key] [value size].
+     */
+    public static void main(String[] args) throws IOException {
+        int keyCount = args.length > 0 ? Integer.parseInt(args[0]) : 10_000_000;
+        int writesPerKey = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+        int valueSize = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+
+        Path directory = Files.createTempDirectory("snapshot-benchmark");
+        try {
+            String value = "v".repeat(valueSize);
+
+            // Build the write history in the log and the live keyspace in a store
+            KeyValueStore store = new ConcurrentKeyValueStore(keyCount);
+            try (WriteAheadLog log = new WriteAheadLog(directory, WriteAheadLog.FsyncPolicy.OS, 0)) {
+                log.replay(1, (op, key, v) -> { });
+                for (int round = 0; round < writesPerKey; round++) {
+                    for (int i = 0; i < keyCount; i++) {
+                        String key = "key" + i;
+                        log.append(WriteAheadLog.OP_PUT, key, value);
+                        if (round == writesPerKey - 1) store.put(key, value);
+                    }
+                }
+            }
+
+            long start = System.nanoTime();
+            long written = Snapshot.write(directory.resolve(Snapshot.FILE_NAME), store, 2);
+            long writeMillis = (System.nanoTime() - start) / 1_000_000;
+            store = null;
+            System.gc();
+
+            // Startup by replaying the whole log
+            KeyValueStore replayed = new ConcurrentKeyValueStore(keyCount);
+            start = System.nanoTime();
+            long records;
+            try (WriteAheadLog log = new WriteAheadLog(directory, WriteAheadLog.FsyncPolicy.OS, 0)) {
+                records = log.replay(1, (op, key, v) -> replayed.put(key, v));
+            }
+            long replayMillis = (System.nanoTime() - start) / 1_000_000;
+            int replayedKeys = replayed.size();
+            replayed.forEach((k, v) -> { });
+            System.gc();
+
+            // Startup by loading the snapshot; the segments it covers would have been deleted
+            KeyValueStore loaded = new ConcurrentKeyValueStore(keyCount);
+            start = System.nanoTime();
+            Snapshot.load(directory.resolve(Snapshot.FILE_NAME), loaded);
+            long loadMillis = (System.nanoTime() - start) / 1_000_000;
+
+            System.out.printf("keys: %d, log records: %d, snapshot entries: %d%n", keyCount, records, written);
+            System.out.printf("log size: %d MB, snapshot size: %d MB%n",
+                    Files.size(directory.resolve("wal-00000001.log")) >> 20,
+                    Files.size(directory.resolve(Snapshot.FILE_NAME)) >> 20);
+            System.out.printf("snapshot write: %d ms%n", writeMillis);
+            System.out.printf("startup from log replay: %d ms (%d keys)%n", replayMillis, replayedKeys);
+            System.out.printf("startup from snapshot:   %d ms (%d keys)%n", loadMillis, loaded.size());
+        } finally {
+            try (Stream<Path> files = Files.walk(directory)) {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+}
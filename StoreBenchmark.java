@@ -0,0 +1,132 @@
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+/**
+ * StoreBenchmark is a contention benchmark for the storage engines. It runs a mixed
+ * GET/PUT/DELETE workload from 1 up to N threads and reports the throughput of the
+ * ConcurrentKeyValueStore next to a HashMap guarded by a single global lock.
+ */
+public class StoreBenchmark {
+
+    /**
+     * Main method for the benchmark.
+     * @param args Command Line Arguments: [max threads] [seconds per run] [key count] [read percentage].
+     */
+    public static void main(String[] args) throws InterruptedException {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0])
+                : Runtime.getRuntime().availableProcessors();
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        int keyCount = args.length > 2 ? Integer.parseInt(args[2]) : 100_000;
+        int readPercent = args.length > 3 ? Integer.parseInt(args[3]) : 80;
+
+        // Pre-generate the keys so that the workload does not measure String building
+        String[] keys = new String[keyCount];
+        for (int i = 0; i < keyCount; i++) {
+            keys[i] = "key" + i;
+        }
+
+        System.out.printf("%-8s %18s %18s%n", "threads", "global lock ops/s", "concurrent ops/s");
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            double locked = run(new GlobalLockStore(), keys, threads, seconds, readPercent);
+            double concurrent = run(new ConcurrentKeyValueStore(), keys, threads, seconds, readPercent);
+            System.out.printf("%-8d %18.0f %18.0f%n", threads, locked, concurrent);
+            if (threads < maxThreads && threads * 2 > maxThreads) {
+                threads = maxThreads / 2;
+            }
+        }
+    }
+
+    /**
+     * Runs the workload against a store with the given number of threads.
+     * @param store The storage engine under test.
+     * @param keys The key space used by the workload.
+     * @param threads Number of concurrent worker threads.
+     * @param seconds Duration of the measurement.
+     * @param readPercent Percentage of GET operations, the rest is split between PUT and DELETE.
+     * @return The measured throughput in operations per second.
+     */
+    private static double run(KeyValueStore store, String[] keys, int threads, int seconds,
+                              int readPercent) throws InterruptedException {
+        // Pre-populate the store so that GETs mostly hit
+        for (String key : keys) {
+            store.put(key, key);
+        }
+
+        LongAdder operations = new LongAdder();
+        AtomicBoolean running = new AtomicBoolean(true);
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long count = 0;
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                while (running.get()) {
+                    String key = keys[random.nextInt(keys.length)];
+                    int roll = random.nextInt(100);
+                    if (roll < readPercent) {
+                        store.get(key);
+                    } else if ((roll & 1) == 0) {
+                        store.put(key, key);
+                    } else {
+                        store.remove(key);
+                    }
+                    count++;
+                }
+                operations.add(count);
+            });
+            workers[t].start();
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        Thread.sleep(seconds * 1000L);
+        running.set(false);
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        double elapsed = (System.nanoTime() - begin) / 1e9;
+        return operations.sum() / elapsed;
+    }
+
+    /**
+     * GlobalLockStore is the baseline engine: a HashMap where every operation takes the same lock.
+     */
+    private static class GlobalLockStore implements KeyValueStore {
+        private final HashMap<String, String> map = new HashMap<>();
+
+        @Override
+        public synchronized String get(String key) {
+            return map.get(key);
+        }
+
+        @Override
+        public synchronized String put(String key, String value) {
+            return map.put(key, value);
+        }
+
+        @Override
+        public synchronized String remove(String key) {
+            return map.remove(key);
+        }
+
+        @Override
+        public synchronized int size() {
+            return map.size();
+        }
+
+        @Override
+        public synchronized void forEach(BiConsumer<String, String> action) {
+            map.forEach(action);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+import com.sun.management.GarbageCollectionNotificationInfo;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.NotificationEmitter;
+import javax.management.openmbean.CompositeData;
+
+/**
+ * StoreFootprintBenchmark measures the memory used per key-value pair by a storage engine and
+ * the garbage collection pauses it causes. It loads the store, reports the heap and direct
+ * memory it holds, then overwrites random keys for a while and reports every pause of the
+ * collector. Each engine should be measured in a JVM of its own.
+ */
+public class StoreFootprintBenchmark {
+
+    /**
+     * Main method for the benchmark.
+     * @param args Command Line Arguments: [heap|offheap] [key count] [value size] [seconds of overwrites].
+     */
+    public static void main(String[] args) throws InterruptedException {
+        String engine = args.length > 0 ? args[0] : "heap";
+        int keyCount = args.length > 1 ? Integer.parseInt(args[1]) : 10_000_000;
+        int valueSize = args.length > 2 ? Integer.parseInt(args[2]) : 32;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 30;
+
+        long heapBefore = usedHeap();
+        long directBefore = usedDirect();
+        KeyValueStore store = engine.equals("offheap") ? new OffHeapKeyValueStore() : new ConcurrentKeyValueStore();
+        String prefix = "v".repeat(valueSize - 1);
+        long rawBytes = 0;
+        for (int i = 0; i < keyCount; i++) {
+            // Every pair gets Strings of its own, as values read from the network would
+            String key = "key" + i;
+            String value = prefix + (i % 10);
+            store.put(key, value);
+            rawBytes += key.length() + value.length();
+        }
+        long heap = usedHeap() - heapBefore;
+        long direct = usedDirect() - directBefore;
+
+        System.out.printf("engine: %s, keys: %d, raw key and value bytes: %d MB%n", engine, store.size(), rawBytes >> 20);
+        System.out.printf("heap: %d MB, direct: %d MB, bytes per entry: %.1f (raw %.1f)%n",
+                heap >> 20, direct >> 20, (heap + direct) / (double) keyCount, rawBytes / (double) keyCount);
+
+        // Record every collection from now on
+        LongAdder pauses = new LongAdder();
+        LongAdder pauseMillis = new LongAdder();
+        AtomicLong maxPause = new AtomicLong();
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            ((NotificationEmitter) collector).addNotificationListener((notification, handback) -> {
+                if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+                    return;
+                }
+                GarbageCollectionNotificationInfo info =
+                        GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+                // Concurrent cycles do not stop the application
+                if (info.getGcCause().equals("No GC") || info.getGcName().contains("Concurrent")) return;
+                long duration = info.getGcInfo().getDuration();
+                pauses.increment();
+                pauseMillis.add(duration);
+                maxPause.accumulateAndGet(duration, Math::max);
+            }, null, null);
+        }
+
+        // Overwrite random keys with fresh values, as a write-heavy workload would
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long operations = 0;
+        long end = System.nanoTime() + seconds * 1_000_000_000L;
+        while (System.nanoTime() < end) {
+            for (int i = 0; i < 1000; i++) {
+                store.put("key" + random.nextInt(keyCount), prefix + (i % 10));
+                operations++;
+            }
+        }
+        Thread.sleep(100);
+        System.out.printf("overwrites: %d in %d s, GC pauses: %d, total %d ms, max %d ms%n",
+                operations, seconds, pauses.sum(), pauseMillis.sum(), maxPause.get());
+    }
+
+    /**
+     * @return Heap bytes in use after a full collection.
+     */
+    private static long usedHeap() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * @return Bytes allocated for direct ByteBuffers.
+     */
+    private static long usedDirect() {
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if (pool.getName().equals("direct")) return pool.getMemoryUsed();
+        }
+        return 0;
+    }
+}
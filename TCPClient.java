@@ -4,10 +4,13 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.FileHandler;
 import java.util.logging.Logger;
 import java.util.logging.SimpleFormatter;
@@ -38,20 +41,29 @@ public class TCPClient {
 
     /**
      * Main method for the TCP Client.
-     * @param args Command Line Arguments to run the client: hostname and port number of the server.
+     * @param args Command Line Arguments to run the client: hostname and port number of the server,
+     *             optionally followed by --pipeline, or by --load and the load generator options.
      */
     public static void main(String[] args) {
         // Check for correct number of arguments to run the client
-        if (args.length != 2) {
-            printWithTimestamp("Sample Usage: java TCPClient <hostname> <port number>");
+        ServerOptions options = new ServerOptions(args);
+        if (options.positional().size() != 2) {
+            printWithTimestamp("Sample Usage: java TCPClient <hostname> <port number>"
+            + " [--pipeline | --load [--option=value ...]]");
             return;
         }
 
         // Extract the hostname and port number from the command-line arguments
-        String hostname = args[0];
-        int port = Integer.parseInt(args[1]);
+        String hostname = options.positional().get(0);
+        int port = Integer.parseInt(options.positional().get(1));
+        boolean pipeline = options.has("pipeline");
         int timeout = 5000; // Timeout for server (in milliseconds)
 
+        if (options.has("load")) {
+            runLoad(hostname, port, timeout, options);
+            return;
+        }
+
         try (Socket socket = new Socket(hostname, port)) {
             // Start the timeout 
             socket.setSoTimeout(timeout);
@@ -67,6 +79,11 @@ public class TCPClient {
             BufferedReader consoleReader = new BufferedReader(new InputStreamReader(System.in));
             String text;
 
+            if (pipeline) {
+                runPipelined(socket, consoleReader, reader);
+                return;
+            }
+
             // Prompt the user until 'exit' is entered
             while (true) {
                 printWithTimestamp("Enter command: ");
@@ -106,6 +123,108 @@ public class TCPClient {
         }
     }
 
+    /**
+     * Sends every command read from the console without waiting for the responses, which
+     * are printed by a separate thread as they arrive. Commands are written in batches and
+     * flushed once no further input is queued, so bulk loads are not bound by round-trips.
+     * @param socket The socket connected to the server.
+     * @param consoleReader Reader for the commands, typically a file piped into the client.
+     * @param reader Reader for the responses sent by the server.
+     * @throws IOException If writing to the server fails.
+     */
+    private static void runPipelined(Socket socket, BufferedReader consoleReader,
+                                     BufferedReader reader) throws IOException {
+        long start = System.nanoTime();
+        AtomicLong received = new AtomicLong();
+
+        // Read and print the responses while the commands are still being sent
+        Thread responseReader = new Thread(() -> {
+            try {
+                String response;
+                while ((response = reader.readLine()) != null) {
+                    printWithTimestamp("Server response: " + response);
+                    received.incrementAndGet();
+                }
+            } catch (IOException e) {
+                String errorMessage = "No response from server: " + e.getMessage();
+                System.err.println("[" + LocalDateTime.now().format(formatter) + "] " + errorMessage);
+                logger.warning(errorMessage);
+            }
+        });
+        responseReader.start();
+
+        PrintWriter writer = new PrintWriter(new BufferedWriter(
+                new OutputStreamWriter(socket.getOutputStream()), 64 * 1024));
+        long sent = 0;
+        String text;
+        while ((text = consoleReader.readLine()) != null && !text.equalsIgnoreCase("exit")) {
+            writer.println(text);
+            sent++;
+            if (!consoleReader.ready()) {
+                writer.flush();
+            }
+        }
+        writer.flush();
+
+        // Closing the sending side makes the server close the connection after the last response
+        socket.shutdownOutput();
+        try {
+            responseReader.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+        printWithTimestamp("Sent " + sent + " commands and received " + received.get()
+        + " responses in " + elapsedMillis + " ms");
+    }
+
+    /**
+     * Runs the load generator with one TCP connection per --connections.
+     * @param hostname Hostname of the server.
+     * @param port Port number of the server.
+     * @param timeout Read timeout of the connections in milliseconds.
+     * @param options The load generator options.
+     */
+    private static void runLoad(String hostname, int port, int timeout, ServerOptions options) {
+        try {
+            new LoadGenerator(() -> {
+                Socket socket = new Socket(hostname, port);
+                socket.setSoTimeout(timeout);
+                socket.setTcpNoDelay(true);
+                PrintWriter writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(
+                        socket.getOutputStream(), CommandHandler.CHARSET)));
+                BufferedReader reader = new BufferedReader(new InputStreamReader(
+                        socket.getInputStream(), CommandHandler.CHARSET));
+                return new LoadGenerator.Connection() {
+                    @Override
+                    public String send(String command) throws IOException {
+                        writer.println(command);
+                        writer.flush();
+                        String response = reader.readLine();
+                        if (response == null) {
+                            throw new IOException("Connection closed by the server");
+                        }
+                        return response;
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        socket.close();
+                    }
+                };
+            }, options).run();
+        } catch (IllegalArgumentException ex) {
+            printWithTimestamp("Invalid load option: " + ex.getMessage());
+        } catch (IOException ex) {
+            String errorMessage = "I/O error: " + ex.getMessage();
+            System.err.println("[" + LocalDateTime.now().format(formatter) + "] " + errorMessage);
+            logger.severe(errorMessage);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     /**
      * Helper method to print the message with a timestamp.
      * @param message The message to be printed along with the timestamp on the console.
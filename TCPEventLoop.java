@@ -0,0 +1,675 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * TCPEventLoop is a single-threaded, non-blocking event loop serving many TCP connections
+ * through one Selector. The TCPServer runs a small fixed number of these loops and hands
+ * every accepted connection to one of them, so idle connections cost no thread.
+ *
+ * By default the loop executes the requests itself. Given a lane of a CommandExecutor, it
+ * only reads and writes: the requests that arrived together on a connection are executed by
+ * the executor as one task, and the connection is not read again until the task completes.
+ */
+public class TCPEventLoop implements Runnable {
+
+    /**
+     * Size of the direct read and write buffers shared by all connections of the loop.
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Longest request line accepted before the connection is closed.
+     */
+    private static final int MAX_LINE_LENGTH = 1 << 20;
+
+    private final Selector selector;
+    private final CommandHandler commandHandler;
+
+    /**
+     * Lane of the shared executor running the requests, or null if the loop runs them.
+     */
+    private final CommandExecutor.Lane lane;
+
+    /**
+     * Connections whose requests were executed by the executor, waiting for their responses
+     * to be written by the loop.
+     */
+    private final Queue<SelectionKey> completedKeys = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Connections accepted by the acceptor thread, waiting to be registered with the selector.
+     */
+    private final Queue<SocketChannel> pendingChannels = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Watching connections that have changed keys queued, or that fell behind, signalled by
+     * the threads writing the keys.
+     */
+    private final Queue<Watcher> signalledWatchers = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Buffers reused for every read and write of the loop. Only the loop thread touches them.
+     */
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    /**
+     * Scratch array used to turn bytes of the read buffer into a request line.
+     */
+    private byte[] lineBytes = new byte[1024];
+
+    /**
+     * Reusable holders for binary requests and responses.
+     */
+    private final BinaryProtocol.Request request = new BinaryProtocol.Request();
+    private final BinaryProtocol.Response response = new BinaryProtocol.Response();
+
+    /**
+     * A new TCPEventLoop is constructed with its own Selector.
+     * @param commandHandler CommandHandler object to process the client commands.
+     * @throws IOException If the selector cannot be opened.
+     */
+    public TCPEventLoop(CommandHandler commandHandler) throws IOException {
+        this(commandHandler, null);
+    }
+
+    /**
+     * A new TCPEventLoop is constructed with its own Selector.
+     * @param commandHandler CommandHandler object to process the client commands.
+     * @param lane Lane of the executor running the requests, or null to run them on the loop.
+     * @throws IOException If the selector cannot be opened.
+     */
+    public TCPEventLoop(CommandHandler commandHandler, CommandExecutor.Lane lane) throws IOException {
+        this.selector = Selector.open();
+        this.commandHandler = commandHandler;
+        this.lane = lane;
+    }
+
+    /**
+     * Hands an accepted connection over to this loop. Safe to call from any thread.
+     * @param channel The accepted client channel.
+     */
+    public void register(SocketChannel channel) {
+        pendingChannels.add(channel);
+        selector.wakeup();
+    }
+
+    /**
+     * Runs the event loop until the thread is interrupted.
+     */
+    @Override
+    public void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                selector.select();
+                registerPendingChannels();
+                sendWatchEvents();
+                writeCompletedResponses();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isWritable()) {
+                            flushPending(key, connection);
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            read(key, connection);
+                        }
+                    } catch (IOException ex) {
+                        TCPServer.log.severe("Server exception: " + ex.getMessage());
+                        close(key);
+                    } catch (RuntimeException ex) {
+                        // Only the connection is lost, the loop goes on serving the others
+                        TCPServer.log.severe("Failed to serve " + connection.client + ": " + ex);
+                        close(key);
+                    }
+                }
+            } catch (IOException ex) {
+                TCPServer.log.severe("Event loop exception: " + ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Registers the connections handed over by the acceptor with the selector.
+     */
+    private void registerPendingChannels() {
+        SocketChannel channel;
+        while ((channel = pendingChannels.poll()) != null) {
+            try {
+                channel.configureBlocking(false);
+                InetSocketAddress remote = (InetSocketAddress) channel.getRemoteAddress();
+                String client = remote.getAddress() + ":" + remote.getPort();
+                channel.register(selector, SelectionKey.OP_READ, new Connection(client));
+                commandHandler.metrics().connectionOpened();
+            } catch (IOException ex) {
+                TCPServer.log.severe("Failed to register client channel: " + ex.getMessage());
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                    // Nothing left to do with a channel that cannot be closed
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the available bytes of a connection, processes every complete request
+     * and writes all of the responses back in a single flush.
+     * @param key The selection key of the connection.
+     * @param connection The state of the connection.
+     * @throws IOException If reading from or writing to the channel fails.
+     */
+    private void read(SelectionKey key, Connection connection) throws IOException {
+        SocketChannel channel = (SocketChannel) key.channel();
+        readBuffer.clear();
+        int read = channel.read(readBuffer);
+        if (read < 0) {
+            close(key);
+            return;
+        }
+        commandHandler.metrics().received(read);
+        readBuffer.flip();
+        writeBuffer.clear();
+
+        // The first byte of the connection selects the binary or the text protocol
+        if (connection.protocol == Connection.UNKNOWN && readBuffer.hasRemaining()) {
+            if (readBuffer.get(0) == BinaryProtocol.MAGIC) {
+                connection.protocol = Connection.BINARY;
+                readBuffer.position(1);
+            } else {
+                connection.protocol = Connection.TEXT;
+            }
+        }
+
+        if (lane != null) {
+            submit(key, connection);
+            return;
+        }
+        boolean open = connection.protocol == Connection.BINARY
+                ? readFrames(channel, key, connection)
+                : readLines(channel, key, connection);
+        if (open) {
+            flushWriteBuffer(channel, key, connection);
+        }
+    }
+
+    /**
+     * Processes every complete text line in the read buffer.
+     * @param channel The channel of the connection.
+     * @param key The selection key of the connection.
+     * @param connection The state of the connection.
+     * @return False if the connection was closed.
+     * @throws IOException If writing to the channel fails.
+     */
+    private boolean readLines(SocketChannel channel, SelectionKey key, Connection connection)
+            throws IOException {
+        int lineStart = readBuffer.position();
+        for (int i = lineStart; i < readBuffer.limit(); i++) {
+            if (readBuffer.get(i) != '\n') continue;
+
+            // Build the complete line from the partial bytes of earlier reads and this segment
+            int segmentLength = i - lineStart;
+            int length = connection.partialLength + segmentLength;
+            ensureLineCapacity(length);
+            if (connection.partialLength > 0) {
+                System.arraycopy(connection.partial, 0, lineBytes, 0, connection.partialLength);
+            }
+            readBuffer.get(lineStart, lineBytes, connection.partialLength, segmentLength);
+            connection.clearPartial();
+            if (length > 0 && lineBytes[length - 1] == '\r') length--;
+
+            String text = new String(lineBytes, 0, length, CommandHandler.CHARSET);
+            String response;
+            if (WatchRegistry.isWatchCommand(text)) {
+                if (connection.watcher == null) connection.watcher = new Watcher(key);
+                response = TCPServer.processWatch(text, connection.client, connection.watcher, commandHandler);
+            } else {
+                response = TCPServer.processRequest(text, connection.client, commandHandler);
+            }
+            writeBytes(channel, key, connection, (response + "\n").getBytes(CommandHandler.CHARSET));
+            lineStart = i + 1;
+        }
+
+        // Keep the bytes of an incomplete line until the rest of it arrives
+        int remaining = readBuffer.limit() - lineStart;
+        if (remaining > 0) {
+            if (connection.partialLength + remaining > MAX_LINE_LENGTH) {
+                TCPServer.log.warning("Request line too long from " + connection.client);
+                close(key);
+                return false;
+            }
+            connection.appendPartial(readBuffer, lineStart, remaining);
+        }
+        return true;
+    }
+
+    /**
+     * Decodes and processes every complete binary frame, straight from the read buffer
+     * unless part of a frame was left over from an earlier read.
+     * @param channel The channel of the connection.
+     * @param key The selection key of the connection.
+     * @param connection The state of the connection.
+     * @return False if the connection was closed.
+     * @throws IOException If writing to the channel fails.
+     */
+    private boolean readFrames(SocketChannel channel, SelectionKey key, Connection connection)
+            throws IOException {
+        ByteBuffer source = readBuffer;
+        if (connection.partialLength > 0) {
+            connection.appendPartial(readBuffer, readBuffer.position(), readBuffer.remaining());
+            source = ByteBuffer.wrap(connection.partial, 0, connection.partialLength);
+        }
+
+        try {
+            while (BinaryProtocol.decode(source, request)) {
+                TCPServer.processFrame(request, response, connection.client, null, commandHandler);
+                writeFrame(channel, key, connection);
+            }
+        } catch (IllegalArgumentException e) {
+            TCPServer.log.warning("Malformed binary request from " + connection.client + ": " + e.getMessage());
+            close(key);
+            return false;
+        }
+
+        // Keep the bytes of an incomplete frame until the rest of it arrives
+        int remaining = source.remaining();
+        if (source == readBuffer) {
+            if (remaining > 0) connection.appendPartial(readBuffer, readBuffer.position(), remaining);
+        } else if (remaining == 0) {
+            connection.clearPartial();
+        } else {
+            System.arraycopy(connection.partial, source.position(), connection.partial, 0, remaining);
+            connection.partialLength = remaining;
+        }
+        return true;
+    }
+
+    /**
+     * Encodes the current binary response into the shared write buffer.
+     * @param channel The channel of the connection.
+     * @param key The selection key of the connection.
+     * @param connection The state of the connection.
+     * @throws IOException If writing to the channel fails.
+     */
+    private void writeFrame(SocketChannel channel, SelectionKey key, Connection connection)
+            throws IOException {
+        int size = BinaryProtocol.encodedSize(response);
+        if (size > writeBuffer.capacity()) {
+            ByteBuffer large = ByteBuffer.allocate(size);
+            BinaryProtocol.encode(large, response);
+            writeBytes(channel, key, connection, large.array());
+            return;
+        }
+        if (writeBuffer.remaining() < size) {
+            flushWriteBuffer(channel, key, connection);
+        }
+        BinaryProtocol.encode(writeBuffer, response);
+    }
+
+    /**
+     * Copies bytes into the shared write buffer, flushing it when it fills up.
+     * @param channel The channel of the connection.
+     * @param key The selection key of the connection.
+     * @param connection The state of the connection.
+     * @param bytes The bytes to be sent.
+     * @throws IOException If writing to the channel fails.
+     */
+    private void writeBytes(SocketChannel channel, SelectionKey key, Connection connection,
+                            byte[] bytes) throws IOException {
+        int offset = 0;
+        while (offset < bytes.length) {
+            if (!writeBuffer.hasRemaining()) {
+                flushWriteBuffer(channel, key, connection);
+            }
+            int length = Math.min(writeBuffer.remaining(), bytes.length - offset);
+            writeBuffer.put(bytes, offset, length);
+            offset += length;
+        }
+    }
+
+    /**
+     * Writes the shared write buffer to the channel. Bytes the socket cannot accept right now
+     * are moved into the connection, which then waits for OP_WRITE and stops reading.
+     * @param channel The channel of the connection.
+     * @param key The selection key of the connection.
+     * @param connection The state of the connection.
+     * @throws IOException If writing to the channel fails.
+     */
+    private void flushWriteBuffer(SocketChannel channel, SelectionKey key, Connection connection)
+            throws IOException {
+        writeBuffer.flip();
+        if (connection.pendingOutput == null) {
+            commandHandler.metrics().sent(channel.write(writeBuffer));
+        }
+        if (writeBuffer.hasRemaining()) {
+            connection.appendPending(writeBuffer);
+            key.interestOps(SelectionKey.OP_WRITE);
+        }
+        writeBuffer.clear();
+    }
+
+    /**
+     * Writes the output that was left over from an earlier flush.
+     * @param key The selection key of the connection.
+     * @param connection The state of the connection.
+     * @throws IOException If writing to the channel fails.
+     */
+    private void flushPending(SelectionKey key, Connection connection) throws IOException {
+        SocketChannel channel = (SocketChannel) key.channel();
+        commandHandler.metrics().sent(channel.write(connection.pendingOutput));
+        if (!connection.pendingOutput.hasRemaining()) {
+            connection.pendingOutput = null;
+            key.interestOps(connection.executing ? 0 : SelectionKey.OP_READ);
+            // Watch events held back by the pending output can go out now
+            if (connection.watcher != null) sendEvents(key, connection.watcher);
+        }
+    }
+
+    /**
+     * Sends the events of the watching connections signalled since the last select, and
+     * closes those that fell behind.
+     */
+    private void sendWatchEvents() {
+        Watcher watcher;
+        while ((watcher = signalledWatchers.poll()) != null) {
+            SelectionKey key = watcher.key;
+            if (!key.isValid()) continue;
+            if (watcher.closed()) {
+                TCPServer.log.warning("Disconnecting " + ((Connection) key.attachment()).client
+                        + ": too slow to receive watch events");
+                close(key);
+                continue;
+            }
+            try {
+                sendEvents(key, watcher);
+            } catch (IOException ex) {
+                TCPServer.log.severe("Server exception: " + ex.getMessage());
+                close(key);
+            }
+        }
+    }
+
+    /**
+     * Writes the current value of the keys queued for a watching connection. Nothing is
+     * written while earlier output is pending: the keys keep coalescing in the watcher's queue
+     * and go out once flushPending has drained the socket, or the queue overflows and the
+     * connection is closed.
+     * @param key The selection key of the connection.
+     * @param watcher The watcher of the connection.
+     * @throws IOException If writing to the channel fails.
+     */
+    private void sendEvents(SelectionKey key, Watcher watcher) throws IOException {
+        SocketChannel channel = (SocketChannel) key.channel();
+        Connection connection = (Connection) key.attachment();
+        writeBuffer.clear();
+        while (connection.pendingOutput == null) {
+            List<String> keys = watcher.poll(TCPServer.EVENT_BATCH);
+            if (keys.isEmpty()) break;
+            for (String changed : keys) {
+                String event = WatchRegistry.event(changed, commandHandler.lookup(changed));
+                writeBytes(channel, key, connection, (event + "\n").getBytes(CommandHandler.CHARSET));
+            }
+            flushWriteBuffer(channel, key, connection);
+        }
+    }
+
+    /**
+     * Hands the bytes just read over to the executor, and stops reading the connection until
+     * they are executed. Waits for room in the lane if it is full, which stops the whole loop
+     * reading until the executor catches up.
+     * @param key The selection key of the connection.
+     * @param connection The state of the connection.
+     */
+    private void submit(SelectionKey key, Connection connection) {
+        if (!readBuffer.hasRemaining()) return;
+        connection.appendPartial(readBuffer, readBuffer.position(), readBuffer.remaining());
+        key.interestOps(0);
+        connection.executing = true;
+        if (connection.protocol == Connection.TEXT && connection.watcher == null) {
+            // Created here rather than by the task, so that close() always finds it
+            connection.watcher = new Watcher(key);
+        }
+        try {
+            lane.put(() -> execute(key, connection));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            close(key);
+        }
+    }
+
+    /**
+     * Executes every complete request received on a connection, on an executor thread. The
+     * responses are kept in the connection, with the bytes of an incomplete request, until
+     * the loop writes them.
+     * @param key The selection key of the connection.
+     * @param connection The state of the connection, not touched by the loop meanwhile.
+     */
+    private void execute(SelectionKey key, Connection connection) {
+        ByteBuffer input = ByteBuffer.wrap(connection.partial, 0, connection.partialLength);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try {
+            if (connection.protocol == Connection.BINARY) {
+                executeFrames(input, output, connection);
+            } else {
+                executeLines(input, output, connection);
+            }
+            // Keep the bytes of an incomplete request until the rest of it arrives
+            int remaining = input.remaining();
+            if (remaining == 0) {
+                connection.clearPartial();
+            } else {
+                System.arraycopy(connection.partial, input.position(), connection.partial, 0, remaining);
+                connection.partialLength = remaining;
+            }
+        } catch (IllegalArgumentException e) {
+            TCPServer.log.warning("Malformed request from " + connection.client + ": " + e.getMessage());
+            connection.failed = true;
+        } catch (RuntimeException e) {
+            TCPServer.log.severe("Failed to serve " + connection.client + ": " + e);
+            connection.failed = true;
+        } finally {
+            connection.responses = output.toByteArray();
+            completedKeys.add(key);
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Executes the complete text lines of the input.
+     * @throws IllegalArgumentException If the incomplete line left is too long.
+     */
+    private void executeLines(ByteBuffer input, ByteArrayOutputStream output, Connection connection) {
+        byte[] bytes = input.array();
+        int lineStart = input.position();
+        for (int i = lineStart; i < input.limit(); i++) {
+            if (bytes[i] != '\n') continue;
+            int length = i - lineStart;
+            if (length > 0 && bytes[i - 1] == '\r') length--;
+            String text = new String(bytes, lineStart, length, CommandHandler.CHARSET);
+            String response = WatchRegistry.isWatchCommand(text)
+                    ? TCPServer.processWatch(text, connection.client, connection.watcher, commandHandler)
+                    : TCPServer.processRequest(text, connection.client, commandHandler);
+            output.writeBytes((response + "\n").getBytes(CommandHandler.CHARSET));
+            lineStart = i + 1;
+        }
+        input.position(lineStart);
+        if (input.remaining() > MAX_LINE_LENGTH) {
+            throw new IllegalArgumentException("Request line too long");
+        }
+    }
+
+    /**
+     * Executes the complete binary frames of the input.
+     * @throws IllegalArgumentException If a frame is malformed.
+     */
+    private void executeFrames(ByteBuffer input, ByteArrayOutputStream output, Connection connection) {
+        BinaryProtocol.Request request = new BinaryProtocol.Request();
+        BinaryProtocol.Response response = new BinaryProtocol.Response();
+        ByteBuffer encoded = ByteBuffer.allocate(BUFFER_SIZE);
+        while (BinaryProtocol.decode(input, request)) {
+            TCPServer.processFrame(request, response, connection.client, null, commandHandler);
+            encoded.clear();
+            int size = BinaryProtocol.encodedSize(response);
+            if (encoded.capacity() < size) encoded = ByteBuffer.allocate(size);
+            BinaryProtocol.encode(encoded, response);
+            output.write(encoded.array(), 0, encoded.position());
+        }
+    }
+
+    /**
+     * Writes the responses of the connections whose requests the executor has executed, and
+     * reads them again.
+     */
+    private void writeCompletedResponses() {
+        SelectionKey key;
+        while ((key = completedKeys.poll()) != null) {
+            Connection connection = (Connection) key.attachment();
+            connection.executing = false;
+            byte[] responses = connection.responses;
+            connection.responses = null;
+            if (!key.isValid()) continue;
+            try {
+                writeBuffer.clear();
+                writeBytes((SocketChannel) key.channel(), key, connection, responses);
+                flushWriteBuffer((SocketChannel) key.channel(), key, connection);
+                if (connection.failed) {
+                    close(key);
+                } else if (connection.pendingOutput == null) {
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+            } catch (IOException ex) {
+                TCPServer.log.severe("Server exception: " + ex.getMessage());
+                close(key);
+            }
+        }
+    }
+
+    /**
+     * Grows the scratch line array if it cannot hold the given number of bytes.
+     * @param length Number of bytes the array must hold.
+     */
+    private void ensureLineCapacity(int length) {
+        if (lineBytes.length < length) {
+            lineBytes = new byte[Math.max(length, lineBytes.length * 2)];
+        }
+    }
+
+    /**
+     * Closes a connection and cancels its selection key.
+     * @param key The selection key of the connection.
+     */
+    private void close(SelectionKey key) {
+        key.cancel();
+        Connection connection = (Connection) key.attachment();
+        if (connection.watcher != null) connection.watcher.close();
+        if (!key.channel().isOpen()) return;
+        commandHandler.metrics().connectionClosed();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            TCPServer.log.severe("Failed to close client channel: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Watcher is the subscriber of a watching connection of the loop. The threads writing the
+     * keys only queue it and wake the selector up; the loop thread sends the events.
+     */
+    private final class Watcher extends WatchRegistry.Subscriber {
+        private final SelectionKey key;
+
+        Watcher(SelectionKey key) {
+            super(commandHandler.watches(), TCPServer.watchQueue);
+            this.key = key;
+        }
+
+        @Override
+        protected void signal() {
+            signalledWatchers.add(this);
+            selector.wakeup();
+        }
+
+        /**
+         * Queues the watcher like signal(): the loop finds it closed and closes the connection.
+         */
+        @Override
+        protected void overflow() {
+            signal();
+        }
+    }
+
+    /**
+     * Connection holds the per-connection state of the loop. Buffers are only allocated while
+     * a request is incomplete or output is pending, so idle connections stay small.
+     */
+    private static class Connection {
+        static final byte UNKNOWN = 0;
+        static final byte TEXT = 1;
+        static final byte BINARY = 2;
+
+        private final String client;
+        private byte protocol = UNKNOWN;
+        private byte[] partial;
+        private int partialLength;
+        private ByteBuffer pendingOutput;
+        private Watcher watcher;
+
+        /**
+         * Set while the executor runs the requests of the connection, which then owns the
+         * partial bytes, and cleared by the loop once it has the responses.
+         */
+        private boolean executing;
+        private boolean failed;
+        private byte[] responses;
+
+        Connection(String client) {
+            this.client = client;
+        }
+
+        /**
+         * Appends bytes of an incomplete request.
+         */
+        void appendPartial(ByteBuffer source, int offset, int length) {
+            if (partial == null || partial.length < partialLength + length) {
+                byte[] grown = new byte[Math.max(partialLength + length, 256) * 2];
+                if (partial != null) System.arraycopy(partial, 0, grown, 0, partialLength);
+                partial = grown;
+            }
+            source.get(offset, partial, partialLength, length);
+            partialLength += length;
+        }
+
+        /**
+         * Releases the incomplete request once it has been consumed.
+         */
+        void clearPartial() {
+            partial = null;
+            partialLength = 0;
+        }
+
+        /**
+         * Appends output that could not be written to the socket yet.
+         */
+        void appendPending(ByteBuffer source) {
+            ByteBuffer grown = ByteBuffer.allocate(
+                    (pendingOutput == null ? 0 : pendingOutput.remaining()) + source.remaining());
+            if (pendingOutput != null) grown.put(pendingOutput);
+            grown.put(source);
+            grown.flip();
+            pendingOutput = grown;
+        }
+    }
+}
@@ -1,17 +1,25 @@
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
-import java.util.logging.FileHandler;
-import java.util.logging.Logger;
-import java.util.logging.SimpleFormatter;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * TCPServer class is a simple TCP Server listening to clients and handling requests 
@@ -20,38 +28,59 @@ import java.util.logging.SimpleFormatter;
 public class TCPServer {
     private static final DateTimeFormatter formatter = DateTimeFormatter.ofPattern
     ("yyyy-MM-dd HH:mm:ss.SSS");
-    private static final Logger logger = Logger.getLogger(TCPServer.class.getName());
 
     /**
-     * A Static initialization block to setup the logger for the TCP Server.
+     * Asynchronous logger for the console and the log file, set up from the server options.
      */
-    static {
-        try {
-            // Configure the logger with a file handler and a simple formatter
-            FileHandler fileHandler = new FileHandler
-            ("tcpserver.log", true); // Use append mode
-            fileHandler.setFormatter(new SimpleFormatter());
-            logger.addHandler(fileHandler);
-            logger.setUseParentHandlers(false);
-        } catch (IOException e) {
-            System.err.println("Failed to set up logger: " + e.getMessage());
-        }
-    }
+    static AsyncLogger log;
+
+    /**
+     * Initial size of the buffers used by binary protocol connections.
+     */
+    private static final int BINARY_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Largest number of changed keys waiting to be sent to a watching connection before it
+     * is disconnected as too slow, set by --watch-queue.
+     */
+    static int watchQueue = 1024;
+
+    /**
+     * Number of watch events written between flushes.
+     */
+    static final int EVENT_BATCH = 64;
 
     /**
      * Main method for the TCP Server.
-     * @param args Command Line Arguments to run the server: port number of the server.
+     * @param args Command Line Arguments to run the server: port number of the server,
+     *             optionally followed by --nio and --event-loops=N.
      */
     public static void main(String[] args) {
         // Check for correct number of arguments to run the server
-        if (args.length != 1) {
-            printWithTimestamp("Sample Usage: java TCPServer <port number>");
+        ServerOptions options = new ServerOptions(args);
+        if (options.positional().size() != 1) {
+            printWithTimestamp("Sample Usage: java TCPServer <port number> [--option=value ...]"
+            + " (the options are described in README.md)");
             return;
         }
 
         // Extract the port number from the command-line arguments
-        int port = Integer.parseInt(args[0]);
-        CommandHandler commandHandler = new CommandHandler();
+        int port = Integer.parseInt(options.positional().get(0));
+        log = new AsyncLogger("tcpserver.log", options);
+        watchQueue = options.getInt("watch-queue", watchQueue);
+        CommandHandler commandHandler;
+        try {
+            commandHandler = CommandHandler.fromOptions(options, log);
+        } catch (IOException | IllegalArgumentException ex) {
+            log.severe("Failed to start the server: " + ex.getMessage());
+            return;
+        }
+
+        if (options.has("nio")) {
+            int eventLoops = options.getInt("event-loops", Runtime.getRuntime().availableProcessors());
+            runEventLoops(port, eventLoops, commandHandler, null);
+            return;
+        }
 
         try (ServerSocket serverSocket = new ServerSocket(port)) {
             printWithTimestamp("Server is listening on port " + port);
@@ -64,8 +93,44 @@ public class TCPServer {
             }
 
         } catch (IOException ex) {
-            printWithTimestamp("Server exception: " + ex.getMessage());
-            logger.severe("Server exception: " + ex.getMessage());
+            log.severe("Server exception: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Runs the non-blocking mode of the server: the main thread accepts connections and
+     * distributes them round-robin over a fixed set of event loops.
+     * @param port Port number the server listens on.
+     * @param eventLoops Number of event loop threads.
+     * @param commandHandler CommandHandler object to process the client commands.
+     * @param lane Lane of the shared executor running the requests, or null for the event
+     *             loops to run them.
+     */
+    static void runEventLoops(int port, int eventLoops, CommandHandler commandHandler,
+                              CommandExecutor.Lane lane) {
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port));
+
+            // Starting the event loops that serve the accepted connections
+            TCPEventLoop[] loops = new TCPEventLoop[eventLoops];
+            for (int i = 0; i < eventLoops; i++) {
+                loops[i] = new TCPEventLoop(commandHandler, lane);
+                Thread thread = new Thread(loops[i], "tcp-event-loop-" + i);
+                thread.start();
+            }
+            printWithTimestamp("Server is listening on port " + port + " with "
+            + eventLoops + " event loops");
+
+            int next = 0;
+            while (true) {
+                // Accepting a new client connection and handing it to the next event loop
+                SocketChannel channel = serverChannel.accept();
+                loops[next].register(channel);
+                next = (next + 1) % eventLoops;
+            }
+
+        } catch (IOException ex) {
+            log.severe("Server exception: " + ex.getMessage());
         }
     }
 
@@ -76,47 +141,313 @@ public class TCPServer {
      */
 
     private static void handleClient(Socket socket, CommandHandler commandHandler) {
-        try (InputStream input = socket.getInputStream();
-             BufferedReader reader = new BufferedReader(new InputStreamReader(input));
-             OutputStream output = socket.getOutputStream();
-             PrintWriter writer = new PrintWriter(output, true)) {
+        Metrics metrics = commandHandler.metrics();
+        metrics.connectionOpened();
+        WatchWriter watcher = null;
+        try (InputStream input = new BufferedInputStream(socket.getInputStream());
+             OutputStream output = socket.getOutputStream()) {
 
             InetAddress clientAddress = socket.getInetAddress();
             int clientPort = socket.getPort();
+            String client = clientAddress + ":" + clientPort;
+
+            // The first byte of the connection selects the binary or the text protocol
+            input.mark(1);
+            int first = input.read();
+            if (first < 0) return;
+            if ((byte) first == BinaryProtocol.MAGIC) {
+                metrics.received(1);
+                handleBinaryClient(input, output, client, clientAddress, commandHandler);
+                return;
+            }
+            input.reset();
+
+            BufferedReader reader = new BufferedReader(new InputStreamReader(input, CommandHandler.CHARSET));
+            PrintWriter writer = new PrintWriter(new BufferedWriter(
+                    new OutputStreamWriter(output, CommandHandler.CHARSET)));
 
             String text;
             while ((text = reader.readLine()) != null) {
-                // Log all the recived commands from the client onto console as well as log file
-                printWithTimestamp("Received from " + clientAddress + ":" + clientPort + " - " + text);
-                logger.info("Received from " + clientAddress + ":" + clientPort + " - " + text);
+                String response;
+                if (WatchRegistry.isWatchCommand(text)) {
+                    if (watcher == null) watcher = new WatchWriter(socket, writer, client, commandHandler);
+                    response = processWatch(text, client, watcher, commandHandler);
+                } else {
+                    response = processRequest(text, client, commandHandler);
+                }
+                writer.println(response);
+                // Every char is one byte, and each line ends with a newline
+                metrics.received(text.length() + 1);
+                metrics.sent(response.length() + System.lineSeparator().length());
 
-                // Split the received commands into commands and arguments
-                String[] textParts = text.split(" ", 2);
-                String command = textParts[0];
-                String[] commandArgs = textParts.length > 1 ? textParts[1].split
-                (" ", 2) : new String[]{};
+                // Pipelined commands that are already queued are processed before
+                // flushing, so that all of their responses go out in a single write
+                if (!reader.ready()) {
+                    writer.flush();
+                }
+            }
 
-                // Processing the command and getting the response
-                String response = commandHandler.handleCommand(command, commandArgs);
+        } catch (IllegalArgumentException ex) {
+            log.warning("Malformed binary request: " + ex.getMessage());
+        } catch (IOException ex) {
+            // A watcher that fell behind had its socket closed on purpose, and was logged then
+            if (watcher == null || !watcher.closed()) log.severe("Server exception: " + ex.getMessage());
+        } finally {
+            metrics.connectionClosed();
+            if (watcher != null) watcher.stop();
+            try {
+                socket.close();
+            } catch (IOException e) {
+                log.severe("Failed to close client socket: " + e.getMessage());
+            }
+        }
+    }
 
-                // Logging server response to the client
-                printWithTimestamp("Response to " + clientAddress + ":" + clientPort + " - " + response);
-                logger.info("Response to " + clientAddress + ":" + clientPort + " - " + response);
+    /**
+     * Handles the requests of a client that negotiated the binary protocol. Frames are
+     * decoded straight from a reusable buffer, and the responses to all frames that
+     * arrived together are flushed in a single write.
+     * @param input The input stream of the client, positioned after the MAGIC byte.
+     * @param output The output stream of the client.
+     * @param client Address and port of the client, used for logging.
+     * @param clientAddress Address of the client, which may be another node of the cluster.
+     * @param commandHandler CommandHandler object to process the client commands.
+     * @throws IOException If reading from or writing to the client fails.
+     */
+    private static void handleBinaryClient(InputStream input, OutputStream output, String client,
+                                           InetAddress clientAddress, CommandHandler commandHandler)
+            throws IOException {
+        ByteBuffer in = ByteBuffer.allocate(BINARY_BUFFER_SIZE);
+        ByteBuffer out = ByteBuffer.allocate(BINARY_BUFFER_SIZE);
+        BinaryProtocol.Request request = new BinaryProtocol.Request();
+        BinaryProtocol.Response response = new BinaryProtocol.Response();
 
-                writer.println(response);
+        while (true) {
+            // Grow the input buffer if a single frame does not fit into it
+            if (!in.hasRemaining()) {
+                ByteBuffer grown = ByteBuffer.allocate(in.capacity() * 2);
+                in.flip();
+                in = grown.put(in);
             }
+            int read = input.read(in.array(), in.position(), in.remaining());
+            if (read < 0) return;
+            commandHandler.metrics().received(read);
+            in.position(in.position() + read);
+            in.flip();
 
-        } catch (IOException ex) {
-            printWithTimestamp("Server exception: " + ex.getMessage());
-            logger.severe("Server exception: " + ex.getMessage());
-        } finally {
+            while (BinaryProtocol.decode(in, request)) {
+                processFrame(request, response, client, clientAddress, commandHandler);
+                int size = BinaryProtocol.encodedSize(response);
+                if (out.remaining() < size) {
+                    output.write(out.array(), 0, out.position());
+                    commandHandler.metrics().sent(out.position());
+                    out.clear();
+                    if (out.capacity() < size) out = ByteBuffer.allocate(size);
+                }
+                BinaryProtocol.encode(out, response);
+            }
+            in.compact();
+
+            // Flush once every frame that has already arrived is answered
+            if (input.available() == 0 && out.position() > 0) {
+                output.write(out.array(), 0, out.position());
+                commandHandler.metrics().sent(out.position());
+                output.flush();
+                out.clear();
+            }
+        }
+    }
+
+    /**
+     * Processes a single binary request frame, logging the request and the response.
+     * @param request The decoded request.
+     * @param response Holder that receives the response to be sent to the client.
+     * @param client Address and port of the client, used for logging.
+     * @param source Address of the client if it may be another node of the cluster, or null.
+     * @param commandHandler CommandHandler object to process the client commands.
+     */
+    static void processFrame(BinaryProtocol.Request request, BinaryProtocol.Response response,
+                             String client, InetAddress source, CommandHandler commandHandler) {
+        // Only sampled requests are logged, and the log lines are built off the request path
+        boolean logged = log.sample();
+        if (logged) log.request("Received from ", client, request.toString());
+
+        try {
+            BinaryProtocol.execute(request, commandHandler, response, source);
+        } catch (RuntimeException e) {
+            // A failure of one request must not stop the thread serving the connection
+            log.severe("Failed to execute " + request + " from " + client + ": " + e);
+            response.set(BinaryProtocol.STATUS_ERROR, "Operation failed: " + e);
+        }
+
+        if (logged) log.request("Response to ", client, response.toString());
+    }
+
+    /**
+     * Processes a single request line, logging the request and the response.
+     * Shared by the thread-per-connection and the event loop modes.
+     * @param text The request line received from the client.
+     * @param client Address and port of the client, used for logging.
+     * @param commandHandler CommandHandler object to process the client commands.
+     * @return The response to be sent to the client.
+     */
+    static String processRequest(String text, String client, CommandHandler commandHandler) {
+        // Log the received command and the response, if the request is sampled
+        boolean logged = log.sample();
+        if (logged) log.request("Received from ", client, text);
+
+        // Processing the command and getting the response
+        String response;
+        try {
+            response = commandHandler.handleRequest(text);
+        } catch (RuntimeException e) {
+            // A failure of one request must not stop the thread serving the connection
+            log.severe("Failed to execute a request from " + client + ": " + e);
+            response = "Operation failed: " + e;
+        }
+
+        if (logged) log.request("Response to ", client, response);
+        return response;
+    }
+
+    /**
+     * Executes a WATCH or UNWATCH command for a connection, logging the request and the
+     * response. Shared by the thread-per-connection and the event loop modes.
+     * @param text The request line received from the client.
+     * @param client Address and port of the client, used for logging.
+     * @param watcher The subscriber of the connection.
+     * @param commandHandler CommandHandler object holding the watch registry.
+     * @return The response to be sent to the client.
+     */
+    static String processWatch(String text, String client, WatchRegistry.Subscriber watcher,
+                               CommandHandler commandHandler) {
+        boolean logged = log.sample();
+        if (logged) log.request("Received from ", client, text);
+
+        long start = System.nanoTime();
+        String response = commandHandler.watches().command(watcher, text);
+        commandHandler.metrics().record(text.startsWith("WATCH") ? "WATCH" : "UNWATCH", System.nanoTime() - start);
+
+        if (logged) log.request("Response to ", client, response);
+        return response;
+    }
+
+    /**
+     * WatchWriter sends the watch events of a thread-per-connection client. The connection
+     * thread is blocked reading requests, so the events are written by a thread of their own,
+     * started on the first WATCH. PrintWriter writes every line atomically, so events and
+     * responses never interleave within a line.
+     */
+    private static final class WatchWriter extends WatchRegistry.Subscriber {
+        /**
+         * Closes the sockets of the clients that fell behind while their thread was blocked
+         * writing to them, off the thread whose change overflowed the queue.
+         */
+        private static final ExecutorService closer = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "watch-closer");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        private final Socket socket;
+        private final PrintWriter writer;
+        private final String client;
+        private final CommandHandler commandHandler;
+        private final Thread thread;
+
+        /**
+         * Set while the thread writes events, when only closing the socket can stop it.
+         */
+        private volatile boolean writing;
+        private volatile boolean overflowed;
+
+        /**
+         * A new WatchWriter is constructed and its thread started.
+         * @param socket The socket of the connection, closed if the client falls behind.
+         * @param writer The writer of the connection, shared with the responses.
+         * @param client Address and port of the client, used for logging.
+         * @param commandHandler CommandHandler object holding the watch registry and the keys.
+         */
+        WatchWriter(Socket socket, PrintWriter writer, String client, CommandHandler commandHandler) {
+            super(commandHandler.watches(), watchQueue);
+            this.socket = socket;
+            this.writer = writer;
+            this.client = client;
+            this.commandHandler = commandHandler;
+            this.thread = new Thread(this::run, "watch-writer-" + client);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        /**
+         * Sends the current value of every queued key until the connection closes. A write
+         * blocked by a client that does not read only delays this thread; the keys changed
+         * meanwhile keep coalescing in the queue until it overflows. A client that fell behind
+         * is then disconnected from here.
+         */
+        private void run() {
+            Metrics metrics = commandHandler.metrics();
+            while (!closed()) {
+                List<String> keys = poll(EVENT_BATCH);
+                if (keys.isEmpty()) {
+                    LockSupport.park(this);
+                    continue;
+                }
+                writing = true;
+                try {
+                    // An overflow that did not see the flag leaves the socket to this thread
+                    if (closed()) break;
+                    for (String key : keys) {
+                        String event = WatchRegistry.event(key, commandHandler.lookup(key));
+                        writer.println(event);
+                        metrics.sent(event.length() + System.lineSeparator().length());
+                    }
+                    writer.flush();
+                } finally {
+                    writing = false;
+                }
+            }
+            if (overflowed) {
+                log.warning("Disconnecting " + client + ": too slow to receive watch events");
+                closeSocket();
+            }
+        }
+
+        @Override
+        protected void signal() {
+            LockSupport.unpark(thread);
+        }
+
+        /**
+         * Wakes the thread up to disconnect the client. A thread blocked writing is only
+         * stopped by closing the socket, which the closer thread does.
+         */
+        @Override
+        protected void overflow() {
+            overflowed = true;
+            if (writing) closer.execute(this::closeSocket);
+            LockSupport.unpark(thread);
+        }
+
+        /**
+         * Closes the socket, which also fails the write the thread may be blocked in and
+         * makes the connection thread stop reading.
+         */
+        private void closeSocket() {
             try {
                 socket.close();
             } catch (IOException e) {
-                printWithTimestamp("Failed to close client socket: " + e.getMessage());
-                logger.severe("Failed to close client socket: " + e.getMessage());
+                log.severe("Failed to close client socket: " + e.getMessage());
             }
         }
+
+        /**
+         * Removes the subscriptions and ends the thread, once the connection is closed.
+         */
+        void stop() {
+            close();
+            LockSupport.unpark(thread);
+        }
     }
 
     /**
@@ -0,0 +1,161 @@
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+/**
+ * TimingWheel is a hierarchical timing wheel that fires timers at their deadline. The first
+ * level has one slot per tick; each higher level has slots covering a whole rotation of the
+ * level below, and its timers are cascaded down when the lower level wraps around. Scheduling
+ * a timer and firing it both cost O(1), however many timers are pending, and a tick only
+ * visits the timers due in it.
+ *
+ * With the default 10 ms tick the levels cover 2.56 s, 2.7 min, 2.9 h and 7.8 days. Timers
+ * further out are parked in the last slot of the top level and rescheduled when they come
+ * down.
+ *
+ * Any thread can schedule a timer; scheduled timers are queued and only added to the wheel
+ * by the thread calling advance, so the wheel itself needs no locking. A timer's deadline
+ * may be moved later while it is pending: when it comes due it is rescheduled instead of
+ * fired.
+ */
+public class TimingWheel {
+
+    private static final int[] LEVEL_BITS = {8, 6, 6, 6};
+
+    /**
+     * Timer is a pending expiration. Timers are chained in their slot through next.
+     */
+    public static class Timer {
+        public final String key;
+
+        /**
+         * Deadline in milliseconds since the epoch. May be increased while the timer is pending.
+         */
+        public volatile long deadline;
+        private Timer next;
+
+        /**
+         * A new Timer is constructed for a key.
+         * @param key The key to expire.
+         * @param deadline Deadline in milliseconds since the epoch.
+         */
+        public Timer(String key, long deadline) {
+            this.key = key;
+            this.deadline = deadline;
+        }
+    }
+
+    private final long tickMillis;
+    private final Timer[][] levels = new Timer[LEVEL_BITS.length][];
+    private final ConcurrentLinkedQueue<Timer> scheduled = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Last tick processed by advance.
+     */
+    private long currentTick;
+
+    /**
+     * A new TimingWheel is constructed starting at the current time.
+     * @param tickMillis Duration of a tick in milliseconds.
+     */
+    public TimingWheel(long tickMillis) {
+        this.tickMillis = tickMillis;
+        for (int level = 0; level < levels.length; level++) {
+            levels[level] = new Timer[1 << LEVEL_BITS[level]];
+        }
+        currentTick = System.currentTimeMillis() / tickMillis;
+    }
+
+    /**
+     * Schedules a timer. Safe to call from any thread.
+     * @param timer The timer to fire at its deadline.
+     */
+    public void schedule(Timer timer) {
+        scheduled.add(timer);
+    }
+
+    /**
+     * Moves the wheel forward to the given time, firing every timer whose deadline has passed.
+     * Must only be called by one thread at a time.
+     * @param now Current time in milliseconds since the epoch.
+     * @param action Callback receiving the timers that are due.
+     */
+    public void advance(long now, Consumer<Timer> action) {
+        Timer timer;
+        while ((timer = scheduled.poll()) != null) {
+            insert(timer, currentTick + 1);
+        }
+
+        long nowTick = now / tickMillis;
+        while (currentTick < nowTick) {
+            currentTick++;
+            cascade(1);
+
+            // Fire the timers of this tick, or reschedule those whose deadline was moved
+            int slot = (int) (currentTick & (levels[0].length - 1));
+            timer = levels[0][slot];
+            levels[0][slot] = null;
+            while (timer != null) {
+                Timer next = timer.next;
+                timer.next = null;
+                if (timer.deadline / tickMillis > currentTick) {
+                    insert(timer, currentTick + 1);
+                } else {
+                    action.accept(timer);
+                }
+                timer = next;
+            }
+        }
+    }
+
+    /**
+     * Moves the timers of the current slot of a level down when the level below wraps around,
+     * starting with the levels above it.
+     */
+    private void cascade(int level) {
+        if (level >= levels.length) return;
+        int shift = shift(level);
+        if ((currentTick & ((1L << shift) - 1)) != 0) return;
+        cascade(level + 1);
+
+        int slot = (int) ((currentTick >>> shift) & (levels[level].length - 1));
+        Timer timer = levels[level][slot];
+        levels[level][slot] = null;
+        while (timer != null) {
+            Timer next = timer.next;
+            timer.next = null;
+            insert(timer, currentTick);
+            timer = next;
+        }
+    }
+
+    /**
+     * Adds a timer to the slot of its deadline.
+     * @param earliestTick First tick at which the timer may fire.
+     */
+    private void insert(Timer timer, long earliestTick) {
+        long tick = Math.max(timer.deadline / tickMillis, earliestTick);
+        int level = 0;
+        while (level < levels.length - 1 && tick - currentTick >= 1L << shift(level + 1)) {
+            level++;
+        }
+        // Timers beyond the range of the wheel wait in the furthest slot of the top level
+        long range = 1L << (shift(level) + LEVEL_BITS[level]);
+        if (tick - currentTick >= range) {
+            tick = currentTick + range - 1;
+        }
+        int slot = (int) ((tick >>> shift(level)) & (levels[level].length - 1));
+        timer.next = levels[level][slot];
+        levels[level][slot] = timer;
+    }
+
+    /**
+     * @return Number of tick bits below the given level.
+     */
+    private static int shift(int level) {
+        int shift = 0;
+        for (int i = 0; i < level; i++) {
+            shift += LEVEL_BITS[i];
+        }
+        return shift;
+    }
+}
@@ -1,18 +1,24 @@
 import java.io.IOException;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
-import java.net.DatagramPacket;
 import java.net.UnknownHostException;
+import java.nio.channels.UnresolvedAddressException;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.FileHandler;
 import java.util.logging.Logger;
 import java.util.logging.SimpleFormatter;
 
 /**
  * UDPClient class implements a UDP Client that connects to a UDP Server for communication of commands.
+ *
+ * Commands are sent with request IDs through a UDPRequestClient, so lost datagrams are
+ * retransmitted and, with --pipeline, many commands can be in flight at once.
  */
 public class UDPClient {
     private static final DateTimeFormatter formatter = DateTimeFormatter.ofPattern
@@ -37,52 +43,55 @@ public class UDPClient {
 
     /**
      * Main method for the UDP Client.
-     * @param args Command Line Arguments to run the client: hostname and port number of the server.
+     * @param args Command Line Arguments to run the client: hostname and port number of the server,
+     *             optionally followed by --pipeline, --window=N and --retries=N, or by --load
+     *             and the load generator options.
      */
     public static void main(String[] args) {
         // Check for correct number of arguments to run the client
-        if (args.length != 2) {
-            printWithTimestamp("Sample Usage: java UDPClient <hostname> <port number>");
+        ServerOptions options = new ServerOptions(args);
+        if (options.positional().size() != 2) {
+            printWithTimestamp("Sample Usage: java UDPClient <hostname> <port number>"
+            + " [--pipeline] [--window=N] [--retries=N] [--load [--option=value ...]]");
             return;
         }
 
         // Extract the hostname and port number from the command-line arguments
-        String hostname = args[0];
-        int port = Integer.parseInt(args[1]);
-        int timeout = 5000; // Timeout for server (in milliseconds)
+        String hostname = options.positional().get(0);
+        int port = Integer.parseInt(options.positional().get(1));
+        boolean pipeline = options.has("pipeline");
+        int window = pipeline ? options.getInt("window", 64) : 1;
+        int attempts = 1 + options.getInt("retries", 5);
 
-        try (DatagramSocket socket = new DatagramSocket()) {
-            // Start the timeout 
-            socket.setSoTimeout(timeout);
-
-            InetAddress address = InetAddress.getByName(hostname);
-            byte[] buffer = new byte[1024];
+        if (options.has("load")) {
+            runLoad(hostname, port, attempts, options);
+            return;
+        }
 
+        try (UDPRequestClient client = new UDPRequestClient(hostname, port, window, attempts)) {
             // Setup input reader for reading commands from the console
             BufferedReader commandReader = new BufferedReader(new InputStreamReader(System.in));
             String text;
 
+            if (pipeline) {
+                runPipelined(client, commandReader);
+                return;
+            }
+
             // Prompt the user until 'exit' is entered
             while (true) {
                 printWithTimestamp("Enter command: ");
                 text = commandReader.readLine();
 
-                if (text.equalsIgnoreCase("exit")) {
+                if (text == null || text.equalsIgnoreCase("exit")) {
                     break;
                 }
 
-                // Convert the user command into bytes and create a DatagramPacket to send to the server
-                byte[] sendBuffer = text.getBytes();
-                DatagramPacket sendPacket = new DatagramPacket(sendBuffer, sendBuffer.length, address, port);
-                socket.send(sendPacket);
-
                 try {
-                    // Read the response sent by the server
-                    DatagramPacket receivedPacket = new DatagramPacket(buffer, buffer.length);
-                    socket.receive(receivedPacket);
-                    String response = new String(receivedPacket.getData(), 0, receivedPacket.getLength());
-                    printWithTimestamp("Server response: " + response);
-                } catch (IOException e) {
+                    // Send the command and wait for its response, which is retransmitted if lost
+                    byte[] response = client.send(text.getBytes(CommandHandler.CHARSET)).get();
+                    printWithTimestamp("Server response: " + new String(response, CommandHandler.CHARSET));
+                } catch (ExecutionException e) {
                     // Handling the case when no response from the server is received
                     String errorMessage = "No response from server for command: " + text;
                     System.err.println("[" + LocalDateTime.now().format(formatter) + "] " + errorMessage);
@@ -90,9 +99,9 @@ public class UDPClient {
                 }
             }
 
-        } catch (UnknownHostException ex) {
+        } catch (UnknownHostException | UnresolvedAddressException ex) {
             // Handling the case when the server is not found
-            String errorMessage = "Server not found: " + ex.getMessage();
+            String errorMessage = "Server not found: " + hostname;
             System.err.println("[" + LocalDateTime.now().format(formatter) + "] " + errorMessage);
             logger.severe(errorMessage);
         } catch (IOException ex) {
@@ -100,6 +109,103 @@ public class UDPClient {
             String errorMessage = "I/O error: " + ex.getMessage();
             System.err.println("[" + LocalDateTime.now().format(formatter) + "] " + errorMessage);
             logger.severe(errorMessage);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Sends every command read from the console without waiting for the responses, keeping
+     * up to the window of requests in flight. Responses are printed as they arrive, which
+     * may differ from the order of the commands.
+     * @param client The client connected to the server.
+     * @param commandReader Reader for the commands, typically a file piped into the client.
+     * @throws IOException If reading the commands fails.
+     * @throws InterruptedException If interrupted while waiting for the responses.
+     */
+    private static void runPipelined(UDPRequestClient client, BufferedReader commandReader)
+            throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        AtomicLong received = new AtomicLong();
+        AtomicLong failed = new AtomicLong();
+        List<CompletableFuture<Void>> pending = new ArrayList<>();
+
+        long sent = 0;
+        String text;
+        while ((text = commandReader.readLine()) != null && !text.equalsIgnoreCase("exit")) {
+            String command = text;
+            pending.add(client.send(command.getBytes(CommandHandler.CHARSET)).handle((response, error) -> {
+                if (error == null) {
+                    printWithTimestamp("Server response: " + new String(response, CommandHandler.CHARSET));
+                    received.incrementAndGet();
+                } else {
+                    String errorMessage = "No response from server for command: " + command;
+                    System.err.println("[" + LocalDateTime.now().format(formatter) + "] " + errorMessage);
+                    logger.warning(errorMessage);
+                    failed.incrementAndGet();
+                }
+                return null;
+            }));
+            sent++;
+            // Keep the list short; completed requests need no further tracking
+            if (pending.size() >= 4096) {
+                pending.removeIf(CompletableFuture::isDone);
+            }
+        }
+        for (CompletableFuture<Void> future : pending) {
+            future.join();
+        }
+
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+        printWithTimestamp("Sent " + sent + " commands and received " + received.get()
+        + " responses in " + elapsedMillis + " ms (" + client.retransmissions() + " retransmissions, "
+        + failed.get() + " without response)");
+    }
+
+    /**
+     * Runs the load generator with one UDPRequestClient per --connections, each with a single
+     * request in flight. Retransmissions are part of the measured latency.
+     * @param hostname Hostname of the server.
+     * @param port Port number of the server.
+     * @param attempts Number of times a command is sent before it counts as an error.
+     * @param options The load generator options.
+     */
+    private static void runLoad(String hostname, int port, int attempts, ServerOptions options) {
+        try {
+            new LoadGenerator(() -> {
+                UDPRequestClient client = new UDPRequestClient(hostname, port, 1, attempts);
+                return new LoadGenerator.Connection() {
+                    @Override
+                    public String send(String command) throws IOException {
+                        try {
+                            return new String(client.send(command.getBytes(CommandHandler.CHARSET)).get(),
+                                    CommandHandler.CHARSET);
+                        } catch (ExecutionException e) {
+                            throw new IOException(e.getCause());
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new IOException(e);
+                        }
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        client.close();
+                    }
+                };
+            }, options).run();
+        } catch (UnresolvedAddressException ex) {
+            String errorMessage = "Server not found: " + hostname;
+            System.err.println("[" + LocalDateTime.now().format(formatter) + "] " + errorMessage);
+            logger.severe(errorMessage);
+        } catch (IllegalArgumentException ex) {
+            printWithTimestamp("Invalid load option: " + ex.getMessage());
+        } catch (IOException ex) {
+            String errorMessage = "I/O error: " + ex.getMessage();
+            System.err.println("[" + LocalDateTime.now().format(formatter) + "] " + errorMessage);
+            logger.severe(errorMessage);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
         }
     }
 
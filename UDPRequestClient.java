@@ -0,0 +1,233 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * UDPRequestClient sends requests to a UDPServer with request IDs, so that many requests can
+ * be in flight at once and their responses are matched by ID, in whatever order they arrive.
+ * Requests that get no response are sent again after a retransmission timeout that adapts to
+ * the measured round-trip time (RFC 6298), backing off exponentially on every retry.
+ *
+ * A tagged datagram is the TAGGED byte, the request ID (8 bytes) and an ordinary text or
+ * binary request; its response carries the same prefix.
+ */
+public class UDPRequestClient implements AutoCloseable {
+
+    /**
+     * First byte of a datagram carrying a request ID.
+     */
+    public static final byte TAGGED = (byte) 0xB8;
+
+    /**
+     * Size of the TAGGED byte and the request ID.
+     */
+    public static final int TAG_SIZE = 9;
+
+    private static final long INITIAL_RTO_MICROS = 200_000;
+    private static final long MIN_RTO_MICROS = 2_000;
+    private static final long MAX_RTO_MICROS = 2_000_000;
+
+    private final DatagramChannel channel;
+    private final int maxAttempts;
+    private final Semaphore window;
+    private final ConcurrentHashMap<Long, Pending> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong nextId = new AtomicLong(ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE);
+    private final ScheduledExecutorService timers;
+    private final Thread receiver;
+    private final LongAdder retransmissions = new LongAdder();
+
+    /**
+     * Round-trip time estimates in microseconds, guarded by this.
+     */
+    private long smoothedRtt;
+    private long rttVariance;
+    private volatile long rto = INITIAL_RTO_MICROS;
+
+    /**
+     * A new UDPRequestClient is constructed and connected to the server.
+     * @param hostname Hostname of the server.
+     * @param port Port number of the server.
+     * @param maxInFlight Most requests waiting for a response at once; send blocks beyond it.
+     * @param maxAttempts Number of times a request is sent before it fails.
+     * @throws IOException If the channel cannot be opened.
+     */
+    public UDPRequestClient(String hostname, int port, int maxInFlight, int maxAttempts) throws IOException {
+        this.channel = DatagramChannel.open();
+        this.channel.connect(new InetSocketAddress(hostname, port));
+        this.maxAttempts = maxAttempts;
+        this.window = new Semaphore(maxInFlight);
+
+        // Cancelled timers are removed right away, as nearly every timer is cancelled by its response
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "udp-retransmit");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.setRemoveOnCancelPolicy(true);
+        this.timers = executor;
+
+        this.receiver = new Thread(this::receive, "udp-receiver");
+        this.receiver.setDaemon(true);
+        this.receiver.start();
+    }
+
+    /**
+     * Sends a request. Blocks while the maximum number of requests is in flight.
+     * @param payload A text command or a binary request starting with BinaryProtocol.MAGIC.
+     * @return A future completed with the response payload, or with a SocketTimeoutException
+     *         if no response arrived after the last attempt.
+     * @throws InterruptedException If interrupted while waiting for room in the window.
+     */
+    public CompletableFuture<byte[]> send(byte[] payload) throws InterruptedException {
+        window.acquire();
+        long id = nextId.getAndIncrement();
+        ByteBuffer datagram = ByteBuffer.allocate(TAG_SIZE + payload.length);
+        datagram.put(TAGGED).putLong(id).put(payload);
+
+        Pending pending = new Pending(id, datagram.array());
+        inFlight.put(id, pending);
+        transmit(pending);
+        return pending.result;
+    }
+
+    /**
+     * @return Current retransmission timeout in microseconds.
+     */
+    public long rtoMicros() {
+        return rto;
+    }
+
+    /**
+     * @return Number of datagrams sent again because their response did not arrive in time.
+     */
+    public long retransmissions() {
+        return retransmissions.sum();
+    }
+
+    /**
+     * Sends one attempt of a request and arms its retransmission timer.
+     */
+    private void transmit(Pending pending) {
+        pending.attempts++;
+        pending.sentAt = System.nanoTime();
+        // Every retry waits twice as long as the previous attempt; the shift is compared
+        // against the cap before it is made, so that many retries cannot overflow it
+        int shift = Math.min(pending.attempts - 1, Long.SIZE - 2);
+        long timeout = rto > MAX_RTO_MICROS >> shift ? MAX_RTO_MICROS : rto << shift;
+        pending.timer = timers.schedule(() -> onTimeout(pending), timeout, TimeUnit.MICROSECONDS);
+        try {
+            channel.write(ByteBuffer.wrap(pending.datagram));
+        } catch (IOException e) {
+            // Treated like a lost datagram: the timer sends it again
+        }
+    }
+
+    /**
+     * Retransmits a request whose response did not arrive in time, or fails it after the last attempt.
+     */
+    private void onTimeout(Pending pending) {
+        if (inFlight.get(pending.id) != pending) return;
+        if (pending.attempts >= maxAttempts) {
+            if (inFlight.remove(pending.id, pending)) {
+                window.release();
+                pending.result.completeExceptionally(new SocketTimeoutException(
+                        "No response after " + pending.attempts + " attempts"));
+            }
+            return;
+        }
+        retransmissions.increment();
+        transmit(pending);
+    }
+
+    /**
+     * Receiver loop: completes the pending requests as their responses arrive.
+     */
+    private void receive() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(UDPServer.MAX_DATAGRAM_SIZE);
+        while (true) {
+            buffer.clear();
+            try {
+                channel.read(buffer);
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                // For example ICMP port unreachable while the server is down; the timers retry
+                continue;
+            }
+            buffer.flip();
+            if (buffer.remaining() < TAG_SIZE || buffer.get(0) != TAGGED) continue;
+
+            // Late responses to requests that were answered already are ignored
+            Pending pending = inFlight.remove(buffer.getLong(1));
+            if (pending == null) continue;
+            pending.timer.cancel(false);
+            if (pending.attempts == 1) {
+                // Only unambiguous round trips are sampled (Karn's algorithm)
+                sampleRtt((System.nanoTime() - pending.sentAt) / 1000);
+            }
+            window.release();
+
+            byte[] response = new byte[buffer.remaining() - TAG_SIZE];
+            buffer.get(TAG_SIZE, response);
+            pending.result.complete(response);
+        }
+    }
+
+    /**
+     * Updates the round-trip time estimates and the retransmission timeout with a new sample.
+     * @param rtt Measured round-trip time in microseconds.
+     */
+    private synchronized void sampleRtt(long rtt) {
+        if (smoothedRtt == 0) {
+            smoothedRtt = rtt;
+            rttVariance = rtt / 2;
+        } else {
+            rttVariance = (3 * rttVariance + Math.abs(smoothedRtt - rtt)) / 4;
+            smoothedRtt = (7 * smoothedRtt + rtt) / 8;
+        }
+        rto = Math.max(MIN_RTO_MICROS, Math.min(MAX_RTO_MICROS, smoothedRtt + 4 * rttVariance));
+    }
+
+    /**
+     * Closes the channel and fails the requests still in flight.
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+        timers.shutdownNow();
+        for (Pending pending : inFlight.values()) {
+            pending.result.completeExceptionally(new ClosedChannelException());
+        }
+        inFlight.clear();
+    }
+
+    /**
+     * Pending is a request waiting for its response.
+     */
+    private static class Pending {
+        final long id;
+        final byte[] datagram;
+        final CompletableFuture<byte[]> result = new CompletableFuture<>();
+        volatile int attempts;
+        volatile long sentAt;
+        volatile ScheduledFuture<?> timer;
+
+        Pending(long id, byte[] datagram) {
+            this.id = id;
+            this.datagram = datagram;
+        }
+    }
+}
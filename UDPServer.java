@@ -1,111 +1,457 @@
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
-import java.util.logging.FileHandler;
-import java.util.logging.Logger;
-import java.util.logging.SimpleFormatter;
 
 /**
- * UDPServer class is a simple UDP Server listening to clients and handling requests 
+ * UDPServer class is a simple UDP Server listening to clients and handling requests
  * using a CommandHandler.
+ *
+ * Datagrams are served by several worker threads, each of which receives a datagram,
+ * executes it and sends the response with its own reusable direct buffers. By default the
+ * workers share one DatagramChannel; with --reuseport each worker binds a channel of its
+ * own to the port and the kernel spreads the clients over them.
  */
 public class UDPServer {
     private static final DateTimeFormatter formatter = DateTimeFormatter.ofPattern
     ("yyyy-MM-dd HH:mm:ss.SSS");
-    private static final Logger logger = Logger.getLogger(UDPServer.class.getName());
 
     /**
-     * A Static initialization block to setup the logger for the UDP Server.
+     * Largest payload of a UDP datagram over IPv4.
      */
-    static {
-        try {
-            // Configure the logger with a file handler and a simple formatter
-            FileHandler fileHandler = new FileHandler
-            ("udpserver.log", true); // Use append mode
-            fileHandler.setFormatter(new SimpleFormatter());
-            logger.addHandler(fileHandler);
-            logger.setUseParentHandlers(false);
-        } catch (IOException e) {
-            System.err.println("Failed to set up logger: " + e.getMessage());
-        }
-    }
+    public static final int MAX_DATAGRAM_SIZE = 65507;
+
+    /**
+     * Smallest datagram size limit that can be configured.
+     */
+    private static final int MIN_DATAGRAM_SIZE = 512;
+
+    /**
+     * Default number of responses kept to answer retransmitted requests.
+     */
+    private static final int DEFAULT_DEDUP_SIZE = 65536;
+
+    /**
+     * Asynchronous logger for the console and the log file, set up from the server options.
+     */
+    static AsyncLogger log;
 
     /**
      * Main method for the UDP Server.
-     * @param args Command Line Arguments to run the server: port number of the server.
+     * @param args Command Line Arguments to run the server: port number of the server,
+     *             optionally followed by the flags described in README.md.
      */
     public static void main(String[] args) {
         // Check for correct number of arguments to run the server
-        if (args.length != 1) {
-            printWithTimestamp("Sample Usage: java UDPServer <port number>");
+        ServerOptions options = new ServerOptions(args);
+        if (options.positional().size() != 1) {
+            printWithTimestamp("Sample Usage: java UDPServer <port number> [--option=value ...]"
+            + " (the options are described in README.md)");
             return;
         }
 
         // Extract the port number from the command-line arguments
-        int port = Integer.parseInt(args[0]);
-        CommandHandler commandHandler = new CommandHandler();
+        int port = Integer.parseInt(options.positional().get(0));
+        log = new AsyncLogger("udpserver.log", options);
+        CommandHandler commandHandler;
+        int workers;
+        try {
+            workers = options.getInt("workers", Runtime.getRuntime().availableProcessors());
+            if (workers < 1) {
+                throw new IllegalArgumentException("--workers must be at least 1");
+            }
+            checkOptions(options);
+            if (options.has("cluster") || options.has("join")) {
+                // The nodes of a cluster talk to each other over TCP
+                throw new IllegalArgumentException("Cluster mode is only supported by the TCP server");
+            }
+            commandHandler = CommandHandler.fromOptions(options, log);
+        } catch (IOException | IllegalArgumentException ex) {
+            log.severe("Failed to start the server: " + ex.getMessage());
+            return;
+        }
 
-        try (DatagramSocket socket = new DatagramSocket(port)) {
-            byte[] buffer = new byte[1024];
+        try {
+            for (Thread thread : start(port, options, workers, commandHandler, null)) {
+                thread.join();
+            }
+        } catch (IOException ex) {
+            // Handling I/O errors
+            log.severe("Server exception: " + ex.getMessage());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
 
-            printWithTimestamp("Server is listening on port " + port);
+    /**
+     * Validates the datagram options, so that a server fails before it opens its store.
+     * @param options The server options.
+     * @throws IllegalArgumentException If --max-datagram or --dedup-size is out of range.
+     */
+    static void checkOptions(ServerOptions options) {
+        int datagramSize = options.getInt("max-datagram", MAX_DATAGRAM_SIZE);
+        if (datagramSize < MIN_DATAGRAM_SIZE || datagramSize > MAX_DATAGRAM_SIZE) {
+            throw new IllegalArgumentException("--max-datagram must be between "
+                    + MIN_DATAGRAM_SIZE + " and " + MAX_DATAGRAM_SIZE);
+        }
+        if (options.getInt("dedup-size", DEFAULT_DEDUP_SIZE) < 1) {
+            throw new IllegalArgumentException("--dedup-size must be at least 1");
+        }
+    }
 
-            while (true) {
-                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+    /**
+     * Binds the channels of the server and starts its worker threads. Shared by this server
+     * and the KeyValueServer, which serves TCP and UDP from one store.
+     * @param port Port number of the server.
+     * @param options The server options, already validated by checkOptions.
+     * @param workers Number of worker threads.
+     * @param commandHandler CommandHandler object to process the client commands.
+     * @param lane Lane of the shared executor running the commands, or null for the workers
+     *             to run the commands of the datagrams they receive.
+     * @return The started worker threads, which run until the channels are closed.
+     * @throws IOException If a channel cannot be bound; the channels already bound are closed.
+     */
+    static Thread[] start(int port, ServerOptions options, int workers, CommandHandler commandHandler,
+                          CommandExecutor.Lane lane) throws IOException {
+        int datagramSize = options.getInt("max-datagram", MAX_DATAGRAM_SIZE);
+        DuplicateCache duplicateCache = new DuplicateCache(options.getInt("dedup-size", DEFAULT_DEDUP_SIZE));
+        boolean reusePort = options.has("reuseport");
+        DatagramChannel[] channels = new DatagramChannel[reusePort ? workers : 1];
+        try {
+            for (int i = 0; i < channels.length; i++) {
+                channels[i] = open(port, reusePort);
+            }
+        } catch (IOException ex) {
+            for (DatagramChannel channel : channels) {
                 try {
-                    // Accept packets from the client
-                    socket.receive(packet);
-
-                    // Convert packet data into string
-                    String received = new String(packet.getData(), 0, packet.getLength());
-
-                    // Log the request received by the client into log file
-                    printWithTimestamp("Received from " + packet.getAddress() + ":" 
-                    + packet.getPort() + " - " + received);
-                    logger.info("Received from " + packet.getAddress() + ":" 
-                    + packet.getPort() + " - " + received);
-
-                    // Split the recived request into commands and arguments
-                    String[] textParts = received.split(" ", 2);
-                    if (textParts.length < 1) {
-                        throw new IllegalArgumentException("Malformed request");
-                    }
-
-                    // Extract the commands and arguments
-                    String command = textParts[0];
-                    String[] commandArgs = textParts.length > 1 ? 
-                    textParts[1].split(" ", 2) : new String[]{};
-
-                    // Process commands and get the response
-                    String response = commandHandler.handleCommand(command, commandArgs);
-
-                    // Log the response on the console and log file
-                    printWithTimestamp("Response to " + packet.getAddress() + ":" 
-                    + packet.getPort() + " - " + response);
-                    logger.info("Response to " + packet.getAddress() + ":" 
-                    + packet.getPort() + " - " + response);
-
-                    // Sending the response back to the client
-                    byte[] responseBytes = response.getBytes();
-                    DatagramPacket responsePacket = new DatagramPacket
-                    (responseBytes, responseBytes.length, packet.getAddress(), packet.getPort());
-                    socket.send(responsePacket);
-
-                } catch (IllegalArgumentException e) {
-                    // Handling malformed datagram requests
-                    String errorMsg = "Received malformed request of length " 
-                    + packet.getLength() + " from " + packet.getAddress() + ":" + packet.getPort();
-                    printWithTimestamp(errorMsg);
-                    logger.warning(errorMsg);
+                    if (channel != null) channel.close();
+                } catch (IOException ignored) {
+                    // The server is shutting down anyway
                 }
             }
+            throw ex;
+        }
+        printWithTimestamp("Server is listening on port " + port + " with " + workers + " worker threads");
 
-        } catch (IOException ex) {
-            // Handling I/O errors
-            printWithTimestamp("Server exception: " + ex.getMessage());
-            logger.severe("Server exception: " + ex.getMessage());
+        // The executor threads answer the datagrams of every worker, each with buffers of its own
+        ThreadLocal<Worker> executorWorkers = ThreadLocal.withInitial(() -> new Worker(datagramSize));
+        Thread[] threads = new Thread[workers];
+        for (int i = 0; i < workers; i++) {
+            DatagramChannel channel = channels[i % channels.length];
+            threads[i] = new Thread(() -> serve(channel, commandHandler, duplicateCache, datagramSize,
+                    lane, executorWorkers), "udp-worker-" + (i + 1));
+            threads[i].start();
+        }
+        return threads;
+    }
+
+    /**
+     * Opens a blocking DatagramChannel bound to the port.
+     * @param port Port number of the server.
+     * @param reusePort Whether other channels may be bound to the same port.
+     * @return The bound channel.
+     * @throws IOException If the channel cannot be bound.
+     */
+    private static DatagramChannel open(int port, boolean reusePort) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        try {
+            if (reusePort) {
+                channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            // A large receive buffer absorbs bursts while all workers are busy
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, 4 * 1024 * 1024);
+            channel.bind(new InetSocketAddress(port));
+            return channel;
+        } catch (IOException | UnsupportedOperationException ex) {
+            channel.close();
+            throw ex instanceof IOException ? (IOException) ex : new IOException(ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Worker loop: receives datagrams from the channel and answers them until it is closed.
+     * With a lane, the datagrams are copied and answered by the executor instead; a datagram
+     * arriving while the lane is full is dropped, as if the network had lost it, and the
+     * client's retransmission finds room later.
+     * @param channel The channel shared by the workers, or owned by this worker.
+     * @param commandHandler CommandHandler object to process the client commands.
+     * @param duplicateCache Responses to recent tagged requests that changed the store.
+     * @param datagramSize Largest datagram accepted or sent.
+     * @param lane Lane of the shared executor, or null to answer the datagrams on this thread.
+     * @param executorWorkers Buffers of the executor threads answering the datagrams.
+     */
+    private static void serve(DatagramChannel channel, CommandHandler commandHandler,
+                              DuplicateCache duplicateCache, int datagramSize,
+                              CommandExecutor.Lane lane, ThreadLocal<Worker> executorWorkers) {
+        Worker worker = new Worker(datagramSize);
+        ByteBuffer in = worker.in;
+
+        while (true) {
+            in.clear();
+            SocketAddress client;
+            try {
+                // Accept packets from the client
+                client = channel.receive(in);
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                log.warning("Failed to receive a datagram: " + e.getMessage());
+                continue;
+            }
+            in.flip();
+            commandHandler.metrics().received(in.limit());
+
+            if (lane == null) {
+                answer(channel, client, in, worker, commandHandler, duplicateCache, datagramSize);
+                continue;
+            }
+            byte[] datagram = new byte[in.limit()];
+            in.get(datagram);
+            boolean queued = lane.offer(() -> answer(channel, client, ByteBuffer.wrap(datagram),
+                    executorWorkers.get(), commandHandler, duplicateCache, datagramSize));
+            if (!queued) commandHandler.metrics().rejected();
+        }
+    }
+
+    /**
+     * Executes a received datagram and sends the response.
+     * @param channel The channel the datagram was received on.
+     * @param client Address of the sender.
+     * @param in The datagram, flipped for reading.
+     * @param worker Buffers of the calling thread.
+     * @param commandHandler CommandHandler object to process the client commands.
+     * @param duplicateCache Responses to recent tagged requests that changed the store.
+     * @param datagramSize Largest datagram accepted or sent.
+     */
+    private static void answer(DatagramChannel channel, SocketAddress client, ByteBuffer in, Worker worker,
+                               CommandHandler commandHandler, DuplicateCache duplicateCache, int datagramSize) {
+        ByteBuffer out = worker.out;
+        BinaryProtocol.Response response = worker.response;
+        out.clear();
+        try {
+            // Datagrams starting with the TAGGED byte carry a request ID, echoed in the response
+            Packet packet = new Packet(client);
+            if (in.hasRemaining() && in.get(0) == UDPRequestClient.TAGGED) {
+                if (in.remaining() < UDPRequestClient.TAG_SIZE) {
+                    throw new IllegalArgumentException("Incomplete request ID");
+                }
+                packet.tagged = true;
+                packet.id = in.getLong(1);
+                in.position(UDPRequestClient.TAG_SIZE);
+                out.put(UDPRequestClient.TAGGED).putLong(packet.id);
+            }
+
+            // Datagrams starting with the MAGIC byte use the binary protocol
+            boolean binary = in.hasRemaining() && in.get(in.position()) == BinaryProtocol.MAGIC;
+            boolean answered = true;
+            if (in.limit() > datagramSize) {
+                log.warning("Received datagram over " + datagramSize + " bytes from " + client);
+                response.set(BinaryProtocol.STATUS_ERROR, "Request too large.");
+                if (binary) {
+                    putBinaryResponse(out, response);
+                } else {
+                    putText(out, response.value);
+                }
+            } else if (binary) {
+                answered = handleBinaryPacket(in, out, packet, commandHandler, duplicateCache, worker.request, response);
+            } else {
+                answered = handleTextPacket(in, out, worker.bytes, packet, commandHandler, duplicateCache);
+            }
+
+            // Sending the response back to the client
+            if (answered) {
+                out.flip();
+                commandHandler.metrics().sent(channel.send(out, client));
+            }
+        } catch (IllegalArgumentException e) {
+            // Handling malformed datagram requests
+            log.warning("Received malformed request of length " + in.limit() + " from " + client);
+        } catch (ClosedChannelException e) {
+            // The server is shutting down
+        } catch (IOException e) {
+            log.warning("Failed to send a response to " + client + ": " + e.getMessage());
+        } catch (RuntimeException e) {
+            // A failure of one datagram must not stop the worker
+            log.severe("Failed to answer a datagram from " + client + ": " + e);
+        }
+    }
+
+    /**
+     * Handles a datagram using the text protocol.
+     * @param in The received datagram, positioned at the command.
+     * @param out Buffer receiving the response datagram.
+     * @param bytes Scratch array large enough for a datagram.
+     * @param packet Sender and request ID of the datagram.
+     * @param commandHandler CommandHandler object to process the client commands.
+     * @param duplicateCache Responses to recent tagged requests that changed the store.
+     * @return False if the datagram is a copy of a request still being executed, which is not answered.
+     */
+    private static boolean handleTextPacket(ByteBuffer in, ByteBuffer out, byte[] bytes, Packet packet,
+                                            CommandHandler commandHandler, DuplicateCache duplicateCache) {
+        // Convert packet data into string
+        int length = in.remaining();
+        in.get(bytes, 0, length);
+        String received = new String(bytes, 0, length, CommandHandler.CHARSET);
+
+        boolean deduplicated = packet.tagged && !CommandHandler.isReadOnly(received);
+        if (deduplicated) {
+            Boolean answered = answerDuplicate(out, packet, duplicateCache);
+            if (answered != null) return answered;
+        }
+        int start = out.position();
+
+        // Log the request received by the client, if the request is sampled
+        boolean logged = log.sample();
+        if (logged) log.request("Received from ", packet.client.toString(), received);
+
+        // Process commands and get the response
+        String responseText;
+        boolean failed = false;
+        try {
+            responseText = commandHandler.handleRequest(received);
+        } catch (RuntimeException e) {
+            // The retransmission of a failed request is executed again
+            if (deduplicated) duplicateCache.abandon(packet.client, packet.id);
+            log.severe("Failed to execute a request from " + packet.client + ": " + e);
+            responseText = "Operation failed: " + e;
+            failed = true;
+        }
+        if (responseText.length() > out.remaining()) {
+            responseText = "Response too large.";
+        }
+
+        // Log the response on the console and log file
+        if (logged) log.request("Response to ", packet.client.toString(), responseText);
+        putText(out, responseText);
+        if (deduplicated && !failed) complete(out, start, packet, duplicateCache);
+        return true;
+    }
+
+    /**
+     * Handles a datagram using the binary protocol: MAGIC followed by a single request frame.
+     * The response is MAGIC followed by a single response frame.
+     * @param in The received datagram, positioned at the MAGIC byte.
+     * @param out Buffer receiving the response datagram.
+     * @param packet Sender and request ID of the datagram.
+     * @param commandHandler CommandHandler object to process the client commands.
+     * @param duplicateCache Responses to recent tagged requests that changed the store.
+     * @param request Reusable holder for the decoded request.
+     * @param response Reusable holder for the response.
+     * @return False if the datagram is a copy of a request still being executed, which is not answered.
+     * @throws IllegalArgumentException If the datagram does not hold a complete frame.
+     */
+    private static boolean handleBinaryPacket(ByteBuffer in, ByteBuffer out, Packet packet,
+                                              CommandHandler commandHandler, DuplicateCache duplicateCache,
+                                              BinaryProtocol.Request request, BinaryProtocol.Response response) {
+        in.position(in.position() + 1);
+        if (!BinaryProtocol.decode(in, request)) {
+            throw new IllegalArgumentException("Incomplete binary frame");
+        }
+
+        boolean deduplicated = packet.tagged && request.opcode != BinaryProtocol.OP_GET
+                && !(request.opcode == BinaryProtocol.OP_COMMAND && CommandHandler.isReadOnly(request.value));
+        if (deduplicated) {
+            Boolean answered = answerDuplicate(out, packet, duplicateCache);
+            if (answered != null) return answered;
+        }
+        int start = out.position();
+
+        boolean logged = log.sample();
+        if (logged) log.request("Received from ", packet.client.toString(), request.toString());
+
+        boolean failed = false;
+        try {
+            BinaryProtocol.execute(request, commandHandler, response);
+        } catch (RuntimeException e) {
+            // The retransmission of a failed request is executed again
+            if (deduplicated) duplicateCache.abandon(packet.client, packet.id);
+            log.severe("Failed to execute " + request + " from " + packet.client + ": " + e);
+            response.set(BinaryProtocol.STATUS_ERROR, "Operation failed: " + e);
+            failed = true;
+        }
+        if (1 + BinaryProtocol.encodedSize(response) > out.remaining()) {
+            response.set(BinaryProtocol.STATUS_ERROR, "Response too large.");
+        }
+
+        if (logged) log.request("Response to ", packet.client.toString(), response.toString());
+        putBinaryResponse(out, response);
+        if (deduplicated && !failed) complete(out, start, packet, duplicateCache);
+        return true;
+    }
+
+    /**
+     * Looks up a tagged request that changes the store in the duplicate cache, writing its
+     * response to out again if it was answered before.
+     * @return Null if the request must be executed, true if its cached response is in out,
+     *         or false if it is still being executed by another worker.
+     */
+    private static Boolean answerDuplicate(ByteBuffer out, Packet packet, DuplicateCache duplicateCache) {
+        byte[] previous = duplicateCache.begin(packet.client, packet.id);
+        if (previous == null) return null;
+        if (previous == DuplicateCache.IN_PROGRESS) return false;
+        out.put(previous);
+        return true;
+    }
+
+    /**
+     * Records the response written to out since start in the duplicate cache.
+     */
+    private static void complete(ByteBuffer out, int start, Packet packet, DuplicateCache duplicateCache) {
+        byte[] responseBytes = new byte[out.position() - start];
+        out.get(start, responseBytes);
+        duplicateCache.complete(packet.client, packet.id, responseBytes);
+    }
+
+    /**
+     * Writes MAGIC and an encoded response frame into the buffer.
+     */
+    private static void putBinaryResponse(ByteBuffer out, BinaryProtocol.Response response) {
+        out.put(BinaryProtocol.MAGIC);
+        BinaryProtocol.encode(out, response);
+    }
+
+    /**
+     * Writes a text response into the buffer, one byte per char.
+     */
+    private static void putText(ByteBuffer out, String text) {
+        for (int i = 0; i < text.length(); i++) {
+            out.put((byte) text.charAt(i));
+        }
+    }
+
+    /**
+     * Worker holds the reusable buffers of a thread answering datagrams.
+     */
+    private static class Worker {
+        // One extra byte reveals datagrams over the limit, which would otherwise be truncated silently
+        final ByteBuffer in;
+        final ByteBuffer out;
+        final byte[] bytes;
+        final BinaryProtocol.Request request = new BinaryProtocol.Request();
+        final BinaryProtocol.Response response = new BinaryProtocol.Response();
+
+        Worker(int datagramSize) {
+            in = ByteBuffer.allocateDirect(datagramSize + 1);
+            out = ByteBuffer.allocateDirect(datagramSize);
+            bytes = new byte[datagramSize];
+        }
+    }
+
+    /**
+     * Packet describes the sender of a datagram and, for tagged datagrams, its request ID.
+     */
+    private static class Packet {
+        final SocketAddress client;
+        boolean tagged;
+        long id;
+
+        Packet(SocketAddress client) {
+            this.client = client;
         }
     }
 
@@ -116,4 +462,4 @@ public class UDPServer {
     private static void printWithTimestamp(String message) {
         System.out.println("[" + LocalDateTime.now().format(formatter) + "] " + message);
     }
-}
\ No newline at end of file
+}
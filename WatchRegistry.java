@@ -0,0 +1,289 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * WatchRegistry pushes key changes to the connections watching them, so that clients do not
+ * have to poll. A connection subscribes to keys or to key prefixes with WATCH, and every
+ * change of a matching key queues the key on the subscriber; the subscriber's connection then
+ * sends the current value of each queued key as an event.
+ *
+ * Writers never wait for subscribers: a change only adds its key to the pending set of each
+ * subscriber, under the subscriber's lock, and wakes the subscriber's connection up if the set
+ * was empty. The set coalesces the changes of a key, so a subscriber that falls behind
+ * receives the latest value once instead of every intermediate one. A subscriber whose set
+ * exceeds its capacity of distinct keys is too slow to keep up, and is disconnected.
+ */
+public class WatchRegistry {
+
+    private static final String USAGE = "Sample Usage: WATCH <key> | WATCH PREFIX <prefix> | UNWATCH [<key> | PREFIX <prefix>]";
+
+    /**
+     * Subscribers by watched key and by watched prefix. The arrays are replaced, never changed,
+     * so changes read them without locking; subscriptions are changed under this.
+     */
+    private final ConcurrentHashMap<String, Subscriber[]> keys = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Subscriber[]> prefixes = new ConcurrentHashMap<>();
+
+    /**
+     * Distinct lengths of the watched prefixes in ascending order, so that a change looks up
+     * only the prefixes of its key that can be watched.
+     */
+    private volatile int[] prefixLengths = new int[0];
+    private final Map<Integer, Integer> prefixLengthCounts = new HashMap<>();
+
+    /**
+     * Number of subscriptions, so that changes cost a single read while nothing is watched.
+     */
+    private volatile int subscriptions;
+
+    /**
+     * Queues a changed key on the subscribers watching it. Called by the CommandHandler under
+     * the key's stripe lock, right after the change is logged, so it never blocks.
+     * @param key The changed key.
+     */
+    public void changed(String key) {
+        if (subscriptions == 0) return;
+        Subscriber[] watchers = keys.get(key);
+        if (watchers != null) {
+            for (Subscriber subscriber : watchers) {
+                subscriber.offer(key);
+            }
+        }
+        for (int length : prefixLengths) {
+            if (length > key.length()) break;
+            watchers = prefixes.get(key.substring(0, length));
+            if (watchers == null) continue;
+            for (Subscriber subscriber : watchers) {
+                subscriber.offer(key);
+            }
+        }
+    }
+
+    /**
+     * Checks whether a request line is a WATCH or UNWATCH command, which the servers execute
+     * on the connection instead of passing them to the CommandHandler.
+     * @param text The request line received from a client.
+     * @return True for WATCH and UNWATCH.
+     */
+    public static boolean isWatchCommand(String text) {
+        return text.equals("WATCH") || text.startsWith("WATCH ") || text.equals("UNWATCH") || text.startsWith("UNWATCH ");
+    }
+
+    /**
+     * Executes a WATCH or UNWATCH command for a connection.
+     * @param subscriber The subscriber of the connection.
+     * @param text The request line.
+     * @return A message depicting the result of the operation.
+     */
+    public String command(Subscriber subscriber, String text) {
+        String[] parts = text.split(" ");
+        boolean watch = parts[0].equals("WATCH");
+        boolean prefix = parts.length == 3 && parts[1].equals("PREFIX");
+        if (parts.length == 1 && !watch) {
+            unsubscribeAll(subscriber);
+            return "Operation successful.";
+        }
+        if (parts.length != 2 && !prefix) return USAGE;
+        String pattern = parts[parts.length - 1];
+        if (watch) {
+            subscribe(subscriber, pattern, prefix);
+        } else {
+            unsubscribe(subscriber, pattern, prefix);
+        }
+        return "Operation successful.";
+    }
+
+    /**
+     * Adds a subscription.
+     * @param subscriber The subscriber.
+     * @param pattern The watched key or prefix.
+     * @param prefix True if pattern is a prefix.
+     */
+    private synchronized void subscribe(Subscriber subscriber, String pattern, boolean prefix) {
+        if (subscriber.closed()) return;
+        Set<String> watched = prefix ? subscriber.watchedPrefixes : subscriber.watchedKeys;
+        if (!watched.add(pattern)) return;
+        ConcurrentHashMap<String, Subscriber[]> map = prefix ? prefixes : keys;
+        Subscriber[] watchers = map.get(pattern);
+        if (watchers == null) {
+            map.put(pattern, new Subscriber[] {subscriber});
+        } else {
+            Subscriber[] grown = Arrays.copyOf(watchers, watchers.length + 1);
+            grown[watchers.length] = subscriber;
+            map.put(pattern, grown);
+        }
+        if (prefix) updatePrefixLength(pattern.length(), 1);
+        subscriptions++;
+    }
+
+    /**
+     * Removes a subscription, if it exists.
+     * @param subscriber The subscriber.
+     * @param pattern The watched key or prefix.
+     * @param prefix True if pattern is a prefix.
+     */
+    private synchronized void unsubscribe(Subscriber subscriber, String pattern, boolean prefix) {
+        Set<String> watched = prefix ? subscriber.watchedPrefixes : subscriber.watchedKeys;
+        if (!watched.remove(pattern)) return;
+        ConcurrentHashMap<String, Subscriber[]> map = prefix ? prefixes : keys;
+        Subscriber[] watchers = map.get(pattern);
+        List<Subscriber> remaining = new ArrayList<>(Arrays.asList(watchers));
+        remaining.remove(subscriber);
+        if (remaining.isEmpty()) {
+            map.remove(pattern);
+        } else {
+            map.put(pattern, remaining.toArray(new Subscriber[0]));
+        }
+        if (prefix) updatePrefixLength(pattern.length(), -1);
+        subscriptions--;
+    }
+
+    /**
+     * Removes every subscription of a subscriber.
+     * @param subscriber The subscriber.
+     */
+    private synchronized void unsubscribeAll(Subscriber subscriber) {
+        for (String key : new ArrayList<>(subscriber.watchedKeys)) {
+            unsubscribe(subscriber, key, false);
+        }
+        for (String prefix : new ArrayList<>(subscriber.watchedPrefixes)) {
+            unsubscribe(subscriber, prefix, true);
+        }
+    }
+
+    /**
+     * Counts a prefix length in or out, and rebuilds the lengths read by changes. Called under this.
+     */
+    private void updatePrefixLength(int length, int delta) {
+        prefixLengthCounts.merge(length, delta, (count, change) -> count + change == 0 ? null : count + change);
+        int[] lengths = new int[prefixLengthCounts.size()];
+        Iterator<Integer> iterator = prefixLengthCounts.keySet().iterator();
+        for (int i = 0; i < lengths.length; i++) {
+            lengths[i] = iterator.next();
+        }
+        Arrays.sort(lengths);
+        prefixLengths = lengths;
+    }
+
+    /**
+     * Formats the event sent for a key.
+     * @param key The changed key.
+     * @param value Its current value, or null if it was deleted or expired.
+     * @return "EVENT SET key value", or "EVENT DEL key".
+     */
+    public static String event(String key, String value) {
+        return value == null ? "EVENT DEL " + key : "EVENT SET " + key + " " + value;
+    }
+
+    /**
+     * Subscriber is the watching side of a connection. The servers extend it to wake their
+     * connection up when keys are queued, and to disconnect it when it falls behind.
+     */
+    public abstract static class Subscriber {
+        private final WatchRegistry registry;
+        private final int capacity;
+
+        /**
+         * Watched keys and prefixes; guarded by the registry.
+         */
+        private final Set<String> watchedKeys = new HashSet<>();
+        private final Set<String> watchedPrefixes = new HashSet<>();
+
+        /**
+         * Changed keys not sent yet, in the order of their first change; guarded by this.
+         */
+        private final LinkedHashSet<String> pending = new LinkedHashSet<>();
+        private boolean signalled;
+        private boolean closed;
+
+        /**
+         * A new Subscriber is constructed without subscriptions.
+         * @param registry The registry the connection subscribes in.
+         * @param capacity Largest number of distinct keys waiting to be sent.
+         */
+        protected Subscriber(WatchRegistry registry, int capacity) {
+            this.registry = registry;
+            this.capacity = capacity;
+        }
+
+        /**
+         * Queues a changed key, waking the connection up if nothing was queued, or disconnects
+         * the subscriber if its queue is full.
+         */
+        void offer(String key) {
+            boolean signal = false;
+            boolean overflow = false;
+            synchronized (this) {
+                if (closed) return;
+                if (pending.size() >= capacity && !pending.contains(key)) {
+                    closed = true;
+                    pending.clear();
+                    overflow = true;
+                } else if (pending.add(key) && !signalled) {
+                    signalled = true;
+                    signal = true;
+                }
+            }
+            if (overflow) {
+                overflow();
+            } else if (signal) {
+                signal();
+            }
+        }
+
+        /**
+         * Takes queued keys, oldest first. Once the queue is found empty, the next queued key
+         * calls signal() again.
+         * @param max Largest number of keys taken.
+         * @return The keys, or an empty list if none are queued.
+         */
+        public synchronized List<String> poll(int max) {
+            List<String> keys = new ArrayList<>(Math.min(max, pending.size()));
+            Iterator<String> iterator = pending.iterator();
+            while (iterator.hasNext() && keys.size() < max) {
+                keys.add(iterator.next());
+                iterator.remove();
+            }
+            if (keys.isEmpty()) signalled = false;
+            return keys;
+        }
+
+        /**
+         * @return True once the subscriber was closed or disconnected for falling behind.
+         */
+        public synchronized boolean closed() {
+            return closed;
+        }
+
+        /**
+         * Removes every subscription, when the connection closes.
+         */
+        public void close() {
+            synchronized (this) {
+                closed = true;
+                pending.clear();
+            }
+            registry.unsubscribeAll(this);
+        }
+
+        /**
+         * Called when a key is queued while the queue was empty. Must not block: it is called
+         * by the writer of the key under its stripe lock.
+         */
+        protected abstract void signal();
+
+        /**
+         * Called once when the queue overflows: the connection must be closed. Must not
+         * block, for the same reason as signal().
+         */
+        protected abstract void overflow();
+    }
+}
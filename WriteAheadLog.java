@@ -0,0 +1,446 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * WriteAheadLog is an append-only log of the PUT and DELETE operations of the CommandHandler,
+ * replayed into the store when a server starts. Every record is checksummed so that a torn
+ * write at the end of the log is detected and cut off during replay. The log is split into
+ * numbered segment files; a new segment is started whenever a snapshot is taken, so that the
+ * segments covered by the snapshot can be deleted.
+ *
+ * Record: crc32 (4) | op (1) | key length (4) | value length (4) | key | value
+ */
+public class WriteAheadLog implements AutoCloseable {
+
+    /**
+     * Operation codes of the log records.
+     */
+    public static final byte OP_PUT = 1;
+    public static final byte OP_DELETE = 2;
+    /** Removes the expiry of a key. */
+    public static final byte OP_PERSIST = 3;
+    /** A PUT with an expiry; the value is the deadline in epoch milliseconds, a space and the value. */
+    public static final byte OP_PUT_EXPIRING = 4;
+
+    private static final int HEADER_SIZE = 13;
+
+    /**
+     * Largest key and value length of a record together. Longer records are refused by append,
+     * and a longer length read during replay can only come from a damaged log.
+     */
+    public static final int MAX_RECORD_LENGTH = BinaryProtocol.MAX_VALUE_LENGTH + 0xFFFF;
+
+    /**
+     * When the log is forced to disk.
+     */
+    public enum FsyncPolicy {
+        /** Every write waits until it is on disk; concurrent writers share one force. */
+        ALWAYS,
+        /** A background thread forces the log every few milliseconds; writers do not wait. */
+        GROUP,
+        /** The log is never forced explicitly and the OS decides when to write it back. */
+        OS
+    }
+
+    /**
+     * Callback used to replay the records of the log.
+     */
+    public interface RecordHandler {
+        void apply(byte op, String key, String value);
+    }
+
+    private final Path directory;
+    private final FsyncPolicy policy;
+
+    /**
+     * Channel of the current segment and its number. Only replaced under writeLock.
+     */
+    private volatile FileChannel channel;
+    private long segment;
+    private volatile boolean closed;
+
+    /**
+     * Sequence number of the last record written to the channel. Guarded by writeLock.
+     */
+    private volatile long writtenSequence;
+    private final Object writeLock = new Object();
+
+    /**
+     * Sequence number of the last record known to be on disk, and whether a thread is
+     * currently forcing the log. Guarded by syncLock.
+     */
+    private long durableSequence;
+    private boolean syncing;
+    private final Object syncLock = new Object();
+
+    /**
+     * Per-thread buffer used to encode records outside of the write lock.
+     */
+    private final ThreadLocal<ByteBuffer> recordBuffer =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocate(4096));
+
+    private final Thread groupCommitThread;
+
+    /**
+     * A new WriteAheadLog is constructed, opening the newest segment in the given directory
+     * or creating the first one.
+     * @param directory Directory holding the segment files.
+     * @param policy When the log is forced to disk.
+     * @param groupCommitMillis Interval between forces for the GROUP policy.
+     * @throws IOException If the log cannot be opened.
+     */
+    public WriteAheadLog(Path directory, FsyncPolicy policy, long groupCommitMillis) throws IOException {
+        Files.createDirectories(directory);
+        this.directory = directory;
+        this.policy = policy;
+        List<Long> segments = segments();
+        this.segment = segments.isEmpty() ? 1 : segments.get(segments.size() - 1);
+        this.channel = open(segment);
+
+        if (policy == FsyncPolicy.GROUP) {
+            groupCommitThread = new Thread(() -> runGroupCommit(groupCommitMillis), "wal-group-commit");
+            groupCommitThread.setDaemon(true);
+        } else {
+            groupCommitThread = null;
+        }
+    }
+
+    /**
+     * @return The directory holding the segment files.
+     */
+    public Path directory() {
+        return directory;
+    }
+
+    /**
+     * Replays every intact record of the segments from firstSegment on, and positions the
+     * log for appending after them. A torn record at the end of a segment, left by a crash in
+     * the middle of a write, ends the replay of its segment; in the current segment, the log
+     * is truncated in front of it. A damaged record followed by more data is not a torn write:
+     * the replay fails instead of dropping the records after it.
+     * Must be called once, before the first append.
+     * @param firstSegment First segment to replay, as recorded by the snapshot, or 1.
+     * @param handler Callback receiving the records in the order they were written.
+     * @return Number of records replayed.
+     * @throws IOException If the log cannot be read, or holds a damaged record that is not torn.
+     */
+    public long replay(long firstSegment, RecordHandler handler) throws IOException {
+        long count = 0;
+        for (long number : segments()) {
+            if (number >= firstSegment) {
+                count += replaySegment(number, handler);
+            }
+        }
+        if (groupCommitThread != null) groupCommitThread.start();
+        return count;
+    }
+
+    /**
+     * Replays the records of a single segment.
+     * @param number Number of the segment.
+     * @param handler Callback receiving the records.
+     * @return Number of records replayed.
+     * @throws IOException If the segment cannot be read, or holds a damaged record that is not torn.
+     */
+    private long replaySegment(long number, RecordHandler handler) throws IOException {
+        long count = 0;
+        long validLength = 0;
+        long size = Files.size(segmentPath(number));
+        boolean torn = true;
+        CRC32 crc = new CRC32();
+        byte[] header = new byte[HEADER_SIZE];
+        ByteBuffer headerBuffer = ByteBuffer.wrap(header);
+        byte[] bytes = new byte[4096];
+
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(
+                Files.newInputStream(segmentPath(number)), 1 << 16))) {
+            while (true) {
+                input.readFully(header);
+                int checksum = headerBuffer.getInt(0);
+                byte op = header[4];
+                int keyLength = headerBuffer.getInt(5);
+                int valueLength = headerBuffer.getInt(9);
+                if (op < OP_PUT || op > OP_PUT_EXPIRING || keyLength < 0 || valueLength < 0
+                        || (long) keyLength + valueLength > MAX_RECORD_LENGTH) {
+                    // A header cut short by a crash ends the file; any other bad header is damage
+                    torn = validLength + HEADER_SIZE == size || isZeroFilled(number, validLength);
+                    break;
+                }
+                int length = keyLength + valueLength;
+                if (bytes.length < length) bytes = new byte[length];
+                input.readFully(bytes, 0, length);
+
+                crc.reset();
+                crc.update(header, 4, HEADER_SIZE - 4);
+                crc.update(bytes, 0, length);
+                if ((int) crc.getValue() != checksum) {
+                    // Only the last record of the file can be torn
+                    torn = validLength + HEADER_SIZE + length == size || isZeroFilled(number, validLength);
+                    break;
+                }
+
+                String key = new String(bytes, 0, keyLength, CommandHandler.CHARSET);
+                String value = op == OP_PUT || op == OP_PUT_EXPIRING
+                        ? new String(bytes, keyLength, valueLength, CommandHandler.CHARSET) : null;
+                handler.apply(op, key, value);
+                validLength += HEADER_SIZE + length;
+                count++;
+            }
+        } catch (EOFException e) {
+            // The end of the segment, possibly in the middle of a torn record
+        }
+        if (!torn) {
+            throw new IOException("Damaged record at offset " + validLength + " of " + segmentPath(number)
+                    + ", followed by more records; the segment must be repaired before the server starts");
+        }
+
+        // Cut off the torn record after the last intact one and continue appending there
+        if (number == segment) {
+            if (channel.size() > validLength) {
+                channel.truncate(validLength);
+            }
+            channel.position(validLength);
+        }
+        return count;
+    }
+
+    /**
+     * Checks whether a segment holds only zero bytes from an offset on, as a file extended by a
+     * crash before its data was written does.
+     * @param number Number of the segment.
+     * @param offset Offset of the first byte checked.
+     * @return True if every byte from offset on is zero.
+     * @throws IOException If the segment cannot be read.
+     */
+    private boolean isZeroFilled(long number, long offset) throws IOException {
+        try (FileChannel file = FileChannel.open(segmentPath(number), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+            file.position(offset);
+            while (file.read(buffer) > 0) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    if (buffer.get() != 0) return false;
+                }
+                buffer.clear();
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Starts a new segment. Every record appended before the call is in an older segment and
+     * on disk when it returns; every record appended after it goes to the new segment.
+     * @return Number of the new segment.
+     * @throws IOException If the new segment cannot be created.
+     */
+    public long rotate() throws IOException {
+        synchronized (writeLock) {
+            FileChannel previous = channel;
+            previous.force(false);
+            FileChannel next = open(segment + 1);
+            segment++;
+            channel = next;
+            previous.close();
+            return segment;
+        }
+    }
+
+    /**
+     * Deletes the segments that are older than the given one, once a snapshot covers them.
+     * @param firstSegment First segment that must be kept.
+     * @throws IOException If a segment cannot be deleted.
+     */
+    public void deleteSegmentsBefore(long firstSegment) throws IOException {
+        for (long number : segments()) {
+            if (number < firstSegment) {
+                Files.deleteIfExists(segmentPath(number));
+            }
+        }
+    }
+
+    /**
+     * Appends a record to the log. The record reaches the OS right away, but is only
+     * guaranteed to be on disk once sync has returned for its sequence number.
+     * @param op One of the OP_ codes.
+     * @param key The key of the operation.
+     * @param value The value of a PUT, null for a DELETE or PERSIST.
+     * @return Sequence number of the record, to be passed to sync.
+     * @throws IOException If the record cannot be written, or is longer than MAX_RECORD_LENGTH;
+     *         nothing is written then.
+     */
+    public long append(byte op, String key, String value) throws IOException {
+        if ((long) key.length() + (value == null ? 0 : value.length()) > MAX_RECORD_LENGTH) {
+            throw new IOException("Record too large for the write-ahead log");
+        }
+        ByteBuffer buffer = encode(op, key, value);
+        synchronized (writeLock) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            return ++writtenSequence;
+        }
+    }
+
+    /**
+     * Waits until the record with the given sequence number is durable, as far as the fsync
+     * policy requires. With the ALWAYS policy, one waiting thread forces the log on behalf of
+     * every record written so far, while the others wait for it instead of forcing themselves.
+     * @param sequence Sequence number returned by append.
+     * @throws IOException If the log cannot be forced.
+     */
+    public void sync(long sequence) throws IOException {
+        if (policy != FsyncPolicy.ALWAYS || sequence == 0) return;
+
+        synchronized (syncLock) {
+            while (durableSequence < sequence && syncing) {
+                try {
+                    syncLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for the write-ahead log");
+                }
+            }
+            if (durableSequence >= sequence) return;
+            syncing = true;
+        }
+        force();
+    }
+
+    /**
+     * Forces every record written so far to disk and wakes up the threads waiting for it.
+     * The caller must have set syncing.
+     * @throws IOException If the log cannot be forced.
+     */
+    private void force() throws IOException {
+        // The target is read before the channel, so all of its records are either in this
+        // channel or in an older segment, which rotate has already forced
+        long target = writtenSequence;
+        FileChannel current = channel;
+        IOException failure = null;
+        try {
+            current.force(false);
+        } catch (ClosedChannelException e) {
+            // A rotation closed the channel after forcing it
+        } catch (IOException e) {
+            failure = e;
+        }
+        synchronized (syncLock) {
+            syncing = false;
+            if (failure == null && target > durableSequence) durableSequence = target;
+            syncLock.notifyAll();
+        }
+        if (failure != null) throw failure;
+    }
+
+    /**
+     * Body of the group commit thread: forces the log at a fixed interval when it has new records.
+     * @param intervalMillis Interval between forces.
+     */
+    private void runGroupCommit(long intervalMillis) {
+        while (!closed) {
+            try {
+                Thread.sleep(intervalMillis);
+                synchronized (syncLock) {
+                    if (syncing || durableSequence >= writtenSequence) continue;
+                    syncing = true;
+                }
+                force();
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                System.err.println("Failed to force the write-ahead log: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Encodes a record into the calling thread's buffer.
+     */
+    private ByteBuffer encode(byte op, String key, String value) {
+        int keyLength = key.length();
+        int valueLength = value == null ? 0 : value.length();
+        ByteBuffer buffer = recordBuffer.get();
+        if (buffer.capacity() < HEADER_SIZE + keyLength + valueLength) {
+            buffer = ByteBuffer.allocate(HEADER_SIZE + keyLength + valueLength);
+            recordBuffer.set(buffer);
+        }
+        buffer.clear();
+        buffer.position(4);
+        buffer.put(op).putInt(keyLength).putInt(valueLength);
+        for (int i = 0; i < keyLength; i++) {
+            buffer.put((byte) key.charAt(i));
+        }
+        for (int i = 0; i < valueLength; i++) {
+            buffer.put((byte) value.charAt(i));
+        }
+
+        // The checksum covers everything after itself
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 4, buffer.position() - 4);
+        buffer.putInt(0, (int) crc.getValue());
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Forces the remaining records to disk and closes the log.
+     * @throws IOException If the log cannot be forced or closed.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (writeLock) {
+            closed = true;
+            if (policy != FsyncPolicy.OS && channel.isOpen()) {
+                channel.force(false);
+            }
+            channel.close();
+        }
+    }
+
+    /**
+     * Opens a segment for appending, creating it if needed.
+     */
+    private FileChannel open(long number) throws IOException {
+        FileChannel opened = FileChannel.open(segmentPath(number), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        opened.position(opened.size());
+        return opened;
+    }
+
+    /**
+     * @return Path of the segment file with the given number.
+     */
+    private Path segmentPath(long number) {
+        return directory.resolve(String.format("wal-%08d.log", number));
+    }
+
+    /**
+     * @return Numbers of the segment files in the directory, in ascending order.
+     */
+    private List<Long> segments() throws IOException {
+        List<Long> numbers = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.forEach(file -> {
+                String name = file.getFileName().toString();
+                if (name.matches("wal-\\d+\\.log")) {
+                    numbers.add(Long.parseLong(name.substring(4, name.length() - 4)));
+                }
+            });
+        }
+        Collections.sort(numbers);
+        return numbers;
+    }
+}
@@ -0,0 +1,81 @@
+package benchmarks;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * AtomicBenchmarks measures the atomic commands executed by the CommandHandler when several
+ * threads update the same keys: with keyCount=1 every thread increments a single hot key,
+ * and with more keys the contention spreads over the lock stripes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class AtomicBenchmarks {
+
+    @Param({"1", "1024"})
+    public int keyCount;
+
+    private Object commandHandler;
+    private String[] incrCommands;
+    private String[] appendCommands;
+
+    /**
+     * Creates a CommandHandler and the commands of every key once.
+     */
+    @Setup
+    public void setUp() throws Throwable {
+        commandHandler = Targets.NEW_COMMAND_HANDLER.invokeExact(Targets.newStore("heap"));
+        incrCommands = new String[keyCount];
+        appendCommands = new String[keyCount];
+        for (int i = 0; i < keyCount; i++) {
+            incrCommands[i] = "INCR counter" + i;
+            appendCommands[i] = "APPEND text" + i + " x";
+        }
+    }
+
+    @Benchmark
+    public String incr() throws Throwable {
+        return (String) Targets.HANDLE_REQUEST.invokeExact(commandHandler, incrCommands[randomIndex()]);
+    }
+
+    @Benchmark
+    public String putIfAbsent() throws Throwable {
+        return (String) Targets.HANDLE_REQUEST.invokeExact(commandHandler, "PUTIFABSENT counter" + randomIndex() + " 0");
+    }
+
+    /**
+     * Appends to a key, deleting it once it is long so that the copies stay small; one
+     * operation is an APPEND and, every 64th time, a DELETE.
+     */
+    @Benchmark
+    public String append() throws Throwable {
+        int index = randomIndex();
+        String length = (String) Targets.HANDLE_REQUEST.invokeExact(commandHandler, appendCommands[index]);
+        if (Integer.parseInt(length) >= 64) {
+            return (String) Targets.HANDLE_REQUEST.invokeExact(commandHandler, "DELETE text" + index);
+        }
+        return length;
+    }
+
+    private int randomIndex() {
+        return keyCount == 1 ? 0 : ThreadLocalRandom.current().nextInt(keyCount);
+    }
+}
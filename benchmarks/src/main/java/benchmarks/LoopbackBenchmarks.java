@@ -0,0 +1,185 @@
+package benchmarks;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * LoopbackBenchmarks measures end-to-end round-trips of text commands to a TCP or UDP server
+ * started in the benchmark JVM on the loopback interface. Every benchmark thread has its own
+ * connection and waits for each response before sending the next command.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoopbackBenchmarks {
+
+    /**
+     * Server is a TCP or UDP server running in the background for the whole trial.
+     */
+    @State(Scope.Benchmark)
+    public static class Server {
+
+        /**
+         * "tcp" for the thread-per-connection server, "tcp-nio" for the event loop server, or "udp".
+         */
+        @Param({"tcp", "tcp-nio", "udp"})
+        public String transport;
+
+        @Param({"100"})
+        public int valueSize;
+
+        int port;
+        String putCommand;
+
+        /**
+         * Starts the server on a free port and stores the key read by the benchmarks.
+         */
+        @Setup
+        public void start() throws Exception {
+            boolean udp = transport.equals("udp");
+            port = udp ? freeUdpPort() : freeTcpPort();
+            putCommand = "PUT bench " + "v".repeat(valueSize);
+            String[] args = transport.equals("tcp-nio")
+                    ? new String[] {String.valueOf(port), "--log-level=OFF", "--nio"}
+                    : new String[] {String.valueOf(port), "--log-level=OFF"};
+            Thread thread = new Thread(() -> {
+                try {
+                    if (udp) {
+                        Targets.UDP_SERVER_MAIN.invokeExact(args);
+                    } else {
+                        Targets.TCP_SERVER_MAIN.invokeExact(args);
+                    }
+                } catch (Throwable e) {
+                    e.printStackTrace();
+                }
+            }, transport + "-server");
+            thread.setDaemon(true);
+            thread.start();
+
+            // The first command succeeds once the server is listening
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (true) {
+                Connection connection = new Connection();
+                try {
+                    connection.open(this);
+                    connection.roundTrip(putCommand);
+                    connection.close();
+                    return;
+                } catch (IOException e) {
+                    connection.close();
+                    if (System.nanoTime() > deadline) throw e;
+                    Thread.sleep(50);
+                }
+            }
+        }
+
+        private static int freeTcpPort() throws IOException {
+            try (ServerSocket socket = new ServerSocket(0)) {
+                return socket.getLocalPort();
+            }
+        }
+
+        private static int freeUdpPort() throws IOException {
+            try (DatagramSocket socket = new DatagramSocket(0)) {
+                return socket.getLocalPort();
+            }
+        }
+    }
+
+    /**
+     * Connection is the client side of one benchmark thread.
+     */
+    @State(Scope.Thread)
+    public static class Connection {
+        private Socket socket;
+        private BufferedWriter writer;
+        private BufferedReader reader;
+        private DatagramSocket datagramSocket;
+        private final byte[] buffer = new byte[65507];
+        private DatagramPacket received;
+
+        @Setup
+        public void open(Server server) throws IOException {
+            InetAddress loopback = InetAddress.getLoopbackAddress();
+            if (server.transport.equals("udp")) {
+                datagramSocket = new DatagramSocket();
+                datagramSocket.connect(loopback, server.port);
+                datagramSocket.setSoTimeout(1000);
+                received = new DatagramPacket(buffer, buffer.length);
+            } else {
+                socket = new Socket(loopback, server.port);
+                socket.setTcpNoDelay(true);
+                socket.setSoTimeout(5000);
+                writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.ISO_8859_1));
+                reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.ISO_8859_1));
+            }
+        }
+
+        /**
+         * Sends a command and waits for its response.
+         * @throws SocketTimeoutException If a UDP datagram or its response was lost.
+         */
+        String roundTrip(String command) throws IOException {
+            if (datagramSocket != null) {
+                byte[] bytes = command.getBytes(StandardCharsets.ISO_8859_1);
+                datagramSocket.send(new DatagramPacket(bytes, bytes.length));
+                received.setLength(buffer.length);
+                datagramSocket.receive(received);
+                return new String(buffer, 0, received.getLength(), StandardCharsets.ISO_8859_1);
+            }
+            writer.write(command);
+            writer.write('\n');
+            writer.flush();
+            String response = reader.readLine();
+            if (response == null) throw new IOException("Connection closed by the server");
+            return response;
+        }
+
+        @TearDown(Level.Trial)
+        public void close() {
+            try {
+                if (socket != null) socket.close();
+            } catch (IOException ignored) {
+                // Nothing left to measure
+            }
+            if (datagramSocket != null) datagramSocket.close();
+        }
+    }
+
+    @Benchmark
+    public String get(Connection connection) throws IOException {
+        return connection.roundTrip("GET bench");
+    }
+
+    @Benchmark
+    public String put(Server server, Connection connection) throws IOException {
+        return connection.roundTrip(server.putCommand);
+    }
+}
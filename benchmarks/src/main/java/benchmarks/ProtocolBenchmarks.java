@@ -0,0 +1,114 @@
+package benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * ProtocolBenchmarks measures the per-request work of the servers outside of the network:
+ * parsing and executing text commands in the CommandHandler, and decoding, executing and
+ * encoding binary protocol frames.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProtocolBenchmarks {
+
+    @Param({"16", "1024"})
+    public int valueSize;
+
+    private Object commandHandler;
+    private String getCommand;
+    private String putCommand;
+    private String mgetCommand;
+
+    private ByteBuffer getFrame;
+    private ByteBuffer putFrame;
+    private ByteBuffer out;
+    private Object request;
+    private Object response;
+    private String value;
+
+    /**
+     * Creates a CommandHandler with a few keys, and encodes the binary requests once.
+     */
+    @Setup
+    public void setUp() throws Throwable {
+        commandHandler = Targets.NEW_COMMAND_HANDLER.invokeExact(Targets.newStore("heap"));
+        value = "v".repeat(valueSize);
+        for (int i = 0; i < 10; i++) {
+            String ignored = (String) Targets.HANDLE_REQUEST.invokeExact(commandHandler, "PUT key" + i + " " + value);
+        }
+        getCommand = "GET key1";
+        putCommand = "PUT key1 " + value;
+        mgetCommand = "MGET key1 key2 key3 key4";
+
+        getFrame = ByteBuffer.allocate(64);
+        // Opcodes 1 and 2 are BinaryProtocol.OP_GET and OP_PUT
+        Targets.ENCODE_REQUEST.invokeExact(getFrame, (byte) 1, (byte) 0, "key1", (String) null);
+        getFrame.flip();
+        putFrame = ByteBuffer.allocate(64 + valueSize);
+        Targets.ENCODE_REQUEST.invokeExact(putFrame, (byte) 2, (byte) 0, "key1", value);
+        putFrame.flip();
+
+        out = ByteBuffer.allocateDirect(64 + valueSize);
+        request = Targets.NEW_REQUEST.invokeExact();
+        response = Targets.NEW_RESPONSE.invokeExact();
+    }
+
+    @Benchmark
+    public String textGet() throws Throwable {
+        return (String) Targets.HANDLE_REQUEST.invokeExact(commandHandler, getCommand);
+    }
+
+    @Benchmark
+    public String textPut() throws Throwable {
+        return (String) Targets.HANDLE_REQUEST.invokeExact(commandHandler, putCommand);
+    }
+
+    @Benchmark
+    public String textMget() throws Throwable {
+        return (String) Targets.HANDLE_REQUEST.invokeExact(commandHandler, mgetCommand);
+    }
+
+    @Benchmark
+    public boolean binaryDecodePut() throws Throwable {
+        putFrame.rewind();
+        return (boolean) Targets.DECODE.invokeExact(putFrame, request);
+    }
+
+    @Benchmark
+    public ByteBuffer binaryEncodeResponse() throws Throwable {
+        out.clear();
+        Targets.RESPONSE_SET.invokeExact(response, (byte) 0, value);
+        Targets.ENCODE.invokeExact(out, response);
+        return out;
+    }
+
+    /**
+     * Decodes a binary GET, executes it and encodes its response, as a server does per request.
+     */
+    @Benchmark
+    public ByteBuffer binaryGet() throws Throwable {
+        getFrame.rewind();
+        out.clear();
+        boolean decoded = (boolean) Targets.DECODE.invokeExact(getFrame, request);
+        Targets.EXECUTE.invokeExact(request, commandHandler, response);
+        Targets.ENCODE.invokeExact(out, response);
+        return out;
+    }
+}
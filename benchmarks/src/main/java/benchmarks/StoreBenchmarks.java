@@ -0,0 +1,83 @@
+package benchmarks;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * StoreBenchmarks measures the GET, PUT and DELETE throughput of the storage engines at
+ * different key counts. Keys are picked uniformly at random from a pre-populated key space;
+ * run with -t to vary the number of threads sharing the store.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class StoreBenchmarks {
+
+    @Param({"1000", "100000", "1000000"})
+    public int keyCount;
+
+    @Param({"heap", "offheap"})
+    public String engine;
+
+    @Param({"100"})
+    public int valueSize;
+
+    private Object store;
+    private String[] keys;
+    private String value;
+
+    /**
+     * Creates the store and writes every key once, so that GETs hit.
+     */
+    @Setup
+    public void setUp() throws Throwable {
+        store = Targets.newStore(engine);
+        keys = new String[keyCount];
+        value = "v".repeat(valueSize);
+        for (int i = 0; i < keyCount; i++) {
+            keys[i] = "key" + i;
+            String previous = (String) Targets.STORE_PUT.invokeExact(store, keys[i], value);
+        }
+    }
+
+    @Benchmark
+    public String get() throws Throwable {
+        return (String) Targets.STORE_GET.invokeExact(store, randomKey());
+    }
+
+    @Benchmark
+    public String put() throws Throwable {
+        return (String) Targets.STORE_PUT.invokeExact(store, randomKey(), value);
+    }
+
+    /**
+     * Deletes a key and writes it back, so that the key space stays populated; one
+     * operation of this benchmark is a DELETE and a PUT.
+     */
+    @Benchmark
+    public String deleteAndReinsert() throws Throwable {
+        String key = randomKey();
+        String previous = (String) Targets.STORE_REMOVE.invokeExact(store, key);
+        String reinserted = previous != null ? previous : value;
+        return (String) Targets.STORE_PUT.invokeExact(store, key, reinserted);
+    }
+
+    private String randomKey() {
+        return keys[ThreadLocalRandom.current().nextInt(keys.length)];
+    }
+}
@@ -0,0 +1,141 @@
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+
+/**
+ * Targets gives the benchmarks access to the classes of the server, which live in the unnamed
+ * package: JMH requires benchmarks in a named package, and Java code in a named package cannot
+ * refer to classes in the unnamed one. Every target is a static final MethodHandle, which the
+ * JIT compiler treats as a constant and inlines like a direct call, so the indirection does not
+ * show up in the measurements. Instances of server classes are passed around as Object.
+ */
+final class Targets {
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.publicLookup();
+
+    /** {@code new ConcurrentKeyValueStore()} or {@code new OffHeapKeyValueStore()}, selected by name. */
+    static final MethodHandle NEW_HEAP_STORE = constructor("ConcurrentKeyValueStore");
+    static final MethodHandle NEW_OFFHEAP_STORE = constructor("OffHeapKeyValueStore");
+
+    /** {@code String KeyValueStore.get(String key)} */
+    static final MethodHandle STORE_GET = virtual("KeyValueStore", "get", String.class, String.class);
+
+    /** {@code String KeyValueStore.put(String key, String value)} */
+    static final MethodHandle STORE_PUT = virtual("KeyValueStore", "put", String.class, String.class, String.class);
+
+    /** {@code String KeyValueStore.remove(String key)} */
+    static final MethodHandle STORE_REMOVE = virtual("KeyValueStore", "remove", String.class, String.class);
+
+    /** {@code new CommandHandler(KeyValueStore store)} */
+    static final MethodHandle NEW_COMMAND_HANDLER = constructor("CommandHandler", "KeyValueStore");
+
+    /** {@code String CommandHandler.handleRequest(String text)} */
+    static final MethodHandle HANDLE_REQUEST = virtual("CommandHandler", "handleRequest", String.class, String.class);
+
+    /** {@code new BinaryProtocol.Request()} and {@code new BinaryProtocol.Response()} */
+    static final MethodHandle NEW_REQUEST = constructor("BinaryProtocol$Request");
+    static final MethodHandle NEW_RESPONSE = constructor("BinaryProtocol$Response");
+
+    /** {@code boolean BinaryProtocol.decode(ByteBuffer buffer, Request request)} */
+    static final MethodHandle DECODE = statik("BinaryProtocol", "decode", boolean.class,
+            ByteBuffer.class, type("BinaryProtocol$Request"));
+
+    /** {@code void BinaryProtocol.execute(Request request, CommandHandler handler, Response response)} */
+    static final MethodHandle EXECUTE = statik("BinaryProtocol", "execute", void.class,
+            type("BinaryProtocol$Request"), type("CommandHandler"), type("BinaryProtocol$Response"));
+
+    /** {@code void BinaryProtocol.encode(ByteBuffer buffer, Response response)} */
+    static final MethodHandle ENCODE = statik("BinaryProtocol", "encode", void.class,
+            ByteBuffer.class, type("BinaryProtocol$Response"));
+
+    /** {@code void BinaryProtocol.encodeRequest(ByteBuffer buffer, byte opcode, byte flags, String key, String value)} */
+    static final MethodHandle ENCODE_REQUEST = statik("BinaryProtocol", "encodeRequest", void.class,
+            ByteBuffer.class, byte.class, byte.class, String.class, String.class);
+
+    /** {@code void BinaryProtocol.Response.set(byte status, String value)} */
+    static final MethodHandle RESPONSE_SET = virtual("BinaryProtocol$Response", "set", void.class,
+            byte.class, String.class);
+
+    /** {@code void TCPServer.main(String[] args)} and {@code void UDPServer.main(String[] args)} */
+    static final MethodHandle TCP_SERVER_MAIN = statik("TCPServer", "main", void.class, String[].class);
+    static final MethodHandle UDP_SERVER_MAIN = statik("UDPServer", "main", void.class, String[].class);
+
+    private Targets() {
+    }
+
+    /**
+     * Creates a storage engine.
+     * @param engine "heap" or "offheap", as for the --engine server flag.
+     */
+    static Object newStore(String engine) throws Throwable {
+        switch (engine) {
+            case "heap":
+                return NEW_HEAP_STORE.invokeExact();
+            case "offheap":
+                return NEW_OFFHEAP_STORE.invokeExact();
+            default:
+                throw new IllegalArgumentException("Unknown engine: " + engine);
+        }
+    }
+
+    /**
+     * @return The server class with the given binary name.
+     */
+    private static Class<?> type(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /**
+     * @return The given types, with server classes replaced by Object.
+     */
+    private static MethodType erase(MethodType type) {
+        MethodType erased = type;
+        for (int i = 0; i < type.parameterCount(); i++) {
+            if (type.parameterType(i).getClassLoader() != null) {
+                erased = erased.changeParameterType(i, Object.class);
+            }
+        }
+        if (type.returnType().getClassLoader() != null) {
+            erased = erased.changeReturnType(Object.class);
+        }
+        return erased;
+    }
+
+    private static MethodHandle constructor(String owner, String... parameters) {
+        Class<?>[] types = new Class<?>[parameters.length];
+        for (int i = 0; i < parameters.length; i++) {
+            types[i] = type(parameters[i]);
+        }
+        try {
+            MethodHandle handle = LOOKUP.findConstructor(type(owner), MethodType.methodType(void.class, types));
+            return handle.asType(erase(handle.type()));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static MethodHandle virtual(String owner, String name, Class<?> returnType, Class<?>... parameters) {
+        try {
+            MethodHandle handle = LOOKUP.findVirtual(type(owner), name, MethodType.methodType(returnType, parameters));
+            return handle.asType(erase(handle.type()));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static MethodHandle statik(String owner, String name, Class<?> returnType, Class<?>... parameters) {
+        try {
+            MethodHandle handle = LOOKUP.findStatic(type(owner), name, MethodType.methodType(returnType, parameters));
+            return handle.asType(erase(handle.type()));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+}
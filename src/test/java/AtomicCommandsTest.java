@@ -0,0 +1,117 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * The atomic commands INCR, DECR, PUTIFABSENT, APPEND and CAS, and their limits.
+ */
+public class AtomicCommandsTest {
+
+    private final CommandHandler commandHandler = new CommandHandler();
+
+    @AfterEach
+    public void close() {
+        commandHandler.close();
+    }
+
+    @Test
+    public void incrementAndDecrement() {
+        assertEquals("1", request("INCR n"));
+        assertEquals("11", request("INCR n 10"));
+        assertEquals("8", request("DECR n 3"));
+        assertEquals("-2", request("DECR fresh 2"));
+        assertEquals("-12", request("INCR fresh -10"));
+        assertTrue(request("INCR n x").startsWith("Sample Usage: INCR"));
+        assertTrue(request("DECR").startsWith("Sample Usage: DECR"));
+    }
+
+    @Test
+    public void incrementRefusesNonIntegersAndOverflows() {
+        request("PUT text abc");
+        assertEquals("Value is not an integer.", request("INCR text"));
+        assertEquals("abc", request("GET text"));
+
+        request("PUT big " + Long.MAX_VALUE);
+        assertEquals("Value would overflow.", request("INCR big"));
+        assertEquals(String.valueOf(Long.MAX_VALUE), request("GET big"));
+        request("PUT small " + Long.MIN_VALUE);
+        assertEquals("Value would overflow.", request("DECR small"));
+        assertEquals("Value would overflow.", request("DECR zero " + Long.MIN_VALUE));
+    }
+
+    @Test
+    public void concurrentIncrementsAreNotLost() throws InterruptedException {
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 1000; i++) {
+                    commandHandler.handleRequest("INCR hot");
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals("8000", request("GET hot"));
+    }
+
+    @Test
+    public void putIfAbsent() {
+        assertEquals("Operation successful.", request("PUTIFABSENT k first value"));
+        assertEquals("Key exists.", request("PUTIFABSENT k second"));
+        assertEquals("first value", request("GET k"));
+        assertTrue(request("PUTIFABSENT k").startsWith("Sample Usage: PUTIFABSENT"));
+    }
+
+    @Test
+    public void appendReturnsTheNewLength() {
+        assertEquals("5", request("APPEND k hello"));
+        assertEquals("11", request("APPEND k  world"));
+        assertEquals("hello world", request("GET k"));
+    }
+
+    @Test
+    public void compareAndSet() {
+        assertEquals("No record found.", request("CAS k a b"));
+        request("PUT k a");
+        assertEquals("Value has changed.", request("CAS k b c"));
+        assertEquals("Operation successful.", request("CAS k a new value"));
+        assertEquals("new value", request("GET k"));
+        assertTrue(request("CAS k a").startsWith("Sample Usage: CAS"));
+    }
+
+    @Test
+    public void valuesCannotGrowPastTheLimit() {
+        String largest = "x".repeat(BinaryProtocol.MAX_VALUE_LENGTH);
+        assertEquals("Value too large.", request("PUTIFABSENT k " + largest + "x"));
+        assertEquals("Value too large.", request("CAS k a " + largest + "x"));
+        assertEquals("Value too large.", request("PUT k " + largest + "x"));
+
+        assertEquals(String.valueOf(BinaryProtocol.MAX_VALUE_LENGTH), request("APPEND k " + largest));
+        assertEquals("Value too large.", request("APPEND k x"));
+        assertEquals(BinaryProtocol.MAX_VALUE_LENGTH, request("GET k").length());
+    }
+
+    @Test
+    public void updatesKeepTheExpiry() {
+        request("PUT n 1 EX 100");
+        request("INCR n");
+        assertEquals("100", request("TTL n"));
+        request("APPEND n 0");
+        assertEquals("100", request("TTL n"));
+        request("CAS n 20 30");
+        assertEquals("30", request("GET n"));
+        assertEquals("100", request("TTL n"));
+    }
+
+    private String request(String text) {
+        return commandHandler.handleRequest(text);
+    }
+}
@@ -0,0 +1,161 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Decoding and execution of malformed binary request frames, and of the operations
+ * reserved to the nodes of a cluster.
+ */
+public class BinaryProtocolTest {
+
+    private final CommandHandler commandHandler = new CommandHandler();
+    private final BinaryProtocol.Request request = new BinaryProtocol.Request();
+    private final BinaryProtocol.Response response = new BinaryProtocol.Response();
+
+    /**
+     * A node of a cluster whose other node, never started, has the loopback address.
+     */
+    private static CommandHandler node;
+
+    @BeforeAll
+    public static void startNode() throws IOException {
+        AsyncLogger log = new AsyncLogger("cluster.log", AsyncLogger.Level.OFF, 1, 16, false);
+        node = CommandHandler.fromOptions(new ServerOptions(new String[] {
+                "1", "--cluster=127.0.0.1:1,127.0.0.1:2", "--replicas=1"}), log);
+    }
+
+    @AfterAll
+    public static void stopNode() {
+        node.close();
+    }
+
+    @AfterEach
+    public void close() {
+        commandHandler.close();
+    }
+
+    @Test
+    public void wellFormedFramesRoundTrip() {
+        ByteBuffer buffer = frame(BinaryProtocol.OP_PUT, 0, "key", "a value\nwith spaces");
+        assertTrue(BinaryProtocol.decode(buffer, request));
+        assertFalse(buffer.hasRemaining());
+        BinaryProtocol.execute(request, commandHandler, response);
+        assertEquals(BinaryProtocol.STATUS_OK, response.status);
+
+        assertTrue(BinaryProtocol.decode(frame(BinaryProtocol.OP_GET, 0, "key", null), request));
+        BinaryProtocol.execute(request, commandHandler, response);
+        assertEquals(BinaryProtocol.STATUS_OK, response.status);
+        assertEquals("a value\nwith spaces", response.value);
+    }
+
+    @Test
+    public void incompleteFrameLeavesTheBufferUntouched() {
+        ByteBuffer whole = frame(BinaryProtocol.OP_PUT, 0, "key", "value");
+        for (int length = 0; length < whole.limit(); length++) {
+            ByteBuffer part = ByteBuffer.wrap(whole.array(), 0, length);
+            assertFalse(BinaryProtocol.decode(part, request));
+            assertEquals(0, part.position());
+        }
+    }
+
+    @Test
+    public void unknownOpcodeIsRejected() {
+        assertThrows(IllegalArgumentException.class, () -> BinaryProtocol.decode(frame((byte) 0, 0, "k", null), request));
+        assertThrows(IllegalArgumentException.class, () -> BinaryProtocol.decode(frame((byte) 7, 0, "k", null), request));
+        assertThrows(IllegalArgumentException.class, () -> BinaryProtocol.decode(frame((byte) -1, 0, "k", null), request));
+    }
+
+    @Test
+    public void invalidValueLengthIsRejected() {
+        ByteBuffer negative = frame(BinaryProtocol.OP_PUT, 0, "k", "v");
+        negative.putInt(4, -1);
+        assertThrows(IllegalArgumentException.class, () -> BinaryProtocol.decode(negative, request));
+
+        ByteBuffer oversized = frame(BinaryProtocol.OP_PUT, 0, "k", "v");
+        oversized.putInt(4, BinaryProtocol.MAX_VALUE_LENGTH + 1);
+        assertThrows(IllegalArgumentException.class, () -> BinaryProtocol.decode(oversized, request));
+    }
+
+    @Test
+    public void nodeOperationsAreRefusedOutsideOfACluster() {
+        assertTrue(BinaryProtocol.decode(frame(BinaryProtocol.OP_MIGRATE, 0, "key", "0 value"), request));
+        BinaryProtocol.execute(request, commandHandler, response, InetAddress.getLoopbackAddress());
+        assertEquals(BinaryProtocol.STATUS_ERROR, response.status);
+
+        assertTrue(BinaryProtocol.decode(frame(BinaryProtocol.OP_REPLICATE, WriteAheadLog.OP_PUT, "key", "value"), request));
+        BinaryProtocol.execute(request, commandHandler, response, InetAddress.getLoopbackAddress());
+        assertEquals(BinaryProtocol.STATUS_ERROR, response.status);
+        assertNull(commandHandler.lookup("key"));
+    }
+
+    @Test
+    public void nodeOperationsAreOnlyAcceptedFromOtherNodes() throws IOException {
+        InetAddress stranger = InetAddress.getByAddress(new byte[] {10, 1, 2, 3});
+        assertTrue(BinaryProtocol.decode(frame(BinaryProtocol.OP_MIGRATE, 0, "moved", "0 value"), request));
+        BinaryProtocol.execute(request, node, response, stranger);
+        assertEquals(BinaryProtocol.STATUS_ERROR, response.status);
+        BinaryProtocol.execute(request, node, response);
+        assertEquals(BinaryProtocol.STATUS_ERROR, response.status);
+        assertNull(node.lookup("moved"));
+
+        BinaryProtocol.execute(request, node, response, InetAddress.getLoopbackAddress());
+        assertEquals(BinaryProtocol.STATUS_OK, response.status);
+        assertEquals("value", node.lookup("moved"));
+    }
+
+    @Test
+    public void migrateWithoutDeadlineAnswersAnError() {
+        for (String value : new String[] {"", "value", " value", "12x4 value", "-5 value", "99999999999999999999 value"}) {
+            assertTrue(BinaryProtocol.decode(frame(BinaryProtocol.OP_MIGRATE, 0, "key", value), request));
+            BinaryProtocol.execute(request, node, response, InetAddress.getLoopbackAddress());
+            assertEquals(BinaryProtocol.STATUS_ERROR, response.status, "value \"" + value + "\"");
+        }
+        assertNull(node.lookup("key"));
+    }
+
+    @Test
+    public void replicatedExpiringPutWithoutDeadlineAnswersAnError() {
+        for (String value : new String[] {"", "value", "abc value"}) {
+            assertTrue(BinaryProtocol.decode(
+                    frame(BinaryProtocol.OP_REPLICATE, WriteAheadLog.OP_PUT_EXPIRING, "key", value), request));
+            BinaryProtocol.execute(request, node, response, InetAddress.getLoopbackAddress());
+            assertEquals(BinaryProtocol.STATUS_ERROR, response.status, "value \"" + value + "\"");
+        }
+        assertNull(node.lookup("key"));
+    }
+
+    @Test
+    public void replicatedUnknownOperationAnswersAnError() {
+        assertTrue(BinaryProtocol.decode(frame(BinaryProtocol.OP_REPLICATE, 42, "key", "value"), request));
+        BinaryProtocol.execute(request, node, response, InetAddress.getLoopbackAddress());
+        assertEquals(BinaryProtocol.STATUS_ERROR, response.status);
+    }
+
+    @Test
+    public void deadlineIsParsedStrictly() {
+        assertEquals(1234L, CommandHandler.parseDeadline("1234 a value"));
+        assertEquals("a value", CommandHandler.valueAfterDeadline("1234 a value"));
+        assertEquals(0L, CommandHandler.parseDeadline("0 "));
+        assertThrows(IllegalArgumentException.class, () -> CommandHandler.parseDeadline(null));
+        assertThrows(IllegalArgumentException.class, () -> CommandHandler.parseDeadline("1234"));
+        assertThrows(IllegalArgumentException.class, () -> CommandHandler.parseDeadline("+1 value"));
+    }
+
+    private static ByteBuffer frame(byte opcode, int flags, String key, String value) {
+        ByteBuffer buffer = ByteBuffer.allocate(BinaryProtocol.REQUEST_HEADER_SIZE + key.length()
+                + (value == null ? 0 : value.length()));
+        BinaryProtocol.encodeRequest(buffer, opcode, (byte) flags, key, value);
+        return buffer.flip();
+    }
+}
@@ -0,0 +1,88 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Sharing of the workers of the CommandExecutor between the lanes of the transports.
+ */
+public class CommandExecutorTest {
+
+    private final AsyncLogger log = new AsyncLogger("executor.log", AsyncLogger.Level.OFF, 1, 16, false);
+
+    @Test
+    public void lanesTakeTurns() throws InterruptedException {
+        CommandExecutor executor = new CommandExecutor(1, log);
+        CommandExecutor.Lane flooded = executor.addLane(16);
+        CommandExecutor.Lane quiet = executor.addLane(16);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(7);
+        List<String> order = new CopyOnWriteArrayList<>();
+        // The only worker is held until both lanes have their commands
+        flooded.put(() -> await(release));
+        for (int i = 1; i <= 5; i++) {
+            flooded.put(record(order, "a" + i, done));
+        }
+        quiet.put(record(order, "b1", done));
+        quiet.put(record(order, "b2", done));
+        executor.start();
+        release.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(List.of("b1", "a1", "b2", "a2", "a3", "a4", "a5"), order);
+    }
+
+    @Test
+    public void fullLaneRefusesOffers() throws InterruptedException {
+        CommandExecutor executor = new CommandExecutor(1, log);
+        CommandExecutor.Lane lane = executor.addLane(2);
+        CountDownLatch done = new CountDownLatch(2);
+        List<String> order = new CopyOnWriteArrayList<>();
+        assertTrue(lane.offer(record(order, "1", done)));
+        assertTrue(lane.offer(record(order, "2", done)));
+        assertFalse(lane.offer(record(order, "3", done)));
+        executor.start();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(List.of("1", "2"), order);
+    }
+
+    @Test
+    public void failingCommandDoesNotStopTheWorker() throws InterruptedException {
+        CommandExecutor executor = new CommandExecutor(1, log);
+        CommandExecutor.Lane lane = executor.addLane(4);
+        CountDownLatch done = new CountDownLatch(1);
+        executor.start();
+        lane.put(() -> {
+            throw new IllegalStateException("failed");
+        });
+        lane.put(done::countDown);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void invalidSizesAreRejected() {
+        assertThrows(IllegalArgumentException.class, () -> new CommandExecutor(0, log));
+        assertThrows(IllegalArgumentException.class, () -> new CommandExecutor(1, log).addLane(0));
+    }
+
+    private static Runnable record(List<String> order, String name, CountDownLatch done) {
+        return () -> {
+            order.add(name);
+            done.countDown();
+        };
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
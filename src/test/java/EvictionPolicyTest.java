@@ -0,0 +1,154 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Victims chosen by the eviction policies, and the budget of the BoundedKeyValueStore.
+ */
+public class EvictionPolicyTest {
+
+    @Test
+    public void lruEvictsTheLeastRecentlyUsedKey() {
+        EvictionPolicy policy = EvictionPolicy.create("lru");
+        insert(policy, "a", "b", "c", "d");
+        policy.onAccess("a");
+        policy.onRemove("c");
+        policy.onAccess("missing");
+        assertEquals(List.of("b", "d", "a"), evictAll(policy));
+    }
+
+    @Test
+    public void lfuEvictsTheLeastFrequentlyUsedKey() {
+        EvictionPolicy policy = EvictionPolicy.create("lfu");
+        insert(policy, "a", "b", "c", "d");
+        policy.onAccess("a");
+        policy.onAccess("a");
+        policy.onAccess("c");
+        policy.onAccess("d");
+        policy.onRemove("b");
+        // Among keys used as often, the least recently used one goes first
+        assertEquals(List.of("c", "d", "a"), evictAll(policy));
+    }
+
+    @Test
+    public void everyPolicyEvictsEveryKeyOnce() {
+        for (String name : new String[] {"lru", "lfu", "tinylfu"}) {
+            EvictionPolicy policy = EvictionPolicy.create(name);
+            Set<String> expected = new HashSet<>();
+            for (int i = 0; i < 1000; i++) {
+                policy.onInsert("k" + i);
+                expected.add("k" + i);
+                if (i % 3 == 0) policy.onAccess("k" + (i / 2));
+                if (i % 7 == 0) {
+                    policy.onRemove("k" + (i / 4));
+                    expected.remove("k" + (i / 4));
+                }
+            }
+            List<String> evicted = evictAll(policy);
+            assertEquals(expected, new HashSet<>(evicted), name);
+            assertEquals(expected.size(), evicted.size(), name);
+        }
+    }
+
+    @Test
+    public void tinyLfuKeepsFrequentKeysThroughAScan() {
+        EvictionPolicy policy = EvictionPolicy.create("tinylfu");
+        int capacity = 200;
+        Set<String> cached = new HashSet<>();
+        // The sketch starts over whenever it grows, so the cache is filled first
+        for (int i = 0; i < capacity; i++) {
+            access(policy, cached, "cold" + i, capacity);
+        }
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < capacity / 2; i++) {
+                access(policy, cached, "hot" + i, capacity);
+            }
+        }
+        // A scan of keys used once each
+        for (int i = 0; i < 10 * capacity; i++) {
+            access(policy, cached, "scan" + i, capacity);
+        }
+        long hot = cached.stream().filter(key -> key.startsWith("hot")).count();
+        assertTrue(hot >= capacity / 2 * 9 / 10, hot + " hot keys left");
+    }
+
+    @Test
+    public void lruLosesFrequentKeysToAScan() {
+        EvictionPolicy policy = EvictionPolicy.create("lru");
+        int capacity = 200;
+        Set<String> cached = new HashSet<>();
+        for (int i = 0; i < capacity / 2; i++) {
+            access(policy, cached, "hot" + i, capacity);
+        }
+        for (int i = 0; i < 10 * capacity; i++) {
+            access(policy, cached, "scan" + i, capacity);
+        }
+        assertTrue(cached.stream().noneMatch(key -> key.startsWith("hot")));
+    }
+
+    @Test
+    public void unknownPolicyIsRejected() {
+        assertThrows(IllegalArgumentException.class, () -> EvictionPolicy.create("fifo"));
+    }
+
+    @Test
+    public void boundedStoreStaysWithinItsBudget() {
+        List<String> evicted = new ArrayList<>();
+        BoundedKeyValueStore store = new BoundedKeyValueStore(new ConcurrentKeyValueStore(),
+                EvictionPolicy.create("lru"), 0, 100);
+        store.setEvictionListener(evicted::add);
+        for (int i = 0; i < 150; i++) {
+            store.put("k" + i, "v");
+        }
+        assertEquals(100, store.size());
+        assertEquals(50, store.evictions());
+        assertEquals(50, evicted.size());
+        assertNull(store.get("k0"));
+        assertEquals("v", store.get("k149"));
+
+        BoundedKeyValueStore bytes = new BoundedKeyValueStore(new ConcurrentKeyValueStore(),
+                EvictionPolicy.create("lfu"), 1000, 0);
+        for (int i = 0; i < 100; i++) {
+            bytes.put("k" + i, "x".repeat(40));
+        }
+        assertTrue(bytes.bytes() <= 1000, bytes.bytes() + " bytes");
+    }
+
+    private static void insert(EvictionPolicy policy, String... keys) {
+        for (String key : keys) {
+            policy.onInsert(key);
+        }
+    }
+
+    private static List<String> evictAll(EvictionPolicy policy) {
+        List<String> evicted = new ArrayList<>();
+        String key;
+        while ((key = policy.evict()) != null) {
+            evicted.add(key);
+        }
+        return evicted;
+    }
+
+    /**
+     * Uses a key of a cache holding at most capacity keys, evicting as the store would.
+     */
+    private static void access(EvictionPolicy policy, Set<String> cached, String key, int capacity) {
+        if (cached.contains(key)) {
+            policy.onAccess(key);
+            return;
+        }
+        policy.onInsert(key);
+        cached.add(key);
+        while (cached.size() > capacity) {
+            cached.remove(policy.evict());
+        }
+    }
+}
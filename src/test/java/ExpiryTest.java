@@ -0,0 +1,57 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Time to live of the keys: the EX option, TTL and PERSIST, and expiry on read and in the
+ * background.
+ */
+public class ExpiryTest {
+
+    private final ConcurrentKeyValueStore store = new ConcurrentKeyValueStore();
+    private final CommandHandler commandHandler = new CommandHandler(store);
+
+    @AfterEach
+    public void close() {
+        commandHandler.close();
+    }
+
+    @Test
+    public void ttlAndPersist() {
+        assertEquals("Operation successful.", commandHandler.handleRequest("PUT k v EX 100"));
+        assertEquals("100", commandHandler.handleRequest("TTL k"));
+        assertEquals("v", commandHandler.handleRequest("GET k"));
+        assertEquals("Operation successful.", commandHandler.handleRequest("PERSIST k"));
+        assertEquals("No expiry.", commandHandler.handleRequest("TTL k"));
+        assertEquals("No expiry.", commandHandler.handleRequest("PERSIST k"));
+        assertEquals("No record found.", commandHandler.handleRequest("TTL missing"));
+        assertEquals("Invalid expire time.", commandHandler.handleRequest("PUT k v EX 0"));
+
+        // A PUT without EX drops the expiry of the key
+        commandHandler.handleRequest("PUT k v EX 100");
+        commandHandler.handleRequest("PUT k w");
+        assertEquals("No expiry.", commandHandler.handleRequest("TTL k"));
+    }
+
+    @Test
+    public void expiredKeyIsNotReadBeforeTheBackgroundExpiry() {
+        commandHandler.store("k", "v", System.currentTimeMillis() - 1);
+        assertEquals("v", store.get("k"));
+        assertNull(commandHandler.lookup("k"));
+        assertNull(store.get("k"));
+    }
+
+    @Test
+    public void expiredKeyIsRemovedInTheBackground() throws InterruptedException {
+        commandHandler.store("k", "v", System.currentTimeMillis() + 50);
+        commandHandler.store("kept", "v", System.currentTimeMillis() + 60_000);
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (store.get("k") != null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertNull(store.get("k"));
+        assertEquals("v", store.get("kept"));
+    }
+}
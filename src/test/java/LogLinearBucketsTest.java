@@ -0,0 +1,49 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Bucket mapping shared by the histograms of the metrics and of the load generator.
+ */
+public class LogLinearBucketsTest {
+
+    @Test
+    public void smallValuesAreExact() {
+        LogLinearBuckets buckets = new LogLinearBuckets(4);
+        for (int value = 0; value < 16; value++) {
+            assertEquals(value, buckets.index(value));
+            assertEquals(value, buckets.highestValue(value));
+        }
+    }
+
+    @Test
+    public void everyValueFallsInItsBucketWithinThePrecision() {
+        for (int bits : new int[] {4, 7}) {
+            LogLinearBuckets buckets = new LogLinearBuckets(bits);
+            long[] values = {0, 1, 15, 16, 17, 127, 128, 129, 1000, 123_456_789, 1L << 40, Long.MAX_VALUE};
+            for (long value : values) {
+                int index = buckets.index(value);
+                long highest = buckets.highestValue(index);
+                long lowest = index == 0 ? 0 : buckets.highestValue(index - 1) + 1;
+                assertTrue(lowest <= value && value <= highest, "value " + value + " with " + bits + " bits");
+                assertTrue(highest - lowest <= highest >> (bits - 1), "bucket width of " + value);
+            }
+            assertEquals(buckets.bucketCount(Long.MAX_VALUE) - 1, buckets.index(Long.MAX_VALUE));
+        }
+    }
+
+    @Test
+    public void percentileIsTheTopOfItsBucket() {
+        LogLinearBuckets buckets = new LogLinearBuckets(7);
+        long[] counts = new long[buckets.bucketCount(1_000_000)];
+        for (long value = 1; value <= 100; value++) {
+            counts[buckets.index(value * 1000)]++;
+        }
+        assertEquals(0, buckets.percentile(new long[counts.length], 0, 50));
+        long p50 = buckets.percentile(counts, 100, 50);
+        assertEquals(buckets.highestValue(buckets.index(50_000)), p50);
+        long p100 = buckets.percentile(counts, 100, 100);
+        assertEquals(buckets.highestValue(buckets.index(100_000)), p100);
+    }
+}
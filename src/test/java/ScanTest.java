@@ -0,0 +1,144 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Paging of SCAN and RANGE over the ordered index with their cursors.
+ */
+public class ScanTest {
+
+    private final CommandHandler commandHandler =
+            new CommandHandler(new OrderedKeyValueStore(new ConcurrentKeyValueStore()));
+
+    @AfterEach
+    public void close() {
+        commandHandler.close();
+    }
+
+    @Test
+    public void scanListsEveryKeyOnceInOrder() {
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 250; i++) {
+            String key = String.format("key:%03d", i);
+            commandHandler.store(key, "v" + i);
+            expected.add(key + "=v" + i);
+        }
+        List<Integer> pageSizes = new ArrayList<>();
+        assertEquals(expected, listAll("SCAN %s LIMIT 100", pageSizes));
+        assertEquals(List.of(100, 100, 50), pageSizes);
+    }
+
+    @Test
+    public void scanFiltersByPrefix() {
+        for (String key : new String[] {"a", "user", "user:1", "user:2", "users", "uses", "v"}) {
+            commandHandler.store(key, "x");
+        }
+        assertEquals(List.of("user:1=x", "user:2=x"), listAll("SCAN %s PREFIX user: LIMIT 1", null));
+        assertEquals("next=0", commandHandler.handleRequest("SCAN 0 PREFIX none"));
+    }
+
+    @Test
+    public void rangeIncludesItsStartAndExcludesItsEnd() {
+        for (char c = 'a'; c <= 'z'; c++) {
+            commandHandler.store(String.valueOf(c), String.valueOf(c));
+        }
+        assertEquals(List.of("c=c", "d=d", "e=e", "f=f"), listAll("RANGE %s c g LIMIT 3", null));
+        assertEquals("next=0", commandHandler.handleRequest("RANGE 0 g c"));
+    }
+
+    @Test
+    public void cursorResumesAfterKeysChangedBetweenPages() {
+        for (int i = 0; i < 10; i++) {
+            commandHandler.store("k" + i, "v");
+        }
+        String first = commandHandler.handleRequest("SCAN 0 LIMIT 5");
+        assertEquals("next=" + hex("k4") + ", k0=v, k1=v, k2=v, k3=v, k4=v", first);
+        // The key the cursor points at is gone, and a key was added before it
+        commandHandler.remove("k4");
+        commandHandler.store("k10", "v");
+        assertEquals("next=0, k5=v, k6=v, k7=v, k8=v, k9=v", commandHandler.handleRequest("SCAN " + hex("k4")));
+    }
+
+    @Test
+    public void cursorsHoldAnyKey() {
+        commandHandler.store("a key with spaces", "1");
+        commandHandler.store("ÿ", "2");
+        commandHandler.store("b", "3");
+        assertEquals(List.of("a key with spaces=1", "b=3", "ÿ=2"), listAll("SCAN %s LIMIT 1", null));
+    }
+
+    @Test
+    public void largeValuesEndThePageEarly() {
+        String value = "x".repeat(10_000);
+        for (int i = 0; i < 10; i++) {
+            commandHandler.store("k" + i, value);
+        }
+        List<Integer> pageSizes = new ArrayList<>();
+        assertEquals(10, listAll("SCAN %s", pageSizes).size());
+        assertEquals(List.of(4, 4, 2), pageSizes);
+    }
+
+    @Test
+    public void expiredKeysAreSkipped() {
+        long past = System.currentTimeMillis() - 1;
+        for (int i = 0; i < 100; i++) {
+            commandHandler.store(String.format("k%03d", i), "v", i == 50 ? 0 : past);
+        }
+        assertEquals(List.of("k050=v"), listAll("SCAN %s LIMIT 2", null));
+    }
+
+    @Test
+    public void invalidArgumentsAreRejected() {
+        assertEquals("Invalid cursor.", commandHandler.handleRequest("SCAN xyz"));
+        assertEquals("Invalid cursor.", commandHandler.handleRequest("SCAN 123"));
+        assertEquals("Invalid limit.", commandHandler.handleRequest("SCAN 0 LIMIT 0"));
+        assertEquals("Invalid limit.", commandHandler.handleRequest("SCAN 0 LIMIT 10001"));
+        assertEquals("Invalid limit.", commandHandler.handleRequest("RANGE 0 a b LIMIT x"));
+        assertTrue(commandHandler.handleRequest("SCAN 0 LIMIT").startsWith("Sample Usage: SCAN"));
+        assertTrue(commandHandler.handleRequest("RANGE 0 a").startsWith("Sample Usage: RANGE"));
+
+        CommandHandler unordered = new CommandHandler();
+        assertEquals("Ordered index is disabled.", unordered.handleRequest("SCAN 0"));
+        unordered.close();
+    }
+
+    /**
+     * Runs a paged command from the cursor 0 until the last page.
+     * @param command The command, with %s in place of the cursor.
+     * @param pageSizes Receives the number of entries of every page, or null.
+     * @return The key=value pairs of all pages.
+     */
+    private List<String> listAll(String command, List<Integer> pageSizes) {
+        List<String> entries = new ArrayList<>();
+        String cursor = "0";
+        for (int pages = 0; pages < 1000; pages++) {
+            String response = commandHandler.handleRequest(String.format(command, cursor));
+            assertTrue(response.startsWith("next="), response);
+            int comma = response.indexOf(", ");
+            cursor = response.substring("next=".length(), comma < 0 ? response.length() : comma);
+            int count = 0;
+            if (comma >= 0) {
+                for (String entry : response.substring(comma + 2).split(", ")) {
+                    entries.add(entry);
+                    count++;
+                }
+            }
+            if (pageSizes != null) pageSizes.add(count);
+            if (cursor.equals("0")) return entries;
+        }
+        throw new AssertionError("The listing does not end");
+    }
+
+    private static String hex(String key) {
+        StringBuilder cursor = new StringBuilder();
+        for (char c : key.toCharArray()) {
+            cursor.append(String.format("%02x", (int) c));
+        }
+        return cursor.toString();
+    }
+}
@@ -0,0 +1,74 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Firing of the timers of the TimingWheel on every level, beyond its range and after their
+ * deadline was moved.
+ */
+public class TimingWheelTest {
+
+    private static final long TICK = 10;
+    private static final long DAY = 24 * 60 * 60 * 1000L;
+
+    private final TimingWheel wheel = new TimingWheel(TICK);
+    private final long start = System.currentTimeMillis();
+    private final List<String> fired = new ArrayList<>();
+
+    @Test
+    public void timersFireAtTheirDeadlineOnEveryLevel() {
+        long[] delays = {20, 50, 3_000, 200_000, 10_000_000, 3 * DAY};
+        for (long delay : delays) {
+            wheel.schedule(new TimingWheel.Timer("k" + delay, start + delay));
+        }
+        for (long delay : delays) {
+            advance(start + delay - TICK);
+            assertFalse(fired.contains("k" + delay), "k" + delay + " fired early");
+            advance(start + delay);
+            assertEquals("k" + delay, fired.get(fired.size() - 1));
+        }
+        assertEquals(delays.length, fired.size());
+    }
+
+    @Test
+    public void timersBeyondTheRangeWaitForTheirDeadline() {
+        wheel.schedule(new TimingWheel.Timer("far", start + 10 * DAY));
+        advance(start + 9 * DAY);
+        assertTrue(fired.isEmpty());
+        advance(start + 10 * DAY);
+        assertEquals(List.of("far"), fired);
+    }
+
+    @Test
+    public void movedDeadlineIsRescheduled() {
+        TimingWheel.Timer timer = new TimingWheel.Timer("moved", start + 100);
+        wheel.schedule(timer);
+        advance(start + 50);
+        timer.deadline = start + 5_000;
+        advance(start + 4_000);
+        assertTrue(fired.isEmpty());
+        advance(start + 5_000);
+        assertEquals(List.of("moved"), fired);
+    }
+
+    @Test
+    public void timersOfTheSameTickAllFire() {
+        for (int i = 0; i < 1000; i++) {
+            wheel.schedule(new TimingWheel.Timer("k" + i, start + 30_000));
+        }
+        wheel.schedule(new TimingWheel.Timer("later", start + 30_000 + TICK));
+        advance(start + 30_000);
+        assertEquals(1000, fired.size());
+        advance(start + 30_000 + TICK);
+        assertEquals("later", fired.get(1000));
+    }
+
+    private void advance(long now) {
+        wheel.advance(now, timer -> fired.add(timer.key));
+    }
+}
@@ -0,0 +1,129 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Subscriptions of the WatchRegistry: matching, coalescing of changes and disconnection of
+ * subscribers that fall behind.
+ */
+public class WatchRegistryTest {
+
+    private final WatchRegistry registry = new WatchRegistry();
+
+    @Test
+    public void changesOfAKeyAreCoalesced() {
+        Recorder recorder = new Recorder(registry, 16);
+        registry.command(recorder, "WATCH k");
+        registry.changed("k");
+        registry.changed("other");
+        registry.changed("k");
+        registry.changed("k");
+        assertEquals(1, recorder.signals);
+        assertEquals(List.of("k"), recorder.poll(10));
+
+        // Once the queue was found empty, the next change wakes the connection up again
+        assertEquals(List.of(), recorder.poll(10));
+        registry.changed("k");
+        assertEquals(2, recorder.signals);
+    }
+
+    @Test
+    public void keysAreQueuedInTheOrderOfTheirFirstChange() {
+        Recorder recorder = new Recorder(registry, 16);
+        registry.command(recorder, "WATCH PREFIX user:");
+        registry.command(recorder, "WATCH user:2");
+        for (String key : new String[] {"user:2", "user:1", "use", "user:2", "users", "user:3"}) {
+            registry.changed(key);
+        }
+        assertEquals(List.of("user:2", "user:1"), recorder.poll(2));
+        assertEquals(List.of("user:3"), recorder.poll(10));
+    }
+
+    @Test
+    public void unwatchStopsTheEvents() {
+        Recorder recorder = new Recorder(registry, 16);
+        registry.command(recorder, "WATCH a");
+        registry.command(recorder, "WATCH PREFIX b");
+        registry.command(recorder, "UNWATCH a");
+        registry.changed("a");
+        registry.changed("b1");
+        assertEquals(List.of("b1"), recorder.poll(10));
+
+        assertEquals("Operation successful.", registry.command(recorder, "UNWATCH"));
+        registry.changed("b2");
+        assertEquals(List.of(), recorder.poll(10));
+        assertTrue(registry.command(recorder, "WATCH").startsWith("Sample Usage: WATCH"));
+        assertTrue(registry.command(recorder, "WATCH a b").startsWith("Sample Usage: WATCH"));
+    }
+
+    @Test
+    public void subscriberThatFallsBehindIsDisconnected() {
+        Recorder recorder = new Recorder(registry, 3);
+        registry.command(recorder, "WATCH PREFIX k");
+        for (int i = 0; i < 3; i++) {
+            registry.changed("k" + i);
+            registry.changed("k" + i);
+        }
+        assertFalse(recorder.closed());
+        assertEquals(0, recorder.overflows);
+
+        registry.changed("k3");
+        assertTrue(recorder.closed());
+        assertEquals(1, recorder.overflows);
+        assertEquals(List.of(), recorder.poll(10));
+
+        // Nothing is queued or signalled any more
+        registry.changed("k4");
+        assertEquals(1, recorder.overflows);
+        assertEquals(1, recorder.signals);
+    }
+
+    @Test
+    public void changesOfTheStoreAreQueued() {
+        BoundedKeyValueStore bounded = new BoundedKeyValueStore(new ConcurrentKeyValueStore(),
+                EvictionPolicy.create("lru"), 0, 2);
+        CommandHandler commandHandler = new CommandHandler(bounded);
+        Recorder recorder = new Recorder(commandHandler.watches(), 16);
+        commandHandler.watches().command(recorder, "WATCH PREFIX k");
+
+        commandHandler.store("k1", "v1");
+        commandHandler.handleRequest("APPEND k1 +");
+        commandHandler.store("k2", "v2");
+        commandHandler.remove("k2");
+        assertEquals(List.of("k1", "k2"), recorder.poll(10));
+        assertEquals("EVENT SET k1 v1+", WatchRegistry.event("k1", commandHandler.lookup("k1")));
+        assertEquals("EVENT DEL k2", WatchRegistry.event("k2", commandHandler.lookup("k2")));
+
+        // An evicted key is reported like a deleted one
+        commandHandler.store("k3", "v3");
+        commandHandler.store("other", "v");
+        assertEquals(List.of("k3", "k1"), recorder.poll(10));
+        commandHandler.close();
+    }
+
+    /**
+     * Recorder counts the calls the registry makes to a subscriber.
+     */
+    private static class Recorder extends WatchRegistry.Subscriber {
+        int signals;
+        int overflows;
+
+        Recorder(WatchRegistry registry, int capacity) {
+            super(registry, capacity);
+        }
+
+        @Override
+        protected void signal() {
+            signals++;
+        }
+
+        @Override
+        protected void overflow() {
+            overflows++;
+        }
+    }
+}
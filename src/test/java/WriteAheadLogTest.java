@@ -0,0 +1,99 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Replay of the WriteAheadLog after oversized appends and damaged records.
+ */
+public class WriteAheadLogTest {
+
+    private static final Path SEGMENT = Path.of("wal-00000001.log");
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void oversizedRecordIsRefusedAndLaterRecordsSurviveReplay() throws IOException {
+        try (WriteAheadLog log = open()) {
+            log.replay(1, (op, key, value) -> { });
+            log.append(WriteAheadLog.OP_PUT, "a", "1");
+            String oversized = "x".repeat(WriteAheadLog.MAX_RECORD_LENGTH);
+            assertThrows(IOException.class, () -> log.append(WriteAheadLog.OP_PUT, "big", oversized));
+            log.append(WriteAheadLog.OP_PUT, "b", "2");
+            log.append(WriteAheadLog.OP_DELETE, "a", null);
+        }
+
+        List<String> replayed = replay();
+        assertEquals(List.of("1 a 1", "1 b 2", "2 a null"), replayed);
+    }
+
+    @Test
+    public void tornLastRecordIsTruncated() throws IOException {
+        try (WriteAheadLog log = open()) {
+            log.replay(1, (op, key, value) -> { });
+            log.append(WriteAheadLog.OP_PUT, "a", "1");
+            log.append(WriteAheadLog.OP_PUT, "b", "2");
+        }
+        Path segment = segment();
+        long size = Files.size(segment);
+        try (FileChannel file = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            file.truncate(size - 1);
+        }
+
+        assertEquals(List.of("1 a 1"), replay());
+        // The torn record was cut off, so new records follow the intact ones
+        try (WriteAheadLog log = open()) {
+            log.replay(1, (op, key, value) -> { });
+            log.append(WriteAheadLog.OP_PUT, "c", "3");
+        }
+        assertEquals(List.of("1 a 1", "1 c 3"), replay());
+    }
+
+    @Test
+    public void damagedRecordFollowedByMoreRecordsFailsReplay() throws IOException {
+        try (WriteAheadLog log = open()) {
+            log.replay(1, (op, key, value) -> { });
+            log.append(WriteAheadLog.OP_PUT, "a", "1");
+            log.append(WriteAheadLog.OP_PUT, "b", "2");
+            log.append(WriteAheadLog.OP_PUT, "c", "3");
+        }
+        Path segment = segment();
+        long size = Files.size(segment);
+        // A key length beyond the record limit in the header of the second record
+        long recordSize = size / 3;
+        try (FileChannel file = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            file.write(ByteBuffer.allocate(4).putInt(0, Integer.MAX_VALUE), recordSize + 5);
+        }
+
+        assertThrows(IOException.class, this::replay);
+        // Nothing was truncated
+        assertEquals(size, Files.size(segment));
+    }
+
+    private WriteAheadLog open() throws IOException {
+        return new WriteAheadLog(directory, WriteAheadLog.FsyncPolicy.OS, 0);
+    }
+
+    private Path segment() {
+        return directory.resolve(SEGMENT);
+    }
+
+    private List<String> replay() throws IOException {
+        List<String> records = new ArrayList<>();
+        try (WriteAheadLog log = open()) {
+            log.replay(1, (op, key, value) -> records.add(op + " " + key + " " + value));
+        }
+        return records;
+    }
+}